@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Process;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.diegobaldi.sunshine.data.WeatherContract.ProviderStatsEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Tests the bookkeeping behind WeatherProvider's debug URIs: histogram buckets, aggregation per
+ * operation and URI code, and the slow operation ring buffer.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestProviderStats {
+
+    private static final long MILLIS_IN_NANOS = 1000 * 1000;
+
+    private ProviderStats stats;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        stats = new ProviderStats(context.getPackageManager());
+    }
+
+    /**
+     * Bucket i holds durations that need i bits, so each bucket is twice as wide as the last.
+     */
+    @Test
+    public void testBucketFor() {
+        assertEquals(0, ProviderStats.bucketFor(0));
+        assertEquals(1, ProviderStats.bucketFor(1));
+        assertEquals(2, ProviderStats.bucketFor(3));
+        assertEquals(3, ProviderStats.bucketFor(4));
+        assertEquals("Very slow operations should land in the last bucket",
+                ProviderStats.HISTOGRAM_BUCKETS - 1, ProviderStats.bucketFor(Long.MAX_VALUE));
+    }
+
+    /**
+     * Operations on the same URI code are aggregated into one row, with their rows summed.
+     */
+    @Test
+    public void testOperationsAreAggregatedPerUriCode() {
+        for (int i = 0; i < 3; i++) {
+            stats.record(ProviderStats.OP_QUERY, WeatherProvider.CODE_WEATHER,
+                    WeatherContract.WeatherEntry.CONTENT_URI, 4, 10, MILLIS_IN_NANOS,
+                    Process.myUid());
+        }
+        stats.record(ProviderStats.OP_DELETE, WeatherProvider.CODE_WEATHER,
+                WeatherContract.WeatherEntry.CONTENT_URI, 0, 30, MILLIS_IN_NANOS,
+                Process.myUid());
+
+        Cursor cursor = stats.statsCursor();
+        assertEquals("Expected one row per operation and URI code", 2, cursor.getCount());
+
+        while (cursor.moveToNext()) {
+            String operation = cursor.getString(
+                    cursor.getColumnIndex(ProviderStatsEntry.COLUMN_OPERATION));
+            long count = cursor.getLong(cursor.getColumnIndex(ProviderStatsEntry.COLUMN_COUNT));
+            long rows = cursor.getLong(cursor.getColumnIndex(ProviderStatsEntry.COLUMN_ROWS));
+            if ("query".equals(operation)) {
+                assertEquals(3, count);
+                assertEquals(30, rows);
+            } else {
+                assertEquals(1, count);
+                assertEquals(30, rows);
+            }
+        }
+        cursor.close();
+    }
+
+    /**
+     * Only operations over the threshold are logged, newest first, with the calling package.
+     */
+    @Test
+    public void testSlowOperationsAreLoggedNewestFirst() {
+        stats.setSlowThresholdMillis(10);
+
+        stats.record(ProviderStats.OP_QUERY, WeatherProvider.CODE_WEATHER,
+                WeatherContract.WeatherEntry.CONTENT_URI, 4, 10, MILLIS_IN_NANOS,
+                Process.myUid());
+        stats.record(ProviderStats.OP_QUERY, WeatherProvider.CODE_WEATHER,
+                WeatherContract.WeatherEntry.CONTENT_URI, 4, 10, 20 * MILLIS_IN_NANOS,
+                Process.myUid());
+        stats.record(ProviderStats.OP_BULK_INSERT, WeatherProvider.CODE_WEATHER,
+                WeatherContract.WeatherEntry.CONTENT_URI, 0, 14, 30 * MILLIS_IN_NANOS,
+                Process.myUid());
+
+        Cursor cursor = stats.slowLogCursor();
+        assertEquals("Only the two slow operations should be logged", 2, cursor.getCount());
+
+        cursor.moveToFirst();
+        assertEquals("bulkInsert", cursor.getString(
+                cursor.getColumnIndex(ProviderStatsEntry.COLUMN_OPERATION)));
+        assertEquals(InstrumentationRegistry.getTargetContext().getPackageName(),
+                cursor.getString(cursor.getColumnIndex(ProviderStatsEntry.COLUMN_CALLING_PACKAGE)));
+        cursor.close();
+    }
+}
@@ -188,7 +188,7 @@ public class TestSunshineDatabase {
 
     @Test
     public void testDatabaseVersionWasIncremented() {
-        int expectedDatabaseVersion = 3;
+        int expectedDatabaseVersion = 6;
         String databaseVersionShouldBe1 = "Database version should be "
                 + expectedDatabaseVersion + " but isn't."
                 + "\n Database version: ";
@@ -377,9 +377,10 @@ public class TestSunshineDatabase {
     }
 
     /**
-     * This method tests the {@link WeatherDbHelper#onUpgrade(SQLiteDatabase, int, int)}. The proper
-     * behavior for this method in our case is to simply DROP (or delete) the weather table from
-     * the database and then have the table recreated.
+     * This method tests the {@link WeatherDbHelper#onUpgrade(SQLiteDatabase, int, int)}. There is
+     * no migration from version 13 to 14, so the proper behavior in this case is to fall back to
+     * DROPping (or deleting) the weather table from the database and then have it recreated.
+     * Upgrades that do have a migration path are covered by TestWeatherDbMigrations.
      */
     @Test
     public void testOnUpgradeBehavesCorrectly() {
@@ -449,11 +450,10 @@ public class TestSunshineDatabase {
          */
         final HashSet<String> tableNameHashSet = new HashSet<>();
 
-        /* Here, we add the name of our only table in this particular database */
+        /* Here, we add the names of the tables in this particular database */
         tableNameHashSet.add(REFLECTED_TABLE_NAME);
-        /* Students, here is where you would add any other table names if you had them */
-//        tableNameHashSet.add(MyAwesomeSuperCoolTableName);
-//        tableNameHashSet.add(MyOtherCoolTableNameThatContainsOtherCoolData);
+        tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.HourlyEntry.TABLE_NAME);
 
         /* We think the database is open, let's verify that here */
         String databaseIsNotOpen = "The database should be open and isn't";
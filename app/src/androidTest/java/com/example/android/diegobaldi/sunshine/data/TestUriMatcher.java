@@ -100,4 +100,44 @@ public class TestUriMatcher {
                 expectedWeatherWithDateCode,
                 actualWeatherWithDateCode);
     }
+
+    /**
+     * The URIs underneath a saved location must be told apart from each other, in particular
+     * "today" from a numeric date.
+     */
+    @Test
+    public void testLocationUriMatcher() {
+        long locationId = TestUtilities.TEST_LOCATION_ID;
+
+        assertEquals("Error: The CODE_LOCATION URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION,
+                testMatcher.match(WeatherContract.LocationEntry.CONTENT_URI));
+
+        assertEquals("Error: The CODE_LOCATION_WITH_ID URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION_WITH_ID,
+                testMatcher.match(WeatherContract.LocationEntry.buildLocationUri(locationId)));
+
+        assertEquals("Error: The CODE_LOCATION_WEATHER URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION_WEATHER,
+                testMatcher.match(WeatherContract.LocationEntry.buildWeatherUri(locationId)));
+
+        assertEquals("Error: The CODE_LOCATION_WEATHER_WITH_DATE URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION_WEATHER_WITH_DATE,
+                testMatcher.match(WeatherContract.LocationEntry
+                        .buildWeatherUriWithDate(locationId, TestUtilities.DATE_NORMALIZED)));
+
+        assertEquals("Error: The CODE_LOCATION_WEATHER_TODAY URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION_WEATHER_TODAY,
+                testMatcher.match(WeatherContract.LocationEntry.buildTodayUri(locationId)));
+
+        assertEquals("Error: The CODE_LOCATION_HOURLY URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION_HOURLY,
+                testMatcher.match(WeatherContract.LocationEntry
+                        .buildHourlyRangeUri(locationId, 0, TestUtilities.DATE_NORMALIZED)));
+
+        assertEquals("Error: The CODE_LOCATION_WEATHER_WEEKLY URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION_WEATHER_WEEKLY,
+                testMatcher.match(WeatherContract.LocationEntry.buildSummaryUri(locationId,
+                        WeatherContract.PATH_WEEKLY, 0, TestUtilities.DATE_NORMALIZED)));
+    }
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.diegobaldi.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests the migration framework used by {@link WeatherDbHelper#onUpgrade}. These tests run
+ * against a throwaway in-memory database with a small legacy schema, so they don't depend on
+ * whichever migrations Sunshine currently ships. We test the following:
+ * <p>
+ * 1) The migrator picks an ordered path and prefers steps that skip versions
+ * 2) Rows survive a chain of migrations
+ * 3) A failing step leaves the database untouched
+ * 4) How long a table rebuild takes on a large database
+ * 5) The migrations Sunshine ships keep the user's forecast
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherDbMigrations {
+
+    private static final String TAG = TestWeatherDbMigrations.class.getSimpleName();
+
+    /* Rows used for the migration benchmark; large compared to the 14 days we usually store */
+    private static final int BENCHMARK_ROW_COUNT = 100000;
+
+    private static final String LEGACY_TABLE = "legacy_weather";
+
+    /* Adds a column with a default value, the cheapest kind of schema change */
+    private static final WeatherDbMigration ADD_COLUMN = new WeatherDbMigration(1, 2) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + LEGACY_TABLE + " ADD COLUMN feels_like REAL NOT NULL DEFAULT 0");
+        }
+    };
+
+    /*
+     * Changes a constraint, which SQLite can only do by rebuilding the table. This is the
+     * expensive kind of schema change and the one we benchmark.
+     */
+    private static final WeatherDbMigration REBUILD_TABLE = new WeatherDbMigration(2, 3) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + LEGACY_TABLE + "_new ("
+                    + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "date INTEGER NOT NULL, "
+                    + "max REAL NOT NULL, "
+                    + "feels_like REAL NOT NULL DEFAULT 0, "
+                    + "UNIQUE (date) ON CONFLICT REPLACE)");
+            db.execSQL("INSERT INTO " + LEGACY_TABLE + "_new (_id, date, max, feels_like) "
+                    + "SELECT _id, date, max, feels_like FROM " + LEGACY_TABLE);
+            db.execSQL("DROP TABLE " + LEGACY_TABLE);
+            db.execSQL("ALTER TABLE " + LEGACY_TABLE + "_new RENAME TO " + LEGACY_TABLE);
+        }
+    };
+
+    /* Squashes both steps above into one */
+    private static final WeatherDbMigration SQUASHED = new WeatherDbMigration(1, 3) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            ADD_COLUMN.migrate(db);
+            REBUILD_TABLE.migrate(db);
+        }
+    };
+
+    private SQLiteDatabase database;
+
+    @Before
+    public void before() {
+        database = SQLiteDatabase.create(null);
+        database.execSQL("CREATE TABLE " + LEGACY_TABLE + " ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "date INTEGER NOT NULL, "
+                + "max REAL NOT NULL)");
+    }
+
+    @After
+    public void after() {
+        database.close();
+    }
+
+    /**
+     * The migrator should walk versions in order, prefer the step that gets furthest, and
+     * report when there is no way to reach the requested version.
+     */
+    @Test
+    public void testFindPath() {
+        WeatherDbMigration[] migrations = {REBUILD_TABLE, ADD_COLUMN};
+
+        List<WeatherDbMigration> path = WeatherDbMigrator.findPath(migrations, 1, 3);
+        assertEquals("Expected two ordered steps", 2, path.size());
+        assertEquals(ADD_COLUMN, path.get(0));
+        assertEquals(REBUILD_TABLE, path.get(1));
+
+        migrations = new WeatherDbMigration[]{ADD_COLUMN, REBUILD_TABLE, SQUASHED};
+        path = WeatherDbMigrator.findPath(migrations, 1, 3);
+        assertEquals("The squashed step should have been preferred", 1, path.size());
+        assertEquals(SQUASHED, path.get(0));
+
+        assertNull("There is no step starting at version 3",
+                WeatherDbMigrator.findPath(migrations, 1, 4));
+    }
+
+    /**
+     * Rows written before a chain of migrations must all still be there afterwards.
+     */
+    @Test
+    public void testMigrationPreservesRows() {
+        insertLegacyRows(10);
+
+        WeatherDbMigrator.migrate(database,
+                new WeatherDbMigration[]{ADD_COLUMN, REBUILD_TABLE}, 1, 3);
+
+        assertEquals("Rows were lost while migrating",
+                10, DatabaseUtils.queryNumEntries(database, LEGACY_TABLE));
+
+        Cursor cursor = database.query(LEGACY_TABLE, null, null, null, null, null, null);
+        assertTrue("Migrated table is missing the new column",
+                cursor.getColumnIndex("feels_like") != -1);
+        cursor.close();
+    }
+
+    /**
+     * If any step fails, the steps that already ran must be rolled back with it.
+     */
+    @Test
+    public void testFailedMigrationRollsBack() {
+        insertLegacyRows(10);
+
+        WeatherDbMigration failing = new WeatherDbMigration(2, 3) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                throw new IllegalStateException("Simulated failure");
+            }
+        };
+
+        try {
+            WeatherDbMigrator.migrate(database, new WeatherDbMigration[]{ADD_COLUMN, failing}, 1, 3);
+            fail("The failing migration should have thrown");
+        } catch (IllegalStateException expected) {
+            /* This is what we want */
+        }
+
+        Cursor cursor = database.query(LEGACY_TABLE, null, null, null, null, null, null);
+        assertFalse("The first step should have been rolled back",
+                cursor.getColumnIndex("feels_like") != -1);
+        assertEquals("Rows were lost by a failed migration", 10, cursor.getCount());
+        cursor.close();
+    }
+
+    /**
+     * Measures how long the expensive table rebuild takes on a large database. The numbers are
+     * written to logcat under this test's tag so that runs can be compared.
+     */
+    @Test
+    public void testMigrationBenchmarkOnLargeDatabase() {
+        insertLegacyRows(BENCHMARK_ROW_COUNT);
+
+        long start = SystemClock.elapsedRealtime();
+        WeatherDbMigrator.migrate(database,
+                new WeatherDbMigration[]{ADD_COLUMN, REBUILD_TABLE}, 1, 3);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "migration_benchmark rows=" + BENCHMARK_ROW_COUNT + " millis=" + elapsed);
+
+        assertEquals("Rows were lost while migrating a large database",
+                BENCHMARK_ROW_COUNT, DatabaseUtils.queryNumEntries(database, LEGACY_TABLE));
+    }
+
+    /**
+     * Version 4 moves every stored forecast row under the preferred location. Starting from the
+     * version 3 schema, no row may be lost and each must end up with that location's _ID.
+     */
+    @Test
+    public void testAddLocationsKeepsForecast() {
+        database.execSQL("CREATE TABLE weather ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "date INTEGER NOT NULL, "
+                + "weather_id INTEGER NOT NULL,"
+                + "min REAL NOT NULL, "
+                + "max REAL NOT NULL, "
+                + "humidity REAL NOT NULL, "
+                + "pressure REAL NOT NULL, "
+                + "wind REAL NOT NULL, "
+                + "degrees REAL NOT NULL, "
+                + " UNIQUE (date) ON CONFLICT REPLACE);");
+
+        for (ContentValues values : TestUtilities.createBulkInsertTestWeatherValues()) {
+            values.remove(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID);
+            database.insertOrThrow("weather", null, values);
+        }
+
+        Context context = InstrumentationRegistry.getTargetContext();
+        WeatherDbMigrator.migrate(database,
+                new WeatherDbMigration[]{WeatherDbMigrations.addLocations(context)}, 3, 4);
+
+        Cursor location = database.query(WeatherContract.LocationEntry.TABLE_NAME,
+                null, null, null, null, null, null);
+        assertEquals("Expected the preferred location to be saved", 1, location.getCount());
+        location.moveToFirst();
+        long locationId = location.getLong(
+                location.getColumnIndex(WeatherContract.LocationEntry._ID));
+        location.close();
+
+        Cursor weather = database.query("weather", null,
+                WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = " + locationId,
+                null, null, null, null);
+        assertEquals("Forecast rows were lost while adding locations",
+                TestUtilities.BULK_INSERT_RECORDS_TO_INSERT, weather.getCount());
+        weather.close();
+    }
+
+    private void insertLegacyRows(int count) {
+        SQLiteStatement insert = database.compileStatement(
+                "INSERT INTO " + LEGACY_TABLE + " (date, max) VALUES (?, ?)");
+
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                insert.bindLong(1, TestUtilities.DATE_NORMALIZED + i * SunshineDateUtils.DAY_IN_MILLIS);
+                insert.bindDouble(2, 20 + i % 15);
+                insert.executeInsert();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        insert.close();
+    }
+}
@@ -27,11 +27,17 @@ import android.net.Uri;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 
+import com.example.android.diegobaldi.sunshine.utilities.SunshineDateUtils;
+import com.example.android.diegobaldi.sunshine.utils.PollingCheck;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 import static com.example.android.diegobaldi.sunshine.data.TestUtilities.BULK_INSERT_RECORDS_TO_INSERT;
 import static com.example.android.diegobaldi.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
 import static junit.framework.Assert.assertEquals;
@@ -424,6 +430,335 @@ public class TestWeatherProvider {
         shouldBeEmptyCursor.close();
     }
 
+    /**
+     * Forecasts of different locations share the weather table, so writing or deleting through
+     * one location's URI must never touch the rows of another.
+     */
+    @Test
+    public void testLocationScopedWeather() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        long firstLocationId = TestUtilities.TEST_LOCATION_ID;
+        long secondLocationId = TestUtilities.TEST_LOCATION_ID + 1;
+        Uri firstLocationUri = WeatherContract.LocationEntry.buildWeatherUri(firstLocationId);
+        Uri secondLocationUri = WeatherContract.LocationEntry.buildWeatherUri(secondLocationId);
+
+        /* The same days for both locations; the URI decides which location the rows belong to */
+        contentResolver.bulkInsert(firstLocationUri,
+                TestUtilities.createBulkInsertTestWeatherValues());
+        contentResolver.bulkInsert(secondLocationUri,
+                TestUtilities.createBulkInsertTestWeatherValues());
+
+        Cursor secondLocation = contentResolver.query(secondLocationUri, null, null, null, null);
+        assertEquals("Rows of the same day at another location replaced each other",
+                BULK_INSERT_RECORDS_TO_INSERT,
+                secondLocation.getCount());
+        secondLocation.close();
+
+        int deleted = contentResolver.delete(firstLocationUri, null, null);
+        assertEquals("Deleting a location's forecast deleted the wrong number of rows",
+                BULK_INSERT_RECORDS_TO_INSERT,
+                deleted);
+
+        secondLocation = contentResolver.query(secondLocationUri, null, null, null, null);
+        assertEquals("Deleting one location's forecast deleted another location's rows",
+                BULK_INSERT_RECORDS_TO_INSERT,
+                secondLocation.getCount());
+        secondLocation.close();
+    }
+
+    /**
+     * Paging parameters must split a location's forecast into windows that together cover each
+     * of its rows exactly once, both with an offset and with keyset paging on the date, while
+     * another location has rows for the same days. Keyset paging across every location, where
+     * dates repeat, must be refused rather than skip rows.
+     */
+    @Test
+    public void testPagedQueries() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        long locationId = TestUtilities.TEST_LOCATION_ID;
+        Uri locationUri = WeatherContract.LocationEntry.buildWeatherUri(locationId);
+        contentResolver.bulkInsert(locationUri, createBulkInsertTestWeatherValues());
+        contentResolver.bulkInsert(WeatherContract.LocationEntry.buildWeatherUri(locationId + 1),
+                createBulkInsertTestWeatherValues());
+
+        int pageSize = 4;
+        String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+
+        Cursor secondPage = contentResolver.query(
+                WeatherContract.buildPageUri(locationUri, pageSize, pageSize),
+                null, null, null, sortOrder);
+        assertEquals("An offset page should hold a full page of rows",
+                pageSize, secondPage.getCount());
+        secondPage.moveToFirst();
+        long secondPageFirstDate = secondPage.getLong(
+                secondPage.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE));
+        secondPage.close();
+
+        int rowsSeen = 0;
+        long lastDate = 0;
+        long firstDateOfSecondKeysetPage = -1;
+        while (true) {
+            Cursor page = contentResolver.query(
+                    WeatherContract.buildPageAfterUri(locationUri, pageSize, lastDate),
+                    null, null, null, null);
+            int count = page.getCount();
+            if (count == 0) {
+                page.close();
+                break;
+            }
+
+            for (page.moveToFirst(); !page.isAfterLast(); page.moveToNext()) {
+                long date = page.getLong(
+                        page.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE));
+                assertTrue("Keyset pages must be in ascending date order", date > lastDate);
+                assertEquals("Keyset paging returned another location's row", locationId,
+                        page.getLong(page.getColumnIndex(
+                                WeatherContract.WeatherEntry.COLUMN_LOCATION_ID)));
+                if (rowsSeen == pageSize) firstDateOfSecondKeysetPage = date;
+                lastDate = date;
+                rowsSeen++;
+            }
+            page.close();
+        }
+
+        assertEquals("Keyset paging should visit every row once",
+                BULK_INSERT_RECORDS_TO_INSERT, rowsSeen);
+        assertEquals("Offset and keyset paging disagree on the second page",
+                secondPageFirstDate, firstDateOfSecondKeysetPage);
+
+        try {
+            contentResolver.query(WeatherContract.buildPageAfterUri(
+                    WeatherContract.WeatherEntry.CONTENT_URI, pageSize, 0),
+                    null, null, null, null);
+            fail("Keyset paging across every location should have been refused");
+        } catch (IllegalArgumentException expected) {
+            /* Dates repeat across locations, so "date > after" would skip rows */
+        }
+    }
+
+    /**
+     * Writing a forecast must only notify the days whose rows actually changed. Rewriting a day
+     * with the values it already has notifies nobody, and changing one day leaves observers of
+     * the other days alone.
+     */
+    @Test
+    public void testOnlyChangedDaysAreNotified() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        ContentValues[] forecast = createBulkInsertTestWeatherValues();
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, forecast);
+
+        long firstDate = forecast[0].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        long secondDate = forecast[1].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+
+        TestUtilities.TestContentObserver firstDayObserver = TestUtilities.getTestContentObserver();
+        contentResolver.registerContentObserver(
+                WeatherContract.WeatherEntry.buildWeatherUriWithDate(firstDate),
+                false,
+                firstDayObserver);
+        TestUtilities.TestContentObserver secondDayObserver = TestUtilities.getTestContentObserver();
+        contentResolver.registerContentObserver(
+                WeatherContract.WeatherEntry.buildWeatherUriWithDate(secondDate),
+                false,
+                secondDayObserver);
+
+        int rewritten = contentResolver.bulkInsert(
+                WeatherContract.WeatherEntry.CONTENT_URI, createBulkInsertTestWeatherValues());
+        assertEquals("Rows that were already stored should still count as inserted",
+                BULK_INSERT_RECORDS_TO_INSERT,
+                rewritten);
+
+        ContentValues changedDay = new ContentValues(forecast[1]);
+        changedDay.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 99);
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+                new ContentValues[]{changedDay});
+
+        /*
+         * Notifications are delivered in the order they were sent, so once the second day hears
+         * about its change, any notification of the first day would have arrived as well.
+         */
+        secondDayObserver.waitForNotificationOrFail();
+        contentResolver.unregisterContentObserver(secondDayObserver);
+        contentResolver.unregisterContentObserver(firstDayObserver);
+        firstDayObserver.mHT.quit();
+
+        assertTrue("A day that didn't change was notified", !firstDayObserver.mContentChanged);
+    }
+
+    /**
+     * A range on an hourly URI must return exactly the entries of that location from the start
+     * of the range up to, but not including, its end, in time order.
+     */
+    @Test
+    public void testHourlyRangeQuery() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        long start = TestUtilities.DATE_NORMALIZED;
+        long step = 3 * 60 * 60 * 1000;
+        int steps = 16;
+
+        ContentValues[] hourly = new ContentValues[steps];
+        for (int i = 0; i < steps; i++) {
+            hourly[i] = new ContentValues();
+            hourly[i].put(WeatherContract.HourlyEntry.COLUMN_TIME, start + i * step);
+            hourly[i].put(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID, 800);
+            hourly[i].put(WeatherContract.HourlyEntry.COLUMN_TEMP,
+                    WeatherContract.HourlyEntry.toTenths(10.5 + i));
+            hourly[i].put(WeatherContract.HourlyEntry.COLUMN_HUMIDITY, 60);
+            hourly[i].put(WeatherContract.HourlyEntry.COLUMN_PRESSURE, 1013);
+            hourly[i].put(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED,
+                    WeatherContract.HourlyEntry.toTenths(3.2));
+            hourly[i].put(WeatherContract.HourlyEntry.COLUMN_DEGREES, 270);
+        }
+
+        long locationId = TestUtilities.TEST_LOCATION_ID;
+        int inserted = contentResolver.bulkInsert(
+                WeatherContract.LocationEntry.buildHourlyUri(locationId), hourly);
+        assertEquals("Not every hourly entry was inserted", steps, inserted);
+
+        Cursor secondDay = contentResolver.query(
+                WeatherContract.LocationEntry.buildHourlyRangeUri(
+                        locationId, start + 8 * step, start + 16 * step),
+                null, null, null, null);
+        assertNotNull("The hourly range query returned null", secondDay);
+        assertEquals("A day should hold 8 hourly entries", 8, secondDay.getCount());
+
+        secondDay.moveToFirst();
+        assertEquals("Hourly entries should start at the beginning of the range",
+                start + 8 * step,
+                secondDay.getLong(secondDay.getColumnIndex(WeatherContract.HourlyEntry.COLUMN_TIME)));
+        assertEquals("Temperatures should survive the round trip through tenths",
+                18.5,
+                WeatherContract.HourlyEntry.fromTenths(secondDay.getInt(
+                        secondDay.getColumnIndex(WeatherContract.HourlyEntry.COLUMN_TEMP))),
+                0.001);
+        secondDay.close();
+    }
+
+    /**
+     * The summary URIs must aggregate exactly the days of their range: the test forecast runs
+     * from Sunday October 2nd to Tuesday October 11th, 2016, so it spans parts of three weeks.
+     */
+    @Test
+    public void testForecastSummaries() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        long locationId = TestUtilities.TEST_LOCATION_ID;
+        contentResolver.bulkInsert(WeatherContract.LocationEntry.buildWeatherUri(locationId),
+                createBulkInsertTestWeatherValues());
+
+        long from = TestUtilities.DATE_NORMALIZED;
+        long to = from + (BULK_INSERT_RECORDS_TO_INSERT + 1) * SunshineDateUtils.DAY_IN_MILLIS;
+
+        Cursor extremes = contentResolver.query(WeatherContract.LocationEntry.buildSummaryUri(
+                locationId, WeatherContract.PATH_EXTREMES, from, to), null, null, null, null);
+        assertNotNull("The extremes query returned null", extremes);
+        assertTrue("The extremes query should return one row", extremes.moveToFirst());
+        assertEquals(65.0 - (BULK_INSERT_RECORDS_TO_INSERT - 1), extremes.getDouble(
+                extremes.getColumnIndex(WeatherContract.SummaryEntry.COLUMN_MIN_TEMP)), 0.001);
+        assertEquals(75.0 + (BULK_INSERT_RECORDS_TO_INSERT - 1), extremes.getDouble(
+                extremes.getColumnIndex(WeatherContract.SummaryEntry.COLUMN_MAX_TEMP)), 0.001);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, extremes.getInt(
+                extremes.getColumnIndex(WeatherContract.SummaryEntry.COLUMN_DAY_COUNT)));
+        extremes.close();
+
+        Cursor weekly = contentResolver.query(WeatherContract.LocationEntry.buildSummaryUri(
+                locationId, WeatherContract.PATH_WEEKLY, from, to), null, null, null, null);
+        assertNotNull("The weekly query returned null", weekly);
+        assertEquals("The forecast should span three weeks", 3, weekly.getCount());
+        weekly.moveToPosition(1);
+        assertEquals("Weeks should start on Monday",
+                from + 2 * SunshineDateUtils.DAY_IN_MILLIS,
+                weekly.getLong(weekly.getColumnIndex(WeatherContract.SummaryEntry.COLUMN_WEEK_START)));
+        assertEquals(7, weekly.getInt(
+                weekly.getColumnIndex(WeatherContract.SummaryEntry.COLUMN_DAY_COUNT)));
+        assertEquals(79.0, weekly.getDouble(
+                weekly.getColumnIndex(WeatherContract.SummaryEntry.COLUMN_MEAN_MAX_TEMP)), 0.001);
+        weekly.close();
+
+        Cursor conditions = contentResolver.query(WeatherContract.LocationEntry.buildSummaryUri(
+                locationId, WeatherContract.PATH_CONDITIONS, from, to), null, null, null, null);
+        assertNotNull("The conditions query returned null", conditions);
+        assertTrue("The conditions query should return one group", conditions.moveToFirst());
+        assertEquals(WeatherContract.SummaryEntry.CONDITION_GROUP_DRIZZLE, conditions.getInt(
+                conditions.getColumnIndex(WeatherContract.SummaryEntry.COLUMN_CONDITION_GROUP)));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, conditions.getInt(
+                conditions.getColumnIndex(WeatherContract.SummaryEntry.COLUMN_DAY_COUNT)));
+        conditions.close();
+    }
+
+    /**
+     * Exporting the weather table and importing the file again must bring back every row, in
+     * both formats, under the _ID its location has where it is imported. A CSV export ends with
+     * the line that tells an import the file is whole.
+     */
+    @Test
+    public void testTransferRoundTrip() throws Exception {
+        final ContentResolver contentResolver = mContext.getContentResolver();
+        final WeatherRepository repository = WeatherRepository.getInstance(mContext);
+        String[] formats = {WeatherContract.TransferEntry.FORMAT_CSV,
+                WeatherContract.TransferEntry.FORMAT_BINARY};
+
+        for (String format : formats) {
+            /* A setting with a comma, which CSV must keep in one piece */
+            long exportedId = repository.saveLocation("Mountain View, CA");
+            ContentValues[] forecast = createBulkInsertTestWeatherValues();
+            for (ContentValues day : forecast) {
+                day.put(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID, exportedId);
+            }
+            contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, forecast);
+            Uri transferUri = WeatherContract.TransferEntry.buildTransferUri(
+                    WeatherContract.TransferEntry.CONTENT_URI_WEATHER, format);
+
+            ByteArrayOutputStream exported = new ByteArrayOutputStream();
+            InputStream in = contentResolver.openInputStream(transferUri);
+            try {
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    exported.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            if (WeatherContract.TransferEntry.FORMAT_CSV.equals(format)) {
+                assertTrue("A whole CSV export should end with its end line",
+                        exported.toString("UTF-8").endsWith(
+                                "#end," + BULK_INSERT_RECORDS_TO_INSERT + "\n"));
+            }
+
+            /* As if on another device, where the location isn't saved yet */
+            repository.deleteLocation(exportedId);
+
+            OutputStream out = contentResolver.openOutputStream(transferUri);
+            try {
+                out.write(exported.toByteArray());
+            } finally {
+                out.close();
+            }
+
+            /* The import finishes on the provider's own thread after the stream is closed */
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    Cursor cursor = contentResolver.query(
+                            WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+                    int count = cursor.getCount();
+                    cursor.close();
+                    return count == BULK_INSERT_RECORDS_TO_INSERT;
+                }
+            }.run();
+
+            long importedId = repository.saveLocation("Mountain View, CA");
+            assertTrue("The location should get a new _ID", importedId != exportedId);
+            Cursor imported = contentResolver.query(
+                    WeatherContract.LocationEntry.buildWeatherUri(importedId),
+                    null, null, null, null);
+            assertEquals("Every row should be under the _ID the location has now",
+                    BULK_INSERT_RECORDS_TO_INSERT, imported.getCount());
+            imported.close();
+
+            repository.deleteLocation(importedId);
+        }
+    }
+
     /**
      * This method will clear all rows from the weather table in our database.
      * <p>
@@ -443,6 +778,7 @@ public class TestWeatherProvider {
 
         /* The delete method deletes all of the desired rows from the table, not the table itself */
         database.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        database.delete(WeatherContract.HourlyEntry.TABLE_NAME, null, null);
 
         /* Always close the database when you're through with it */
         database.close();
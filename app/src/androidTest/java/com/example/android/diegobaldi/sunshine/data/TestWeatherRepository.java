@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static com.example.android.diegobaldi.sunshine.data.TestUtilities.BULK_INSERT_RECORDS_TO_INSERT;
+import static com.example.android.diegobaldi.sunshine.data.TestUtilities.TEST_LOCATION_ID;
+import static com.example.android.diegobaldi.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests {@link WeatherRepository} directly, as in-process callers use it, without going through
+ * WeatherProvider.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherRepository {
+
+    private WeatherRepository mRepository;
+
+    @Before
+    public void setUp() {
+        mRepository = WeatherRepository.getInstance(InstrumentationRegistry.getTargetContext());
+        mRepository.deleteForecast(null, null);
+    }
+
+    /**
+     * Saving the same location setting twice must give back the same _ID.
+     */
+    @Test
+    public void testSaveLocationIsIdempotent() {
+        long first = mRepository.saveLocation("94043");
+        long second = mRepository.saveLocation("94043");
+
+        assertEquals("Saving a location twice should not create a second row", first, second);
+        mRepository.deleteLocation(first);
+    }
+
+    /**
+     * A shorter forecast replaces a longer one: the days it shares are kept, the rest go.
+     */
+    @Test
+    public void testReplaceForecastDeletesDaysOutsideTheNewOne() {
+        ContentValues[] forecast = createBulkInsertTestWeatherValues();
+        mRepository.insertForecast(TEST_LOCATION_ID, forecast);
+
+        ContentValues[] shorter = Arrays.copyOfRange(forecast, 2, forecast.length - 2);
+        int changed = mRepository.replaceForecast(TEST_LOCATION_ID, shorter);
+        assertEquals("Only the 4 deleted days should count as changed", 4, changed);
+
+        Cursor cursor = mRepository.queryForecast(null,
+                WeatherRepository.withLocation(null),
+                WeatherRepository.withLocationArgs(Long.toString(TEST_LOCATION_ID), null),
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC", null);
+        assertEquals("Only the days of the new forecast should remain",
+                BULK_INSERT_RECORDS_TO_INSERT - 4, cursor.getCount());
+
+        cursor.moveToFirst();
+        assertEquals(shorter[0].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE).longValue(),
+                cursor.getLong(cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE)));
+        cursor.close();
+    }
+
+    /**
+     * An empty forecast, like a response trimmed down to nothing, must not delete the stored one.
+     */
+    @Test
+    public void testReplaceForecastWithNoDaysKeepsTheStoredOnes() {
+        mRepository.insertForecast(TEST_LOCATION_ID, createBulkInsertTestWeatherValues());
+
+        int changed = mRepository.replaceForecast(TEST_LOCATION_ID, new ContentValues[0]);
+        assertEquals("An empty forecast should change nothing", 0, changed);
+
+        Cursor cursor = mRepository.queryForecast(null,
+                WeatherRepository.withLocation(null),
+                WeatherRepository.withLocationArgs(Long.toString(TEST_LOCATION_ID), null),
+                null, null);
+        assertEquals("Every stored day should remain",
+                BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+    }
+
+    /**
+     * Committing only the first days of a forecast, as a sync out of time does, must keep the
+     * later days that were already stored.
+     */
+    @Test
+    public void testMergeForecastKeepsDaysItDoesNotHave() {
+        ContentValues[] forecast = createBulkInsertTestWeatherValues();
+        mRepository.insertForecast(TEST_LOCATION_ID, forecast);
+
+        ContentValues[] firstDays = Arrays.copyOfRange(forecast, 0, 3);
+        int changed = mRepository.mergeForecast(TEST_LOCATION_ID, firstDays);
+        assertEquals("Days that were already stored as they are should not count as changed",
+                0, changed);
+
+        Cursor cursor = mRepository.queryForecast(null,
+                WeatherRepository.withLocation(null),
+                WeatherRepository.withLocationArgs(Long.toString(TEST_LOCATION_ID), null),
+                null, null);
+        assertEquals("Every day of the earlier forecast should remain",
+                BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+    }
+
+    /**
+     * The forecast summaries must be answered from the summary index alone, without reading
+     * the rows of the weather table.
+     */
+    @Test
+    public void testSummariesUseCoveringIndex() {
+        WeatherDbHelper helper = new WeatherDbHelper(InstrumentationRegistry.getTargetContext());
+        Cursor plan = helper.getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN SELECT "
+                + "MIN(min), MAX(max), COUNT(*) FROM weather "
+                + "WHERE location_id = ? AND date >= ? AND date < ?",
+                new String[]{"1", "0", Long.toString(Long.MAX_VALUE)});
+
+        StringBuilder details = new StringBuilder();
+        while (plan.moveToNext()) {
+            details.append(plan.getString(plan.getColumnIndex("detail")));
+        }
+        plan.close();
+        helper.close();
+
+        assertTrue("Unexpected query plan: " + details,
+                details.toString().contains(
+                        "COVERING INDEX " + WeatherContract.WeatherEntry.INDEX_SUMMARY));
+    }
+}
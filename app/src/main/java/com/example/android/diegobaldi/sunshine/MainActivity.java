@@ -16,12 +16,16 @@
 package com.example.android.diegobaldi.sunshine;
 
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
+import android.support.v4.widget.SwipeRefreshLayout;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
@@ -31,15 +35,23 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.ProgressBar;
+import android.widget.Toast;
 
+import com.example.android.diegobaldi.BuildConfig;
 import com.example.android.diegobaldi.R;
 import com.example.android.diegobaldi.sunshine.data.SunshinePreferences;
 import com.example.android.diegobaldi.sunshine.data.WeatherContract;
 import com.example.android.diegobaldi.sunshine.sync.SunshineSyncUtils;
+import com.example.android.diegobaldi.sunshine.sync.SyncEngine;
+import com.example.android.diegobaldi.sunshine.sync.SyncRun;
+
+import java.util.Locale;
 
 public class MainActivity extends AppCompatActivity implements
         LoaderManager.LoaderCallbacks<Cursor>,
-        ForecastAdapter.ForecastAdapterOnClickHandler {
+        ForecastAdapter.ForecastAdapterOnClickHandler,
+        SharedPreferences.OnSharedPreferenceChangeListener,
+        SwipeRefreshLayout.OnRefreshListener {
 
     private final String TAG = MainActivity.class.getSimpleName();
 
@@ -74,12 +86,78 @@ public class MainActivity extends AppCompatActivity implements
      */
     private static final int ID_FORECAST_LOADER = 44;
 
+    /*
+     * The list loads the forecast a page at a time, so the first rows show up just as fast no
+     * matter how many days are stored. Once the user scrolls within FORECAST_PAGE_PREFETCH rows
+     * of the end of what is loaded, the next page is requested.
+     */
+    private static final int FORECAST_PAGE_SIZE = 20;
+    private static final int FORECAST_PAGE_PREFETCH = 5;
+
     private ForecastAdapter mForecastAdapter;
     private RecyclerView mRecyclerView;
     private int mPosition = RecyclerView.NO_POSITION;
 
+    /* The location whose forecast the loader shows, -1 until the first sync has resolved one */
+    private long mLocationId = -1;
+
+    /* How many rows the loader asks for; grows by FORECAST_PAGE_SIZE as the user scrolls */
+    private int mForecastLimit = FORECAST_PAGE_SIZE;
+
+    /* True while the loader is fetching a bigger window, so we don't scroll back to the top */
+    private boolean mLoadingNextPage;
+
     private ProgressBar mLoadingIndicator;
 
+    private SwipeRefreshLayout mSwipeRefresh;
+
+    /* Follows the refresh the user pulled for, null when there is none */
+    private RefreshListener mRefreshListener;
+
+    /**
+     * Shows the progress of the refresh the user pulled for in the action bar, and how long it
+     * took to get the fresh forecast once it's over. Called on the engine's thread, so it only
+     * posts to ours, and does nothing once another refresh took its place or we're destroyed.
+     */
+    private final class RefreshListener implements SyncEngine.ProgressListener {
+
+        private final long mStartMillis = SystemClock.elapsedRealtime();
+
+        @Override
+        public void onStageStarted(SyncRun run, final String stage) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mRefreshListener != RefreshListener.this) return;
+
+                    int subtitle = getStageSubtitle(stage);
+                    if (subtitle != 0) getSupportActionBar().setSubtitle(subtitle);
+                }
+            });
+        }
+
+        /* From the pull to the forecast being stored, including any wait behind another sync */
+        @Override
+        public void onSyncFinished(final SyncRun run) {
+            final long latencyMillis = SystemClock.elapsedRealtime() - mStartMillis;
+            Log.d(TAG, "Refresh took " + latencyMillis + " ms: " + run);
+
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mRefreshListener != RefreshListener.this) return;
+
+                    mRefreshListener = null;
+                    mSwipeRefresh.setRefreshing(false);
+                    getSupportActionBar().setSubtitle(null);
+                    Toast.makeText(MainActivity.this,
+                            getRefreshMessage(run.getOutcome(), latencyMillis),
+                            Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+    }
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -102,6 +180,11 @@ public class MainActivity extends AppCompatActivity implements
          */
         mLoadingIndicator = (ProgressBar) findViewById(R.id.pb_loading_indicator);
 
+        /* Pulling the list down syncs right away, see onRefresh */
+        mSwipeRefresh = (SwipeRefreshLayout) findViewById(R.id.swipe_refresh_forecast);
+        mSwipeRefresh.setOnRefreshListener(this);
+        mSwipeRefresh.setColorSchemeResources(R.color.colorPrimaryDark);
+
         /*
          * A LinearLayoutManager is responsible for measuring and positioning item views within a
          * RecyclerView into a linear list. This means that it can produce either a horizontal or
@@ -128,6 +211,27 @@ public class MainActivity extends AppCompatActivity implements
          */
         mRecyclerView.setHasFixedSize(true);
 
+        /* Loads the next page of the forecast before the user reaches the end of the list */
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int loadedRows = mForecastAdapter.getItemCount();
+
+                /* A page that came back short means there is nothing more to load */
+                if (mLoadingNextPage || loadedRows < mForecastLimit) return;
+
+                LinearLayoutManager layoutManager =
+                        (LinearLayoutManager) recyclerView.getLayoutManager();
+                if (layoutManager.findLastVisibleItemPosition()
+                        >= loadedRows - FORECAST_PAGE_PREFETCH) {
+                    mLoadingNextPage = true;
+                    mForecastLimit += FORECAST_PAGE_SIZE;
+                    getSupportLoaderManager()
+                            .restartLoader(ID_FORECAST_LOADER, null, MainActivity.this);
+                }
+            }
+        });
+
         /*
          * The ForecastAdapter is responsible for linking our weather data with the Views that
          * will end up displaying our weather data.
@@ -151,12 +255,98 @@ public class MainActivity extends AppCompatActivity implements
          * created and (if the activity/fragment is currently started) starts the loader. Otherwise
          * the last created loader is re-used.
          */
+        mLocationId = SunshinePreferences.getCurrentLocationId(this);
         getSupportLoaderManager().initLoader(ID_FORECAST_LOADER, null, this);
 
+        /* The sync may resolve a different location while we are showing, see below */
+        PreferenceManager.getDefaultSharedPreferences(this)
+                .registerOnSharedPreferenceChangeListener(this);
+
         SunshineSyncUtils.initialize(this);
 
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        /* Syncs come sooner while the user keeps checking the forecast */
+        SunshineSyncUtils.onWeatherSeen(this);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        /* The refresh goes on without us; the loader of the next activity shows its result */
+        mRefreshListener = null;
+        PreferenceManager.getDefaultSharedPreferences(this)
+                .unregisterOnSharedPreferenceChangeListener(this);
+    }
+
+    /**
+     * Called when a shared preference changes. When the sync saves a new current location, the
+     * loader has to be pointed at that location's forecast, as it only observes the old one.
+     *
+     * @param sharedPreferences The preferences that changed
+     * @param key               The key of the preference that changed
+     */
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (!SunshinePreferences.PREF_LOCATION_ID.equals(key)) return;
+
+        long locationId = SunshinePreferences.getCurrentLocationId(this);
+        if (locationId != mLocationId) {
+            mLocationId = locationId;
+            mPosition = RecyclerView.NO_POSITION;
+            mForecastLimit = FORECAST_PAGE_SIZE;
+            mLoadingNextPage = false;
+            getSupportLoaderManager().restartLoader(ID_FORECAST_LOADER, null, this);
+        }
+    }
+
+    /**
+     * Called when the user pulls the list down. The sync goes ahead of any other that is
+     * waiting, and while it runs the action bar says what it is doing.
+     */
+    @Override
+    public void onRefresh() {
+        if (SyncEngine.getInstance(this).isBusy()) {
+            getSupportActionBar().setSubtitle(R.string.refresh_waiting);
+        }
+        mRefreshListener = new RefreshListener();
+        SunshineSyncUtils.startUserSync(this, mRefreshListener);
+    }
+
+    /* Returns the subtitle for a stage of the sync, or 0 to keep the current one */
+    private static int getStageSubtitle(String stage) {
+        switch (stage) {
+            case "fetch":
+                return R.string.refresh_stage_fetch;
+            case "parse":
+                return R.string.refresh_stage_parse;
+            case "hourly":
+                return R.string.refresh_stage_hourly;
+            case "store":
+                return R.string.refresh_stage_store;
+            case "fanout":
+                return R.string.refresh_stage_fanout;
+            default:
+                return 0;
+        }
+    }
+
+    private String getRefreshMessage(int outcome, long latencyMillis) {
+        switch (outcome) {
+            case SyncRun.OUTCOME_SUCCESS:
+            case SyncRun.OUTCOME_PARTIAL:
+                return getString(R.string.refresh_done,
+                        String.format(Locale.getDefault(), "%.1f", latencyMillis / 1000f));
+            case SyncRun.OUTCOME_CANCELLED:
+                return getString(R.string.refresh_cancelled);
+            default:
+                return getString(R.string.refresh_failed);
+        }
+    }
+
     /**
      * Uses the URI scheme for showing a location found on a map in conjunction with
      * an implicit Intent. This super-handy Intent is detailed in the "Common Intents" page of
@@ -199,8 +389,21 @@ public class MainActivity extends AppCompatActivity implements
         switch (loaderId) {
 
             case ID_FORECAST_LOADER:
-                /* URI for all rows of weather data in our weather table */
-                Uri forecastQueryUri = WeatherContract.WeatherEntry.CONTENT_URI;
+                /*
+                 * URI for all rows of weather data of the current location. Before the first
+                 * sync there is at most the data of a single, migrated location, so we show
+                 * every row until a location is known.
+                 */
+                Uri forecastUri = mLocationId == -1
+                        ? WeatherContract.WeatherEntry.CONTENT_URI
+                        : WeatherContract.LocationEntry.buildWeatherUri(mLocationId);
+
+                /*
+                 * Only the rows the list has room for so far. Growing the window reloads it
+                 * from the first row, which keeps the Cursor a single, consistent snapshot.
+                 */
+                Uri forecastQueryUri =
+                        WeatherContract.buildPageUri(forecastUri, mForecastLimit, 0);
                 /* Sort order: Ascending by date */
                 String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
                 /*
@@ -238,8 +441,14 @@ public class MainActivity extends AppCompatActivity implements
 
 
         mForecastAdapter.swapCursor(data);
-        if (mPosition == RecyclerView.NO_POSITION) mPosition = 0;
-        mRecyclerView.smoothScrollToPosition(mPosition);
+
+        /* When a page was appended, the user is already where they want to be */
+        if (mLoadingNextPage) {
+            mLoadingNextPage = false;
+        } else {
+            if (mPosition == RecyclerView.NO_POSITION) mPosition = 0;
+            mRecyclerView.smoothScrollToPosition(mPosition);
+        }
         if (data.getCount() != 0) showWeatherDataView();
     }
 
@@ -267,7 +476,9 @@ public class MainActivity extends AppCompatActivity implements
     @Override
     public void onClick(long date) {
         Intent weatherDetailIntent = new Intent(MainActivity.this, DetailActivity.class);
-        Uri uriForDateClicked = WeatherContract.WeatherEntry.buildWeatherUriWithDate(date);
+        Uri uriForDateClicked = mLocationId == -1
+                ? WeatherContract.WeatherEntry.buildWeatherUriWithDate(date)
+                : WeatherContract.LocationEntry.buildWeatherUriWithDate(mLocationId, date);
         weatherDetailIntent.setData(uriForDateClicked);
         startActivity(weatherDetailIntent);
     }
@@ -317,6 +528,8 @@ public class MainActivity extends AppCompatActivity implements
         MenuInflater inflater = getMenuInflater();
         /* Use the inflater's inflate method to inflate our menu layout to this menu */
         inflater.inflate(R.menu.forecast, menu);
+        /* The sync journal is for us, not for our users */
+        menu.findItem(R.id.action_sync_journal).setVisible(BuildConfig.DEBUG);
         /* Return true so that the menu is displayed in the Toolbar */
         return true;
     }
@@ -341,6 +554,10 @@ public class MainActivity extends AppCompatActivity implements
             openPreferredLocationInMap();
             return true;
         }
+        if (id == R.id.action_sync_journal) {
+            startActivity(new Intent(this, SyncJournalActivity.class));
+            return true;
+        }
 
         return super.onOptionsItemSelected(item);
     }
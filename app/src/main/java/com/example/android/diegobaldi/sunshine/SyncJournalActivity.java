@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.AsyncTaskLoader;
+import android.support.v4.content.Loader;
+import android.support.v7.app.AppCompatActivity;
+import android.text.TextUtils;
+import android.widget.TextView;
+
+import com.example.android.diegobaldi.R;
+import com.example.android.diegobaldi.sunshine.sync.SyncJournal;
+
+import java.util.List;
+
+/**
+ * Shows the most recent syncs from the {@link SyncJournal}, one line each, most recent first.
+ * Meant for looking into reports of stale weather, so it is only reachable from the menu of
+ * debug builds. The journal is read on a background thread by a Loader.
+ */
+public class SyncJournalActivity extends AppCompatActivity implements
+        LoaderManager.LoaderCallbacks<List<String>> {
+
+    private static final int ID_JOURNAL_LOADER = 55;
+
+    /* More than this doesn't help anyone reading it on a phone; dumpsys has the rest */
+    private static final int MAX_RUNS = 200;
+
+    private TextView mJournalView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_sync_journal);
+        getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+
+        mJournalView = (TextView) findViewById(R.id.tv_sync_journal);
+
+        getSupportLoaderManager().initLoader(ID_JOURNAL_LOADER, null, this);
+    }
+
+    @Override
+    public Loader<List<String>> onCreateLoader(int id, Bundle args) {
+        return new JournalLoader(this);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<List<String>> loader, List<String> runs) {
+        if (runs.isEmpty()) {
+            mJournalView.setText(R.string.sync_journal_empty);
+        } else {
+            mJournalView.setText(TextUtils.join("\n", runs));
+        }
+    }
+
+    @Override
+    public void onLoaderReset(Loader<List<String>> loader) {
+        mJournalView.setText(null);
+    }
+
+    /* Reads the journal once; it is only shown, never changed, by this screen */
+    private static class JournalLoader extends AsyncTaskLoader<List<String>> {
+
+        private List<String> mRuns;
+
+        JournalLoader(Context context) {
+            super(context);
+        }
+
+        @Override
+        protected void onStartLoading() {
+            if (mRuns != null) {
+                deliverResult(mRuns);
+            } else {
+                forceLoad();
+            }
+        }
+
+        @Override
+        public List<String> loadInBackground() {
+            return SyncJournal.getInstance(getContext()).read(MAX_RUNS);
+        }
+
+        @Override
+        public void deliverResult(List<String> runs) {
+            mRuns = runs;
+            super.deliverResult(runs);
+        }
+    }
+}
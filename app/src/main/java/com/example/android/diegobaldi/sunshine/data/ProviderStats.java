@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.data;
+
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.SparseArray;
+
+import com.example.android.diegobaldi.sunshine.data.WeatherContract.ProviderStatsEntry;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Collects timing of every {@link WeatherProvider} entry point.
+ * <p>
+ * For each operation and matched URI code we keep a count, the rows read or written, and a
+ * histogram of wall times in power of two buckets, which is enough to tell a 1 ms query from a
+ * 100 ms one without storing every sample. Operations slower than a threshold are additionally
+ * remembered, with their caller, in a small ring buffer. Both are read through
+ * {@link ProviderStatsEntry} or with "adb shell dumpsys activity provider WeatherProvider".
+ * <p>
+ * Recording an operation only touches a few longs under a lock; the calling package is only
+ * looked up for slow operations, and cached per uid.
+ */
+final class ProviderStats {
+
+    static final int OP_QUERY = 0;
+    static final int OP_INSERT = 1;
+    static final int OP_BULK_INSERT = 2;
+    static final int OP_UPDATE = 3;
+    static final int OP_DELETE = 4;
+    static final int OP_EXPORT = 5;
+    static final int OP_IMPORT = 6;
+
+    private static final String[] OP_NAMES =
+            {"query", "insert", "bulkInsert", "update", "delete", "export", "import"};
+
+    /*
+     * Bucket i counts operations that took less than 2^i microseconds (and at least 2^(i-1)).
+     * The last bucket also counts everything slower, 2^19 microseconds being about half a second.
+     */
+    static final int HISTOGRAM_BUCKETS = 20;
+
+    /* How many slow operations we remember; older ones are overwritten */
+    private static final int SLOW_LOG_SIZE = 64;
+
+    /* Operations taking longer than this are logged as slow unless configured otherwise */
+    static final long DEFAULT_SLOW_THRESHOLD_MILLIS = 50;
+
+    private final PackageManager mPackageManager;
+
+    /* Keyed by uri code * OP_NAMES.length + operation */
+    private final SparseArray<UriStats> mStats = new SparseArray<>();
+
+    private final SlowOperation[] mSlowLog = new SlowOperation[SLOW_LOG_SIZE];
+    private int mSlowLogNext;
+    private int mSlowLogCount;
+
+    private long mSlowThresholdMicros = DEFAULT_SLOW_THRESHOLD_MILLIS * 1000;
+
+    /* Calling uid to package name; a handful of entries at most */
+    private final SparseArray<String> mPackageNames = new SparseArray<>();
+
+    ProviderStats(PackageManager packageManager) {
+        mPackageManager = packageManager;
+    }
+
+    /**
+     * Records a finished provider operation.
+     *
+     * @param operation       One of the OP_ constants
+     * @param uriCode         The code the UriMatcher returned for the URI
+     * @param uri             The URI of the operation
+     * @param projectionWidth The number of columns asked for, 0 for writes or a null projection
+     * @param rows            Rows returned or written, or -1 if the operation threw
+     * @param elapsedNanos    Wall time of the operation
+     * @param callingUid      The uid of the caller, from Binder#getCallingUid
+     */
+    synchronized void record(int operation, int uriCode, Uri uri, int projectionWidth,
+                             int rows, long elapsedNanos, int callingUid) {
+        long micros = elapsedNanos / 1000;
+
+        int key = uriCode * OP_NAMES.length + operation;
+        UriStats stats = mStats.get(key);
+        if (stats == null) {
+            stats = new UriStats(operation, uriCode, uri);
+            mStats.put(key, stats);
+        }
+        stats.add(rows, micros);
+
+        if (micros >= mSlowThresholdMicros) {
+            mSlowLog[mSlowLogNext] = new SlowOperation(System.currentTimeMillis(), operation,
+                    uriCode, uri, projectionWidth, rows, micros, packageNameForUid(callingUid));
+            mSlowLogNext = (mSlowLogNext + 1) % SLOW_LOG_SIZE;
+            if (mSlowLogCount < SLOW_LOG_SIZE) mSlowLogCount++;
+        }
+    }
+
+    /**
+     * Changes the threshold above which operations are kept in the slow log.
+     *
+     * @param thresholdMillis The new threshold in milliseconds, 0 to log every operation
+     */
+    synchronized void setSlowThresholdMillis(long thresholdMillis) {
+        if (thresholdMillis < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative: " + thresholdMillis);
+        }
+        mSlowThresholdMicros = thresholdMillis * 1000;
+    }
+
+    /* Forgets every histogram and slow operation */
+    synchronized void reset() {
+        mStats.clear();
+        for (int i = 0; i < SLOW_LOG_SIZE; i++) {
+            mSlowLog[i] = null;
+        }
+        mSlowLogNext = 0;
+        mSlowLogCount = 0;
+    }
+
+    /**
+     * Returns one row per operation and URI code seen so far, with the columns of
+     * {@link ProviderStatsEntry#STATS_COLUMNS}.
+     */
+    synchronized Cursor statsCursor() {
+        MatrixCursor cursor = new MatrixCursor(ProviderStatsEntry.STATS_COLUMNS, mStats.size());
+        for (int i = 0; i < mStats.size(); i++) {
+            UriStats stats = mStats.valueAt(i);
+            cursor.addRow(new Object[]{
+                    OP_NAMES[stats.operation],
+                    stats.uriCode,
+                    stats.sampleUri.toString(),
+                    stats.count,
+                    stats.rows,
+                    stats.totalMicros,
+                    stats.maxMicros,
+                    stats.histogramString(),
+            });
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the slow operations we remember, most recent first, with the columns of
+     * {@link ProviderStatsEntry#SLOW_COLUMNS}.
+     */
+    synchronized Cursor slowLogCursor() {
+        MatrixCursor cursor = new MatrixCursor(ProviderStatsEntry.SLOW_COLUMNS, mSlowLogCount);
+        for (int i = 1; i <= mSlowLogCount; i++) {
+            SlowOperation slow = mSlowLog[(mSlowLogNext - i + SLOW_LOG_SIZE) % SLOW_LOG_SIZE];
+            cursor.addRow(new Object[]{
+                    slow.timestamp,
+                    OP_NAMES[slow.operation],
+                    slow.uriCode,
+                    slow.uri.toString(),
+                    slow.projectionWidth,
+                    slow.rows,
+                    slow.micros,
+                    slow.callingPackage,
+            });
+        }
+        return cursor;
+    }
+
+    /**
+     * Writes a human readable report of everything we collected.
+     *
+     * @param writer Where to write the report
+     */
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Provider operations (histogram buckets are < 2^i us):");
+        for (int i = 0; i < mStats.size(); i++) {
+            UriStats stats = mStats.valueAt(i);
+            writer.println("  " + OP_NAMES[stats.operation] + " code=" + stats.uriCode
+                    + " uri=" + stats.sampleUri
+                    + " count=" + stats.count
+                    + " rows=" + stats.rows
+                    + " avg_us=" + (stats.count == 0 ? 0 : stats.totalMicros / stats.count)
+                    + " max_us=" + stats.maxMicros
+                    + " histogram=[" + stats.histogramString() + "]");
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        writer.println("Slow operations (>= " + mSlowThresholdMicros / 1000 + " ms), newest first:");
+        for (int i = 1; i <= mSlowLogCount; i++) {
+            SlowOperation slow = mSlowLog[(mSlowLogNext - i + SLOW_LOG_SIZE) % SLOW_LOG_SIZE];
+            writer.println("  " + format.format(new Date(slow.timestamp))
+                    + " " + OP_NAMES[slow.operation]
+                    + " " + slow.uri
+                    + " columns=" + slow.projectionWidth
+                    + " rows=" + slow.rows
+                    + " us=" + slow.micros
+                    + " caller=" + slow.callingPackage);
+        }
+    }
+
+    private String packageNameForUid(int uid) {
+        String name = mPackageNames.get(uid);
+        if (name == null) {
+            name = mPackageManager.getNameForUid(uid);
+            if (name == null) name = Integer.toString(uid);
+            mPackageNames.put(uid, name);
+        }
+        return name;
+    }
+
+    /* Index of the histogram bucket for a duration: the number of bits needed to write it */
+    static int bucketFor(long micros) {
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, HISTOGRAM_BUCKETS - 1);
+    }
+
+    /* Aggregated timings of one operation on one URI code */
+    private static final class UriStats {
+        final int operation;
+        final int uriCode;
+        final Uri sampleUri;
+        final long[] histogram = new long[HISTOGRAM_BUCKETS];
+        long count;
+        long rows;
+        long totalMicros;
+        long maxMicros;
+
+        UriStats(int operation, int uriCode, Uri sampleUri) {
+            this.operation = operation;
+            this.uriCode = uriCode;
+            this.sampleUri = sampleUri;
+        }
+
+        void add(int rowCount, long micros) {
+            count++;
+            if (rowCount > 0) rows += rowCount;
+            totalMicros += micros;
+            if (micros > maxMicros) maxMicros = micros;
+            histogram[bucketFor(micros)]++;
+        }
+
+        String histogramString() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < histogram.length; i++) {
+                if (i > 0) builder.append(',');
+                builder.append(histogram[i]);
+            }
+            return builder.toString();
+        }
+    }
+
+    /* A single operation that took longer than the threshold */
+    private static final class SlowOperation {
+        final long timestamp;
+        final int operation;
+        final int uriCode;
+        final Uri uri;
+        final int projectionWidth;
+        final int rows;
+        final long micros;
+        final String callingPackage;
+
+        SlowOperation(long timestamp, int operation, int uriCode, Uri uri, int projectionWidth,
+                      int rows, long micros, String callingPackage) {
+            this.timestamp = timestamp;
+            this.operation = operation;
+            this.uriCode = uriCode;
+            this.uri = uri;
+            this.projectionWidth = projectionWidth;
+            this.rows = rows;
+            this.micros = micros;
+            this.callingPackage = callingPackage;
+        }
+    }
+}
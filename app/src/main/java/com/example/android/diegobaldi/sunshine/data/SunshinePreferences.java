@@ -31,6 +31,41 @@ public final class SunshinePreferences {
     public static final String PREF_COORD_LAT = "coord_lat";
     public static final String PREF_COORD_LONG = "coord_long";
 
+    /*
+     * The _ID of the row in the location table that matches the preferred location. It is
+     * resolved by the sync, so it is unknown (-1) until the first sync of a location completes.
+     */
+    public static final String PREF_LOCATION_ID = "location_id";
+
+    /*
+     * What the sync scheduler bases its windows on: when the last sync succeeded, the share of
+     * forecast days each of the last few syncs changed (comma separated, newest last), and when
+     * the user last looked at the weather, in the app or on the watch face. The location and
+     * last day of the last stored forecast tell at startup whether it still covers today. The
+     * number of syncs that failed since the last one that succeeded backs off the retries.
+     */
+    public static final String PREF_LAST_SYNC = "last_sync";
+    public static final String PREF_SYNCED_LOCATION_ID = "synced_location_id";
+    public static final String PREF_SYNCED_THROUGH = "synced_through";
+    public static final String PREF_SYNC_CHANGES = "sync_changes";
+    public static final String PREF_LAST_SEEN = "last_seen";
+    public static final String PREF_SYNC_FAILURES = "sync_failures";
+
+    /*
+     * When the weather is usually looked at, see UsagePredictor: a weight per hour of the day
+     * (comma separated), the local day the weights were last decayed on, and the last hour that
+     * was counted (local day * 24 + hour). Then the local day of the last prefetch and how many
+     * prefetches ran on it.
+     */
+    public static final String PREF_USAGE_HISTOGRAM = "usage_histogram";
+    public static final String PREF_USAGE_DAY = "usage_day";
+    public static final String PREF_USAGE_LAST_HOUR = "usage_last_hour";
+    public static final String PREF_PREFETCH_DAY = "prefetch_day";
+    public static final String PREF_PREFETCH_COUNT = "prefetch_count";
+
+    /* The version of the parser the stored forecast was parsed with, see ResponseArchive */
+    public static final String PREF_PARSER_VERSION = "parser_version";
+
     /**
      * Helper method to handle setting location details in Preferences (city name, latitude,
      * longitude)
@@ -242,4 +277,275 @@ public final class SunshinePreferences {
         editor.putLong(lastNotificationKey, timeOfNotification);
         editor.apply();
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the _ID of the location table row for the preferred location, as last resolved
+     * by the sync.
+     *
+     * @param context Used to access SharedPreferences
+     * @return The location _ID, or -1 if no sync has resolved the preferred location yet
+     */
+    public static long getCurrentLocationId(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_LOCATION_ID, -1);
+    }
+
+    /**
+     * Saves the _ID of the location table row for the preferred location.
+     *
+     * @param context    Used to access SharedPreferences
+     * @param locationId The location _ID
+     */
+    public static void setCurrentLocationId(Context context, long locationId) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putLong(PREF_LOCATION_ID, locationId);
+        editor.apply();
+    }
+
+    /**
+     * Returns when a sync last stored a forecast.
+     *
+     * @param context Used to access SharedPreferences
+     * @return UNIX time of the last successful sync, or 0 if there was none
+     */
+    public static long getLastSyncTime(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_LAST_SYNC, 0);
+    }
+
+    /**
+     * Returns the _ID of the location the last successful sync stored a forecast for.
+     *
+     * @param context Used to access SharedPreferences
+     * @return The _ID of the location, or -1 if there was no sync
+     */
+    public static long getSyncedLocationId(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_SYNCED_LOCATION_ID, -1);
+    }
+
+    /**
+     * Returns the last day of the forecast the last successful sync stored.
+     *
+     * @param context Used to access SharedPreferences
+     * @return Normalized UTC date of the last day, or 0 if there was no sync
+     */
+    public static long getSyncedThrough(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_SYNCED_THROUGH, 0);
+    }
+
+    /**
+     * Remembers a successful sync, what it stored and the share of the forecast's days it
+     * changed, keeping only the most recent shares. This also clears the failed syncs.
+     *
+     * @param context       Used to access SharedPreferences
+     * @param timeOfSync    UNIX time of the sync
+     * @param locationId    The _ID of the location the forecast was stored for
+     * @param syncedThrough Normalized UTC date of the last day of the forecast
+     * @param changedShare  Days changed divided by days in the forecast, from 0 to 1
+     * @param keep          How many of the most recent shares to keep
+     */
+    public static void saveSync(Context context, long timeOfSync, long locationId,
+                                long syncedThrough, float changedShare, int keep) {
+        float[] previous = getRecentSyncChanges(context);
+
+        StringBuilder changes = new StringBuilder();
+        for (int i = Math.max(0, previous.length - keep + 1); i < previous.length; i++) {
+            changes.append(previous[i]).append(',');
+        }
+        changes.append(changedShare);
+
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putLong(PREF_LAST_SYNC, timeOfSync);
+        editor.putLong(PREF_SYNCED_LOCATION_ID, locationId);
+        editor.putLong(PREF_SYNCED_THROUGH, syncedThrough);
+        editor.putString(PREF_SYNC_CHANGES, changes.toString());
+        editor.remove(PREF_SYNC_FAILURES);
+        editor.apply();
+    }
+
+    /**
+     * Returns how many syncs in a row failed since the last one that succeeded.
+     *
+     * @param context Used to access SharedPreferences
+     * @return The number of consecutive failed syncs, 0 if the last one succeeded
+     */
+    public static int getSyncFailures(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getInt(PREF_SYNC_FAILURES, 0);
+    }
+
+    /**
+     * Saves how many syncs in a row failed since the last one that succeeded.
+     *
+     * @param context  Used to access SharedPreferences
+     * @param failures The number of consecutive failed syncs
+     */
+    public static void saveSyncFailures(Context context, int failures) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putInt(PREF_SYNC_FAILURES, failures);
+        editor.apply();
+    }
+
+    /**
+     * Returns the share of the forecast's days each of the last few syncs changed.
+     *
+     * @param context Used to access SharedPreferences
+     * @return The shares, oldest first; empty if no sync has been recorded
+     */
+    public static float[] getRecentSyncChanges(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        String changes = sp.getString(PREF_SYNC_CHANGES, "");
+        if (changes.isEmpty()) return new float[0];
+
+        String[] parts = changes.split(",");
+        float[] shares = new float[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            shares[i] = Float.parseFloat(parts[i]);
+        }
+        return shares;
+    }
+
+    /**
+     * Returns when the user last looked at the weather, in the app or on the watch face.
+     *
+     * @param context Used to access SharedPreferences
+     * @return UNIX time the weather was last seen, or 0 if never
+     */
+    public static long getLastSeenTime(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_LAST_SEEN, 0);
+    }
+
+    /**
+     * Saves the time the user looked at the weather.
+     *
+     * @param context    Used to access SharedPreferences
+     * @param timeOfSeen UNIX time the weather was seen
+     */
+    public static void saveLastSeenTime(Context context, long timeOfSeen) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putLong(PREF_LAST_SEEN, timeOfSeen);
+        editor.apply();
+    }
+
+    /**
+     * Returns the version of the parser the stored forecast was parsed with.
+     *
+     * @param context Used to access SharedPreferences
+     * @return The version, or 0 if it was never saved
+     */
+    public static int getParserVersion(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getInt(PREF_PARSER_VERSION, 0);
+    }
+
+    /**
+     * Saves the version of the parser the stored forecast was parsed with.
+     *
+     * @param context Used to access SharedPreferences
+     * @param version The version of the parser
+     */
+    public static void saveParserVersion(Context context, int version) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putInt(PREF_PARSER_VERSION, version);
+        editor.apply();
+    }
+
+    /**
+     * Returns how often the weather was looked at in each hour of the day, as last saved.
+     *
+     * @param context Used to access SharedPreferences
+     * @return The weights, from midnight on; empty if nothing was recorded
+     */
+    public static float[] getUsageHistogram(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        String histogram = sp.getString(PREF_USAGE_HISTOGRAM, "");
+        if (histogram.isEmpty()) return new float[0];
+
+        String[] parts = histogram.split(",");
+        float[] weights = new float[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            weights[i] = Float.parseFloat(parts[i]);
+        }
+        return weights;
+    }
+
+    /**
+     * Returns the local day the usage histogram was last decayed on.
+     *
+     * @param context Used to access SharedPreferences
+     * @return Days since the epoch in local time, or 0 if nothing was recorded
+     */
+    public static long getUsageDay(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_USAGE_DAY, 0);
+    }
+
+    /**
+     * Returns the last hour counted in the usage histogram.
+     *
+     * @param context Used to access SharedPreferences
+     * @return Hours since the epoch in local time, or -1 if nothing was recorded
+     */
+    public static long getUsageLastHour(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_USAGE_LAST_HOUR, -1);
+    }
+
+    /**
+     * Saves the usage histogram.
+     *
+     * @param context  Used to access SharedPreferences
+     * @param weights  The weight of each hour of the day, from midnight on
+     * @param day      The local day the weights were decayed on
+     * @param lastHour The last hour that was counted
+     */
+    public static void saveUsage(Context context, float[] weights, long day, long lastHour) {
+        StringBuilder histogram = new StringBuilder();
+        for (int i = 0; i < weights.length; i++) {
+            if (i > 0) histogram.append(',');
+            histogram.append(weights[i]);
+        }
+
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putString(PREF_USAGE_HISTOGRAM, histogram.toString());
+        editor.putLong(PREF_USAGE_DAY, day);
+        editor.putLong(PREF_USAGE_LAST_HOUR, lastHour);
+        editor.apply();
+    }
+
+    /**
+     * Returns how many prefetches ran on a day.
+     *
+     * @param context Used to access SharedPreferences
+     * @param day     The local day
+     * @return The number of prefetches
+     */
+    public static int getPrefetchCount(Context context, long day) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_PREFETCH_DAY, -1) == day ? sp.getInt(PREF_PREFETCH_COUNT, 0) : 0;
+    }
+
+    /**
+     * Saves how many prefetches ran on a day.
+     *
+     * @param context Used to access SharedPreferences
+     * @param day     The local day
+     * @param count   The number of prefetches
+     */
+    public static void savePrefetchCount(Context context, long day, int count) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putLong(PREF_PREFETCH_DAY, day);
+        editor.putInt(PREF_PREFETCH_COUNT, count);
+        editor.apply();
+    }
+}
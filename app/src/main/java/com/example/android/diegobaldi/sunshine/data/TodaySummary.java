@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import com.example.android.diegobaldi.sunshine.utilities.SunshineDateUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the condition, high and low temperature for a single day at a single
+ * location.
+ * <p>
+ * The summaries for today and tomorrow of every location are kept in memory and in a small
+ * binary file, and are refreshed by {@link WeatherRepository} whenever weather rows are written.
+ * This lets the notification, the wear sync and any other consumer of "today" read it without
+ * going to SQLite. Keeping tomorrow too means a day rollover simply selects the next entry
+ * instead of serving yesterday's weather; the later days are read from the table when needed.
+ */
+public final class TodaySummary {
+
+    private static final String TAG = TodaySummary.class.getSimpleName();
+
+    /* Name of the file (in the app's private files directory) the summaries are persisted to */
+    private static final String SUMMARY_FILE_NAME = "today_summary.bin";
+
+    /* Bumped whenever the layout of the persisted file changes; mismatches are discarded */
+    private static final int SUMMARY_FILE_VERSION = 3;
+
+    /*
+     * The columns a summary is able to serve. Queries asking for anything else have to go to
+     * the database.
+     */
+    static final String[] SUMMARY_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_LOCATION_ID,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+    };
+
+    /* Today's and tomorrow's summaries, by location _ID and then date. Null until loaded. */
+    private static Map<Long, Map<Long, TodaySummary>> sSummaries;
+
+    /* _ID of the location this summary describes */
+    public final long locationId;
+
+    /* Normalized UTC date this summary describes */
+    public final long date;
+
+    /* Weather ID as returned by API, used to identify the icon to be used */
+    public final int weatherId;
+
+    /* High and low temperatures in °C */
+    public final double high;
+    public final double low;
+
+    public TodaySummary(long locationId, long date, int weatherId, double high, double low) {
+        this.locationId = locationId;
+        this.date = date;
+        this.weatherId = weatherId;
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Returns the summary of today's weather at the preferred location.
+     *
+     * @param context Used to read the preferences, the snapshot and, if needed, the database
+     * @return Today's summary, or null if there is no weather stored for today
+     * @see #getForToday(Context, long)
+     */
+    public static TodaySummary getForToday(Context context) {
+        return getForToday(context, SunshinePreferences.getCurrentLocationId(context));
+    }
+
+    /**
+     * Returns the summary of today's weather at a location. The in-memory snapshot is used when
+     * it covers today; otherwise {@link WeatherRepository} reads today's row once and seeds the
+     * snapshot for the next caller.
+     *
+     * @param context    Used to read the persisted snapshot and, if needed, the database
+     * @param locationId The _ID of the location, or -1 if it isn't known yet
+     * @return Today's summary, or null if there is no weather stored for today
+     */
+    public static TodaySummary getForToday(Context context, long locationId) {
+        return WeatherRepository.getInstance(context).getToday(locationId);
+    }
+
+    /**
+     * Returns the summary for today at a location if it is already known in memory or on disk.
+     * This never touches the database.
+     *
+     * @param context    Used to read the persisted snapshot the first time through
+     * @param locationId The _ID of the location
+     * @return Today's summary, or null if the snapshot doesn't cover today
+     */
+    static TodaySummary peekForToday(Context context, long locationId) {
+        return peek(context, locationId, SunshineDateUtils.getNormalizedUtcDateForToday());
+    }
+
+    /**
+     * Returns the summary for one day at a location if it is already known, see
+     * {@link #peekForToday(Context, long)}.
+     *
+     * @param today The normalized date of the local day to return
+     */
+    static synchronized TodaySummary peek(Context context, long locationId, long today) {
+        ensureLoaded(context);
+
+        Map<Long, TodaySummary> days = sSummaries.get(locationId);
+        return days == null ? null : days.get(today);
+    }
+
+    /**
+     * Merges freshly written weather rows into the snapshot and persists it. Only the rows for
+     * today and tomorrow are kept, and the days before today are dropped, so the snapshot stays
+     * at two days per location however long the forecast written is.
+     *
+     * @param context Used to persist the snapshot
+     * @param values  The rows that were just written to the weather table
+     */
+    static void onWeatherWritten(Context context, ContentValues[] values) {
+        onWeatherWritten(context, values, SunshineDateUtils.getNormalizedUtcDateForToday());
+    }
+
+    /**
+     * Merges freshly written weather rows into the snapshot as of a given day, see
+     * {@link #onWeatherWritten(Context, ContentValues[])}.
+     *
+     * @param today The normalized date of the local day that is today
+     */
+    static synchronized void onWeatherWritten(Context context, ContentValues[] values, long today) {
+        ensureLoaded(context);
+
+        long tomorrow = today + SunshineDateUtils.DAY_IN_MILLIS;
+        boolean changed = dropBefore(today);
+
+        for (ContentValues value : values) {
+            Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+            if (date == null || (date != today && date != tomorrow)) continue;
+
+            Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID);
+            Integer weatherId = value.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+            Double high = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+            Double low = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+
+            /* Rows that can't be summarized were rejected by the database anyway */
+            if (locationId == null || weatherId == null || high == null || low == null) {
+                continue;
+            }
+
+            put(new TodaySummary(locationId, date, weatherId, high, low));
+            changed = true;
+        }
+
+        if (changed) persist(context);
+    }
+
+    /**
+     * Adds a single summary that was read from the database, without rewriting the others.
+     *
+     * @param context Used to persist the snapshot
+     * @param summary The summary to remember
+     */
+    static synchronized void seed(Context context, TodaySummary summary) {
+        ensureLoaded(context);
+
+        put(summary);
+        persist(context);
+    }
+
+    /**
+     * Forgets every summary of one location. Called when the location itself is deleted.
+     *
+     * @param context    Used to persist the snapshot
+     * @param locationId The _ID of the location
+     */
+    static synchronized void invalidate(Context context, long locationId) {
+        ensureLoaded(context);
+
+        if (sSummaries.remove(locationId) != null) {
+            persist(context);
+        }
+    }
+
+    /**
+     * Forgets the summaries of the days that were just deleted from the weather table.
+     *
+     * @param context Used to persist the snapshot
+     * @param deleted The dates of the deleted rows, grouped by location _ID
+     */
+    static synchronized void onWeatherDeleted(Context context, Map<Long, Set<Long>> deleted) {
+        ensureLoaded(context);
+
+        boolean changed = false;
+        for (Map.Entry<Long, Set<Long>> location : deleted.entrySet()) {
+            Map<Long, TodaySummary> days = sSummaries.get(location.getKey());
+            if (days == null) continue;
+
+            for (long date : location.getValue()) {
+                changed |= days.remove(date) != null;
+            }
+            if (days.isEmpty()) sSummaries.remove(location.getKey());
+        }
+
+        if (changed) persist(context);
+    }
+
+    /**
+     * Returns true if every column of the projection can be answered from a summary.
+     *
+     * @param projection The projection of a query, null meaning every column
+     * @return true if a summary can serve the projection
+     */
+    static boolean canServe(String[] projection) {
+        if (projection == null) return true;
+        for (String column : projection) {
+            if (indexOfColumn(column) == -1) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Builds a one-row Cursor for this summary. The caller must check {@link #canServe} first.
+     *
+     * @param projection The columns to return, null meaning {@link #SUMMARY_COLUMNS}
+     * @return A Cursor containing this summary
+     */
+    Cursor toCursor(String[] projection) {
+        if (projection == null) projection = SUMMARY_COLUMNS;
+
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            switch (indexOfColumn(projection[i])) {
+                case 0:
+                    row[i] = locationId;
+                    break;
+                case 1:
+                    row[i] = date;
+                    break;
+                case 2:
+                    row[i] = weatherId;
+                    break;
+                case 3:
+                    row[i] = high;
+                    break;
+                default:
+                    row[i] = low;
+                    break;
+            }
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    /**
+     * Reads a summary from the current row of a Cursor that contains the
+     * {@link #SUMMARY_COLUMNS}.
+     *
+     * @param cursor A Cursor positioned on a weather row
+     * @return The summary for that row
+     */
+    static TodaySummary fromCursor(Cursor cursor) {
+        return new TodaySummary(
+                cursor.getLong(cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID)),
+                cursor.getLong(cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE)),
+                cursor.getInt(cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID)),
+                cursor.getDouble(cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP)),
+                cursor.getDouble(cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP)));
+    }
+
+    /* Inserts or replaces the summary for the same location and date */
+    private static void put(TodaySummary summary) {
+        Map<Long, TodaySummary> days = sSummaries.get(summary.locationId);
+        if (days == null) {
+            days = new HashMap<>();
+            sSummaries.put(summary.locationId, days);
+        }
+        days.put(summary.date, summary);
+    }
+
+    /* Drops the summaries of the days before today, returning whether there were any */
+    private static boolean dropBefore(long today) {
+        boolean dropped = false;
+        Iterator<Map<Long, TodaySummary>> locations = sSummaries.values().iterator();
+        while (locations.hasNext()) {
+            Map<Long, TodaySummary> days = locations.next();
+            Iterator<Long> dates = days.keySet().iterator();
+            while (dates.hasNext()) {
+                if (dates.next() < today) {
+                    dates.remove();
+                    dropped = true;
+                }
+            }
+            if (days.isEmpty()) locations.remove();
+        }
+        return dropped;
+    }
+
+    private static int indexOfColumn(String column) {
+        for (int i = 0; i < SUMMARY_COLUMNS.length; i++) {
+            if (SUMMARY_COLUMNS[i].equals(column)) return i;
+        }
+        return -1;
+    }
+
+    private static void ensureLoaded(Context context) {
+        if (sSummaries == null) {
+            sSummaries = load(context);
+        }
+    }
+
+    /*
+     * The file is a version number, an entry count, and then one fixed size record per day:
+     * location id (long), date (long), weather id (int), high (float) and low (float). Floats
+     * are plenty for temperatures and keep two days for a dozen locations under a kilobyte.
+     */
+    private static Map<Long, Map<Long, TodaySummary>> load(Context context) {
+        sSummaries = new HashMap<>();
+        File file = new File(context.getFilesDir(), SUMMARY_FILE_NAME);
+        if (!file.exists()) return sSummaries;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != SUMMARY_FILE_VERSION) return sSummaries;
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long locationId = in.readLong();
+                long date = in.readLong();
+                put(new TodaySummary(
+                        locationId, date, in.readInt(), in.readFloat(), in.readFloat()));
+            }
+            return sSummaries;
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable today summary", e);
+            sSummaries.clear();
+            return sSummaries;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void persist(Context context) {
+        File file = new File(context.getFilesDir(), SUMMARY_FILE_NAME);
+        File tmp = new File(context.getFilesDir(), SUMMARY_FILE_NAME + ".tmp");
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            int count = 0;
+            for (Map<Long, TodaySummary> days : sSummaries.values()) {
+                count += days.size();
+            }
+
+            out.writeInt(SUMMARY_FILE_VERSION);
+            out.writeInt(count);
+            for (Map<Long, TodaySummary> days : sSummaries.values()) {
+                for (TodaySummary summary : days.values()) {
+                    out.writeLong(summary.locationId);
+                    out.writeLong(summary.date);
+                    out.writeInt(summary.weatherId);
+                    out.writeFloat((float) summary.high);
+                    out.writeFloat((float) summary.low);
+                }
+            }
+            out.close();
+            out = null;
+
+            /* Rename so a reader never sees a half written file */
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "Unable to replace " + file);
+            }
+        } catch (IOException e) {
+            /* The in-memory snapshot is still valid, we will simply reload from SQL next time */
+            Log.w(TAG, "Unable to persist today summary", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
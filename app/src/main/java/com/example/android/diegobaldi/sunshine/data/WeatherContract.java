@@ -15,6 +15,7 @@
  */
 package com.example.android.diegobaldi.sunshine.data;
 
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -56,6 +57,258 @@ public class WeatherContract {
      */
     public static final String PATH_WEATHER = "weather";
 
+    /*
+     * Appended to the weather path to ask for the summary of today's forecast, which is served
+     * from memory whenever possible (see TodaySummary).
+     */
+    public static final String PATH_TODAY = "today";
+
+    /*
+     * Appended to a location's weather path to ask for a summary of its forecast instead of the
+     * rows themselves, computed by SQLite (see SummaryEntry), e.g.
+     *
+     *     content://com.example.android.diegobaldi.sunshine/location/3/weather/weekly?from=<d>&to=<d>
+     */
+    public static final String PATH_EXTREMES = "extremes";
+    public static final String PATH_WEEKLY = "weekly";
+    public static final String PATH_CONDITIONS = "conditions";
+
+    /*
+     * Path for the saved locations. Each location's forecast lives underneath it, e.g.
+     *
+     *     content://com.example.android.diegobaldi.sunshine/location/3/weather/1472214172
+     */
+    public static final String PATH_LOCATION = "location";
+
+    /*
+     * Appended to a location to get its forecast in 3 hour steps, e.g.
+     *
+     *     content://com.example.android.diegobaldi.sunshine/location/3/hourly?from=<t>&to=<t>
+     */
+    public static final String PATH_HOURLY = "hourly";
+
+    /* Path for streaming whole tables in and out of Sunshine, see TransferEntry */
+    public static final String PATH_TRANSFER = "transfer";
+
+    /* Path for the provider's own diagnostics, see ProviderStatsEntry */
+    public static final String PATH_DEBUG = "debug";
+
+    /*
+     * Lists of rows don't watch the URI they queried. Observers of a URI are also woken by
+     * changes to any URI underneath it, so a list watching .../weather would reload once for
+     * every day a sync touched. Instead, forecast lists watch
+     *
+     *     content://com.example.android.diegobaldi.sunshine/changes/forecast/3
+     *
+     * which is notified once per write to location 3, while a single day watches its own date
+     * URI, which is only notified when that day's row actually changed. Lists that span every
+     * location watch .../changes/forecast, the parent of all of these.
+     */
+    public static final String PATH_CHANGES = "changes";
+
+    /* Watched by lists of saved locations */
+    public static final Uri LOCATION_CHANGES_URI = BASE_CONTENT_URI.buildUpon()
+            .appendPath(PATH_CHANGES)
+            .appendPath("locations")
+            .build();
+
+    /**
+     * Builds the URI that is notified once whenever the forecast of a location is written.
+     *
+     * @param locationId The _ID of the location, or -1 for the forecasts of every location
+     * @return The change URI of that forecast
+     */
+    public static Uri buildForecastChangesUri(long locationId) {
+        Uri.Builder builder = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_CHANGES)
+                .appendPath("forecast");
+        if (locationId != -1) {
+            builder.appendPath(Long.toString(locationId));
+        }
+        return builder.build();
+    }
+
+    /*
+     * Query parameters for reading a forecast URI one page at a time. Without them a query
+     * returns every matching row. A page is either
+     *
+     *     .../weather?limit=20&offset=40     rows 40 to 59 of the query's order, or
+     *     .../weather?limit=20&after=<date>  the 20 days following <date>, by date ascending
+     *
+     * The second form (keyset paging) costs the same on every page, while an offset makes
+     * SQLite step over all the rows before it, so prefer it for long histories. It is only
+     * accepted on a location's forecast URI: across every location the same date repeats, and
+     * paging by date alone would skip rows.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+    public static final String QUERY_PARAMETER_OFFSET = "offset";
+    public static final String QUERY_PARAMETER_AFTER = "after";
+
+    /**
+     * Restricts a query on a forecast URI to a window of rows.
+     *
+     * @param uri    A forecast URI, such as {@link WeatherEntry#CONTENT_URI}
+     * @param limit  The maximum number of rows to return
+     * @param offset The number of rows to skip
+     * @return The URI of that window
+     */
+    public static Uri buildPageUri(Uri uri, int limit, int offset) {
+        return uri.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_LIMIT, Integer.toString(limit))
+                .appendQueryParameter(QUERY_PARAMETER_OFFSET, Integer.toString(offset))
+                .build();
+    }
+
+    /**
+     * Restricts a query on a location's forecast to the days following a date, ordered by date.
+     *
+     * @param uri       A location's forecast URI, see {@link LocationEntry#buildWeatherUri(long)}
+     * @param limit     The maximum number of rows to return
+     * @param afterDate The normalized date of the last row of the previous page
+     * @return The URI of the next page
+     */
+    public static Uri buildPageAfterUri(Uri uri, int limit, long afterDate) {
+        return uri.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_LIMIT, Integer.toString(limit))
+                .appendQueryParameter(QUERY_PARAMETER_AFTER, Long.toString(afterDate))
+                .build();
+    }
+
+    /*
+     * Query parameters restricting an hourly URI to the entries with from <= time < to, both in
+     * UTC milliseconds, or a summary URI to the days with from <= date < to. Either may be left
+     * out to leave that end of the range open.
+     */
+    public static final String QUERY_PARAMETER_FROM = "from";
+    public static final String QUERY_PARAMETER_TO = "to";
+
+    /* Inner class that defines the table contents of the location table */
+    public static final class LocationEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the location table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_LOCATION)
+                .build();
+
+        /* Used internally as the name of our location table. */
+        public static final String TABLE_NAME = "location";
+
+        /*
+         * The location setting string is what will be sent to the weather server as the location
+         * query. It is unique, so saving the same place twice reuses its row.
+         */
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+
+        /* Coordinates of the location as returned by the weather server, 0 until first synced */
+        public static final String COLUMN_COORD_LAT = "coord_lat";
+        public static final String COLUMN_COORD_LONG = "coord_long";
+
+        /**
+         * Builds a URI for a single saved location.
+         *
+         * @param locationId The _ID of the location
+         * @return Uri of the location
+         */
+        public static Uri buildLocationUri(long locationId) {
+            return ContentUris.withAppendedId(CONTENT_URI, locationId);
+        }
+
+        /**
+         * Builds a URI for the whole forecast of a single saved location. Queries and deletes on
+         * this URI only ever touch that location's rows.
+         *
+         * @param locationId The _ID of the location
+         * @return Uri of the location's forecast
+         */
+        public static Uri buildWeatherUri(long locationId) {
+            return buildLocationUri(locationId).buildUpon()
+                    .appendPath(PATH_WEATHER)
+                    .build();
+        }
+
+        /**
+         * Builds a URI for a single day of a saved location's forecast. We assume a normalized
+         * date is passed to this method.
+         *
+         * @param locationId The _ID of the location
+         * @param date       Normalized date in milliseconds
+         * @return Uri to query details about a single weather entry of that location
+         */
+        public static Uri buildWeatherUriWithDate(long locationId, long date) {
+            return buildWeatherUri(locationId).buildUpon()
+                    .appendPath(Long.toString(date))
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the condition, high and low of a saved location's forecast for today.
+         *
+         * @param locationId The _ID of the location
+         * @return Uri of today's summary for that location
+         */
+        public static Uri buildTodayUri(long locationId) {
+            return buildWeatherUri(locationId).buildUpon()
+                    .appendPath(PATH_TODAY)
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the whole hourly forecast of a single saved location.
+         *
+         * @param locationId The _ID of the location
+         * @return Uri of the location's hourly forecast
+         */
+        public static Uri buildHourlyUri(long locationId) {
+            return buildLocationUri(locationId).buildUpon()
+                    .appendPath(PATH_HOURLY)
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the entries of a saved location's hourly forecast within a time range.
+         *
+         * @param locationId The _ID of the location
+         * @param fromMillis The first time to include, in UTC milliseconds
+         * @param toMillis   The first time to leave out, in UTC milliseconds
+         * @return Uri of that part of the hourly forecast
+         */
+        public static Uri buildHourlyRangeUri(long locationId, long fromMillis, long toMillis) {
+            return buildHourlyUri(locationId).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_FROM, Long.toString(fromMillis))
+                    .appendQueryParameter(QUERY_PARAMETER_TO, Long.toString(toMillis))
+                    .build();
+        }
+
+        /**
+         * Builds a URI for a summary of the days from <= date < to of a saved location's
+         * forecast. See {@link SummaryEntry} for the summaries and their columns.
+         *
+         * @param locationId The _ID of the location
+         * @param summary    The path of the summary
+         * @param fromDate   The first normalized date to include
+         * @param toDate     The first normalized date to leave out
+         * @return Uri of the summary
+         */
+        public static Uri buildSummaryUri(long locationId, String summary,
+                                          long fromDate, long toDate) {
+            return buildWeatherUri(locationId).buildUpon()
+                    .appendPath(summary)
+                    .appendQueryParameter(QUERY_PARAMETER_FROM, Long.toString(fromDate))
+                    .appendQueryParameter(QUERY_PARAMETER_TO, Long.toString(toDate))
+                    .build();
+        }
+
+        /**
+         * Extracts the location _ID from any URI underneath {@link #CONTENT_URI}.
+         *
+         * @param uri A URI such as content://.../location/3/weather
+         * @return The location _ID (3 in the example above)
+         */
+        public static long getLocationIdFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(1));
+        }
+    }
+
     /* Inner class that defines the table contents of the weather table */
     public static final class WeatherEntry implements BaseColumns {
 
@@ -64,9 +317,17 @@ public class WeatherContract {
                 .appendPath(PATH_WEATHER)
                 .build();
 
+        /* The URI used to query the condition, high and low of today's forecast */
+        public static final Uri CONTENT_URI_TODAY = CONTENT_URI.buildUpon()
+                .appendPath(PATH_TODAY)
+                .build();
+
         /* Used internally as the name of our weather table. */
         public static final String TABLE_NAME = "weather";
 
+        /* Used internally as the name of the covering index the forecast summaries read */
+        public static final String INDEX_SUMMARY = "weather_summary";
+
         /*
          * The date column will store the UTC date that correlates to the local date for which
          * each particular weather row represents. For example, if you live in the Eastern
@@ -85,6 +346,12 @@ public class WeatherContract {
          */
         public static final String COLUMN_DATE = "date";
 
+        /*
+         * The _ID of the location (in the location table) this row is a forecast for. Together
+         * with the date, it uniquely identifies a row.
+         */
+        public static final String COLUMN_LOCATION_ID = "location_id";
+
         /* Weather ID as returned by API, used to identify the icon to be used */
         public static final String COLUMN_WEATHER_ID = "weather_id";
 
@@ -131,8 +398,239 @@ public class WeatherContract {
          * @return The selection part of the weather query for today onwards
          */
         public static String getSqlSelectForTodayOnwards() {
-            long normalizedUtcNow = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+            long normalizedUtcNow = SunshineDateUtils.getNormalizedUtcDateForToday();
             return WeatherContract.WeatherEntry.COLUMN_DATE + " >= " + normalizedUtcNow;
         }
     }
-}
\ No newline at end of file
+
+    /*
+     * Inner class that defines the table contents of the hourly table, the forecast in 3 hour
+     * steps. A location has a few hundred rows at most, so the values are stored as small
+     * integers: tenths of a degree or of a m/s instead of floats take 1 to 3 bytes a value
+     * instead of 8. Use {@link #toTenths(double)} and {@link #fromTenths(int)} to convert.
+     * Rows are only reachable through {@link LocationEntry#buildHourlyUri(long)}.
+     */
+    public static final class HourlyEntry implements BaseColumns {
+
+        /* Used internally as the name of our hourly table. */
+        public static final String TABLE_NAME = "hourly";
+
+        /* The _ID of the location this row is a forecast for */
+        public static final String COLUMN_LOCATION_ID = "location_id";
+
+        /*
+         * The start of the 3 hours this row describes, in UTC milliseconds. Together with the
+         * location, it uniquely identifies a row.
+         */
+        public static final String COLUMN_TIME = "time";
+
+        /* Weather ID as returned by API, used to identify the icon to be used */
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+
+        /* Temperature in tenths of a °C */
+        public static final String COLUMN_TEMP = "temp";
+
+        /* Humidity in whole percent */
+        public static final String COLUMN_HUMIDITY = "humidity";
+
+        /* Pressure in whole hPa */
+        public static final String COLUMN_PRESSURE = "pressure";
+
+        /* Wind speed in tenths of a m/s */
+        public static final String COLUMN_WIND_SPEED = "wind";
+
+        /* Meteorological degrees the wind blows from, whole degrees */
+        public static final String COLUMN_DEGREES = "degrees";
+
+        /**
+         * Converts a value to the tenths the hourly table stores it as.
+         *
+         * @param value A temperature or wind speed
+         * @return The value in tenths, rounded
+         */
+        public static int toTenths(double value) {
+            return (int) Math.round(value * 10);
+        }
+
+        /**
+         * Converts a value the hourly table stores as tenths back to its unit.
+         *
+         * @param tenths A value from {@link #COLUMN_TEMP} or {@link #COLUMN_WIND_SPEED}
+         * @return The value in °C or m/s
+         */
+        public static double fromTenths(int tenths) {
+            return tenths / 10.0;
+        }
+    }
+
+    /*
+     * Inner class that defines the columns of the forecast summaries. These are not tables; each
+     * is a single aggregate query over the weather table, answered from its summary index, so a
+     * summary of any range costs a handful of rows instead of the whole forecast. Temperatures
+     * are in °C, like the weather table's.
+     * <p>
+     * PATH_EXTREMES: one row, with COLUMN_MIN_TEMP, COLUMN_MAX_TEMP and COLUMN_DAY_COUNT.
+     * <p>
+     * PATH_WEEKLY: one row per week, by week ascending, with COLUMN_WEEK_START,
+     * COLUMN_MEAN_MIN_TEMP, COLUMN_MEAN_MAX_TEMP and COLUMN_DAY_COUNT.
+     * <p>
+     * PATH_CONDITIONS: one row per condition group, by group ascending, with
+     * COLUMN_CONDITION_GROUP and COLUMN_DAY_COUNT.
+     */
+    public static final class SummaryEntry {
+
+        /* Lowest low and highest high of the range; null if it holds no days */
+        public static final String COLUMN_MIN_TEMP = "min";
+        public static final String COLUMN_MAX_TEMP = "max";
+
+        /* The Monday (UTC) a week starts on, as a normalized date */
+        public static final String COLUMN_WEEK_START = "week_start";
+
+        /* Mean low and mean high of the days of a week */
+        public static final String COLUMN_MEAN_MIN_TEMP = "mean_min";
+        public static final String COLUMN_MEAN_MAX_TEMP = "mean_max";
+
+        /* One of the CONDITION_GROUP constants below */
+        public static final String COLUMN_CONDITION_GROUP = "condition_group";
+
+        /* Number of days the row summarizes */
+        public static final String COLUMN_DAY_COUNT = "day_count";
+
+        /*
+         * Weather condition groups, named after the lowest weather ID of each. Every other
+         * weather ID belongs to the group of its hundreds, except that clear sky (800) and
+         * clouds (801 to 804) are kept apart.
+         */
+        public static final int CONDITION_GROUP_THUNDERSTORM = 200;
+        public static final int CONDITION_GROUP_DRIZZLE = 300;
+        public static final int CONDITION_GROUP_RAIN = 500;
+        public static final int CONDITION_GROUP_SNOW = 600;
+        public static final int CONDITION_GROUP_ATMOSPHERE = 700;
+        public static final int CONDITION_GROUP_CLEAR = 800;
+        public static final int CONDITION_GROUP_CLOUDS = 801;
+        public static final int CONDITION_GROUP_EXTREME = 900;
+    }
+
+    /*
+     * Inner class that defines the files for moving weather data in and out of Sunshine in bulk.
+     * Open one of the URIs below with ContentResolver#openInputStream to export a whole table,
+     * or with ContentResolver#openOutputStream to import rows into it. Imported rows replace the
+     * rows for the same location and date (or time). A file carries the saved locations along
+     * with the rows, so on another device the rows end up under that device's _ID of the same
+     * location, which is saved if it wasn't.
+     * <p>
+     * The data is streamed through a pipe while it is read or written, so even millions of rows
+     * never sit in memory at once. Files are CSV with a header line of column names unless the
+     * URI asks for {@link #FORMAT_BINARY}, which is smaller and faster to read back.
+     */
+    public static final class TransferEntry {
+
+        /* Every row of the weather table */
+        public static final Uri CONTENT_URI_WEATHER = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_TRANSFER)
+                .appendPath(PATH_WEATHER)
+                .build();
+
+        /* Every row of the hourly table */
+        public static final Uri CONTENT_URI_HOURLY = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_TRANSFER)
+                .appendPath(PATH_HOURLY)
+                .build();
+
+        /* Query parameter choosing the format of a transfer, FORMAT_CSV if left out */
+        public static final String QUERY_PARAMETER_FORMAT = "format";
+
+        public static final String FORMAT_CSV = "csv";
+        public static final String FORMAT_BINARY = "binary";
+
+        /**
+         * Builds a transfer URI for a format.
+         *
+         * @param uri    {@link #CONTENT_URI_WEATHER} or {@link #CONTENT_URI_HOURLY}
+         * @param format {@link #FORMAT_CSV} or {@link #FORMAT_BINARY}
+         * @return Uri of the table in that format
+         */
+        public static Uri buildTransferUri(Uri uri, String format) {
+            return uri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_FORMAT, format)
+                    .build();
+        }
+    }
+
+    /*
+     * Inner class that defines the diagnostics WeatherProvider keeps about its own operations.
+     * These are not tables; the rows are built from memory on every query.
+     */
+    public static final class ProviderStatsEntry {
+
+        /* One row per operation and URI code, delete on this URI clears the statistics */
+        public static final Uri CONTENT_URI_STATS = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_DEBUG)
+                .appendPath("stats")
+                .build();
+
+        /*
+         * One row per recent slow operation, newest first. Update this URI with
+         * COLUMN_THRESHOLD_MILLIS to change what counts as slow.
+         */
+        public static final Uri CONTENT_URI_SLOW = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_DEBUG)
+                .appendPath("slow")
+                .build();
+
+        /* query, insert, bulkInsert, update, delete, export or import */
+        public static final String COLUMN_OPERATION = "operation";
+
+        /* The code WeatherProvider's UriMatcher returned */
+        public static final String COLUMN_URI_CODE = "uri_code";
+
+        /* The first URI seen for that code, or the URI of a slow operation */
+        public static final String COLUMN_URI = "uri";
+
+        /* Operations, rows read or written, and their total and longest wall time */
+        public static final String COLUMN_COUNT = "count";
+        public static final String COLUMN_ROWS = "rows";
+        public static final String COLUMN_TOTAL_MICROS = "total_micros";
+        public static final String COLUMN_MAX_MICROS = "max_micros";
+
+        /* Comma separated counts; bucket i holds operations shorter than 2^i microseconds */
+        public static final String COLUMN_HISTOGRAM = "histogram";
+
+        /* When a slow operation finished, in milliseconds since the epoch */
+        public static final String COLUMN_TIMESTAMP = "timestamp";
+
+        /* Number of columns a slow query asked for, 0 for all columns or for writes */
+        public static final String COLUMN_PROJECTION_WIDTH = "projection_width";
+
+        /* Wall time of a slow operation */
+        public static final String COLUMN_MICROS = "micros";
+
+        /* The package that made a slow operation */
+        public static final String COLUMN_CALLING_PACKAGE = "calling_package";
+
+        /* Only used to update the slow operation threshold */
+        public static final String COLUMN_THRESHOLD_MILLIS = "threshold_millis";
+
+        public static final String[] STATS_COLUMNS = {
+                COLUMN_OPERATION,
+                COLUMN_URI_CODE,
+                COLUMN_URI,
+                COLUMN_COUNT,
+                COLUMN_ROWS,
+                COLUMN_TOTAL_MICROS,
+                COLUMN_MAX_MICROS,
+                COLUMN_HISTOGRAM,
+        };
+
+        public static final String[] SLOW_COLUMNS = {
+                COLUMN_TIMESTAMP,
+                COLUMN_OPERATION,
+                COLUMN_URI_CODE,
+                COLUMN_URI,
+                COLUMN_PROJECTION_WIDTH,
+                COLUMN_ROWS,
+                COLUMN_MICROS,
+                COLUMN_CALLING_PACKAGE,
+        };
+    }
+}
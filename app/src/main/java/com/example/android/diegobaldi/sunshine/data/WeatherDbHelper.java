@@ -18,7 +18,10 @@ package com.example.android.diegobaldi.sunshine.data;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
 
+import com.example.android.diegobaldi.sunshine.data.WeatherContract.HourlyEntry;
+import com.example.android.diegobaldi.sunshine.data.WeatherContract.LocationEntry;
 import com.example.android.diegobaldi.sunshine.data.WeatherContract.WeatherEntry;
 
 /**
@@ -43,10 +46,21 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      * use-case, we wanted to watch out for it and warn you what could happen if you mistakenly
      * version your databases.
      */
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 6;
+
+    private static final String TAG = WeatherDbHelper.class.getSimpleName();
+
+    /*
+     * Every schema change from version 3 onwards is described by a WeatherDbMigration that
+     * carries the existing rows over to the new schema. When you bump DATABASE_VERSION, add the
+     * step that gets an existing database from the previous version to the new one to
+     * WeatherDbMigrations, and make the same change to the CREATE statements in onCreate.
+     */
+    private final WeatherDbMigration[] mMigrations;
 
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mMigrations = WeatherDbMigrations.all(context);
     }
 
     /**
@@ -58,6 +72,24 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
 
+        /*
+         * The location table holds every place the user has saved. The location setting is what
+         * we send to the weather server, so it is unique: saving the same place twice has to
+         * reuse the existing row and its forecast.
+         */
+        final String SQL_CREATE_LOCATION_TABLE =
+
+                "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+
+                LocationEntry._ID                     + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                LocationEntry.COLUMN_LOCATION_SETTING + " TEXT NOT NULL, "                     +
+
+                LocationEntry.COLUMN_COORD_LAT        + " REAL NOT NULL DEFAULT 0, "           +
+                LocationEntry.COLUMN_COORD_LONG       + " REAL NOT NULL DEFAULT 0, "           +
+
+                " UNIQUE (" + LocationEntry.COLUMN_LOCATION_SETTING + "));";
+
         /*
          * This String will contain a simple SQL statement that will create a table that will
          * cache our weather data.
@@ -73,6 +105,8 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                  */
                 WeatherEntry._ID               + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
 
+                WeatherEntry.COLUMN_LOCATION_ID + " INTEGER NOT NULL, "                +
+
                 WeatherEntry.COLUMN_DATE       + " INTEGER NOT NULL, "                 +
 
                 WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL,"                  +
@@ -87,27 +121,77 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 WeatherEntry.COLUMN_DEGREES    + " REAL NOT NULL, "                    +
 
                 /*
-                 * To ensure this table can only contain one weather entry per date, we declare
-                 * the date column to be unique. We also specify "ON CONFLICT REPLACE". This tells
-                 * SQLite that if we have a weather entry for a certain date and we attempt to
-                 * insert another weather entry with that date, we replace the old weather entry.
+                 * To ensure this table can only contain one weather entry per date and location,
+                 * we declare the pair to be unique. We also specify "ON CONFLICT REPLACE". This
+                 * tells SQLite that if we have a weather entry for a certain date and location and
+                 * we attempt to insert another weather entry for it, we replace the old entry.
+                 *
+                 * The unique constraint is backed by an index that leads with the location, which
+                 * is exactly what per-location queries, date ranges and deletes need. It stays
+                 * small even with dozens of saved cities, since each only keeps a few weeks.
                  */
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+                " UNIQUE (" + WeatherEntry.COLUMN_LOCATION_ID + ", " +
+                WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+        /*
+         * The hourly table holds the forecast in 3 hour steps. Its values are small integers
+         * (see HourlyEntry) and it has no AUTOINCREMENT, which would add a write to
+         * sqlite_sequence for every row. The unique (location, time) index is what hourly range
+         * queries are answered from.
+         */
+        final String SQL_CREATE_HOURLY_TABLE =
+
+                "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+
+                HourlyEntry._ID                + " INTEGER PRIMARY KEY, " +
+
+                HourlyEntry.COLUMN_LOCATION_ID + " INTEGER NOT NULL, "    +
+                HourlyEntry.COLUMN_TIME        + " INTEGER NOT NULL, "    +
+
+                HourlyEntry.COLUMN_WEATHER_ID  + " INTEGER NOT NULL, "    +
+                HourlyEntry.COLUMN_TEMP        + " INTEGER NOT NULL, "    +
+                HourlyEntry.COLUMN_HUMIDITY    + " INTEGER NOT NULL, "    +
+                HourlyEntry.COLUMN_PRESSURE    + " INTEGER NOT NULL, "    +
+                HourlyEntry.COLUMN_WIND_SPEED  + " INTEGER NOT NULL, "    +
+                HourlyEntry.COLUMN_DEGREES     + " INTEGER NOT NULL, "    +
+
+                " UNIQUE (" + HourlyEntry.COLUMN_LOCATION_ID + ", " +
+                HourlyEntry.COLUMN_TIME + ") ON CONFLICT REPLACE);";
+
+        /*
+         * The forecast summaries (see SummaryEntry) only read these columns, so SQLite answers
+         * them from this index alone and never touches the table's rows. It leads with the
+         * same (location, date) pair as the unique index, so a range is a single seek.
+         */
+        final String SQL_CREATE_WEATHER_SUMMARY_INDEX =
+
+                "CREATE INDEX " + WeatherEntry.INDEX_SUMMARY + " ON " + WeatherEntry.TABLE_NAME +
+                " (" + WeatherEntry.COLUMN_LOCATION_ID + ", " + WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_WEATHER_ID + ", " + WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                WeatherEntry.COLUMN_MAX_TEMP + ");";
 
         /*
-         * After we've spelled out our SQLite table creation statement above, we actually execute
+         * After we've spelled out our SQLite table creation statements above, we actually execute
          * that SQL with the execSQL method of our SQLite database object.
          */
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_SUMMARY_INDEX);
     }
 
     /**
-     * This database is only a cache for online data, so its upgrade policy is simply to discard
-     * the data and call through to onCreate to recreate the table. Note that this only fires if
-     * you change the version number for your database (in our case, DATABASE_VERSION). It does NOT
-     * depend on the version number for your application found in your app/build.gradle file. If
-     * you want to update the schema without wiping data, commenting out the current body of this
-     * method should be your top priority before modifying this method.
+     * Upgrades the schema by running the steps from {@link WeatherDbMigrations} in order, so the
+     * weather we already have survives an app update and doesn't have to be downloaded again.
+     * Note that this only fires if you change the version number for your database (in our case,
+     * DATABASE_VERSION). It does NOT depend on the version number for your application found in
+     * your app/build.gradle file.
+     * <p>
+     * SQLiteOpenHelper calls this inside a transaction together with the version bump, so an
+     * interrupted upgrade is rolled back and simply starts over on the next open. Only when there
+     * is no migration path (a version that predates the migrations) do we fall back to discarding
+     * the data, which is then fetched again on the next sync. A step that fails is rethrown, so
+     * the upgrade is rolled back and retried on the next open instead of wiping the weather.
      *
      * @param sqLiteDatabase Database that is being upgraded
      * @param oldVersion     The old database version
@@ -115,7 +199,14 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        if (WeatherDbMigrator.findPath(mMigrations, oldVersion, newVersion) == null) {
+            Log.w(TAG, "No migration path from " + oldVersion + " to " + newVersion
+                    + ", recreating the database");
+            WeatherDbMigrator.dropAllTables(sqLiteDatabase);
+            onCreate(sqLiteDatabase);
+            return;
+        }
+
+        WeatherDbMigrator.migrate(sqLiteDatabase, mMigrations, oldVersion, newVersion);
     }
-}
\ No newline at end of file
+}
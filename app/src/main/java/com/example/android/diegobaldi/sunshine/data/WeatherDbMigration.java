@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A single step that moves the weather database schema from one version to the next while
+ * keeping the data that is already stored.
+ * <p>
+ * Steps are run by {@link WeatherDbMigrator} inside the transaction SQLiteOpenHelper opens for
+ * onUpgrade, so a step either fully applies together with the version bump or not at all. If the
+ * process dies half way through an upgrade, the next open starts again from the old version. For
+ * that reason a step must only rely on the schema of its start version, never on the state left
+ * behind by an earlier, aborted attempt.
+ */
+abstract class WeatherDbMigration {
+
+    /* The schema version this step upgrades from */
+    final int startVersion;
+
+    /* The schema version the database is at once this step has run */
+    final int endVersion;
+
+    WeatherDbMigration(int startVersion, int endVersion) {
+        if (endVersion <= startVersion) {
+            throw new IllegalArgumentException(
+                    "Migration must move forward: " + startVersion + " -> " + endVersion);
+        }
+        this.startVersion = startVersion;
+        this.endVersion = endVersion;
+    }
+
+    /**
+     * Applies this step to the database. Implementations should only issue SQL and must not
+     * open or end transactions themselves.
+     *
+     * @param db The database being upgraded, at {@link #startVersion}
+     */
+    abstract void migrate(SQLiteDatabase db);
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + startVersion + " -> " + endVersion + ")";
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * The schema migrations of the weather database, one factory method per step.
+ * <p>
+ * Each step spells out its SQL in full instead of reusing the CREATE statements from
+ * {@link WeatherDbHelper#onCreate}, because those describe the latest schema and will keep
+ * changing, while a step has to produce exactly the schema of its end version forever.
+ */
+final class WeatherDbMigrations {
+
+    private WeatherDbMigrations() {
+    }
+
+    /**
+     * Returns every migration step we know about.
+     *
+     * @param context Used by steps that need the user's preferences
+     * @return All migration steps
+     */
+    static WeatherDbMigration[] all(Context context) {
+        return new WeatherDbMigration[]{
+                addLocations(context),
+                addHourly(),
+                addSummaryIndex(),
+        };
+    }
+
+    /**
+     * Version 4 introduces the location table and keys every forecast row by (location, date).
+     * The rows we already have belong to the location currently set in the preferences, so we
+     * create that location and move them over to it. The next sync of that location reuses the
+     * row, as locations are unique by their setting.
+     *
+     * @param context Used to read the preferred location
+     * @return The 3 to 4 migration step
+     */
+    static WeatherDbMigration addLocations(final Context context) {
+        return new WeatherDbMigration(3, 4) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("CREATE TABLE location ("
+                        + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                        + "location_setting TEXT NOT NULL, "
+                        + "coord_lat REAL NOT NULL DEFAULT 0, "
+                        + "coord_long REAL NOT NULL DEFAULT 0, "
+                        + " UNIQUE (location_setting));");
+
+                double[] coordinates = SunshinePreferences.getLocationCoordinates(context);
+                ContentValues location = new ContentValues();
+                location.put("location_setting",
+                        SunshinePreferences.getPreferredWeatherLocation(context));
+                location.put("coord_lat", coordinates[0]);
+                location.put("coord_long", coordinates[1]);
+                long locationId = db.insertOrThrow("location", null, location);
+
+                /* SQLite can't change a table's constraints in place, so we rebuild it */
+                db.execSQL("CREATE TABLE weather_v4 ("
+                        + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                        + "location_id INTEGER NOT NULL, "
+                        + "date INTEGER NOT NULL, "
+                        + "weather_id INTEGER NOT NULL,"
+                        + "min REAL NOT NULL, "
+                        + "max REAL NOT NULL, "
+                        + "humidity REAL NOT NULL, "
+                        + "pressure REAL NOT NULL, "
+                        + "wind REAL NOT NULL, "
+                        + "degrees REAL NOT NULL, "
+                        + " UNIQUE (location_id, date) ON CONFLICT REPLACE);");
+                db.execSQL("INSERT INTO weather_v4 (_id, location_id, date, weather_id, min, max, "
+                        + "humidity, pressure, wind, degrees) "
+                        + "SELECT _id, " + locationId + ", date, weather_id, min, max, "
+                        + "humidity, pressure, wind, degrees FROM weather");
+                db.execSQL("DROP TABLE weather");
+                db.execSQL("ALTER TABLE weather_v4 RENAME TO weather");
+            }
+        };
+    }
+
+    /**
+     * Version 5 adds the hourly table. There is nothing to carry over, the next sync fills it.
+     *
+     * @return The 4 to 5 migration step
+     */
+    static WeatherDbMigration addHourly() {
+        return new WeatherDbMigration(4, 5) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("CREATE TABLE hourly ("
+                        + "_id INTEGER PRIMARY KEY, "
+                        + "location_id INTEGER NOT NULL, "
+                        + "time INTEGER NOT NULL, "
+                        + "weather_id INTEGER NOT NULL, "
+                        + "temp INTEGER NOT NULL, "
+                        + "humidity INTEGER NOT NULL, "
+                        + "pressure INTEGER NOT NULL, "
+                        + "wind INTEGER NOT NULL, "
+                        + "degrees INTEGER NOT NULL, "
+                        + " UNIQUE (location_id, time) ON CONFLICT REPLACE);");
+            }
+        };
+    }
+
+    /**
+     * Version 6 adds the covering index the forecast summaries are answered from. SQLite fills
+     * it from the rows we already have.
+     *
+     * @return The 5 to 6 migration step
+     */
+    static WeatherDbMigration addSummaryIndex() {
+        return new WeatherDbMigration(5, 6) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("CREATE INDEX weather_summary ON weather "
+                        + "(location_id, date, weather_id, min, max);");
+            }
+        };
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the ordered chain of {@link WeatherDbMigration} steps needed to bring a database from one
+ * schema version to another.
+ */
+final class WeatherDbMigrator {
+
+    private static final String TAG = WeatherDbMigrator.class.getSimpleName();
+
+    private WeatherDbMigrator() {
+    }
+
+    /**
+     * Finds the ordered list of steps that goes from oldVersion to newVersion. At each version we
+     * take the step that gets us the furthest without overshooting newVersion, so a step that
+     * squashes several older ones wins over replaying them one by one.
+     *
+     * @param migrations Every known step, in any order
+     * @param oldVersion The version the database is at
+     * @param newVersion The version the database should end up at
+     * @return The steps to run in order, or null if there is no complete path
+     */
+    static List<WeatherDbMigration> findPath(WeatherDbMigration[] migrations,
+                                             int oldVersion, int newVersion) {
+        List<WeatherDbMigration> path = new ArrayList<>();
+        int version = oldVersion;
+
+        while (version < newVersion) {
+            WeatherDbMigration best = null;
+            for (WeatherDbMigration migration : migrations) {
+                if (migration.startVersion != version) continue;
+                if (migration.endVersion > newVersion) continue;
+                if (best == null || migration.endVersion > best.endVersion) best = migration;
+            }
+
+            if (best == null) return null;
+
+            path.add(best);
+            version = best.endVersion;
+        }
+
+        return path;
+    }
+
+    /**
+     * Upgrades the database by running every step between the two versions in order. If the
+     * caller isn't already inside a transaction, the whole chain runs in one so that a failure
+     * never leaves a half migrated schema behind.
+     *
+     * @param db         The database to upgrade
+     * @param migrations Every known step, in any order
+     * @param oldVersion The version the database is at
+     * @param newVersion The version the database should end up at
+     * @throws IllegalStateException if no chain of steps connects the two versions
+     */
+    static void migrate(SQLiteDatabase db, WeatherDbMigration[] migrations,
+                        int oldVersion, int newVersion) {
+        List<WeatherDbMigration> path = findPath(migrations, oldVersion, newVersion);
+        if (path == null) {
+            throw new IllegalStateException(
+                    "No migration path from version " + oldVersion + " to " + newVersion);
+        }
+
+        boolean ownTransaction = !db.inTransaction();
+        if (ownTransaction) db.beginTransaction();
+        try {
+            for (WeatherDbMigration migration : path) {
+                long start = SystemClock.elapsedRealtime();
+                migration.migrate(db);
+                Log.i(TAG, migration + " took "
+                        + (SystemClock.elapsedRealtime() - start) + " ms");
+            }
+            if (ownTransaction) db.setTransactionSuccessful();
+        } finally {
+            if (ownTransaction) db.endTransaction();
+        }
+    }
+
+    /**
+     * Drops every table we own. This is the last resort when no migration path exists, for
+     * instance when coming from a version that predates the migration framework.
+     *
+     * @param db The database to clear
+     */
+    static void dropAllTables(SQLiteDatabase db) {
+        List<String> tables = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table'"
+                + " AND name NOT LIKE 'sqlite_%' AND name != 'android_metadata'", null);
+        try {
+            while (cursor.moveToNext()) {
+                tables.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (String table : tables) {
+            db.execSQL("DROP TABLE IF EXISTS " + table);
+        }
+    }
+}
@@ -17,27 +17,47 @@ package com.example.android.diegobaldi.sunshine.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
-
-import com.example.android.diegobaldi.sunshine.utilities.SunshineDateUtils;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class serves as the ContentProvider for all of Sunshine's data. This class allows us to
  * bulkInsert data, query data, and delete data.
  * <p>
- * Although ContentProvider implementation requires the implementation of additional methods to
- * perform single inserts, updates, and the ability to get the type of the data from a URI.
- * However, here, they are not implemented for the sake of brevity and simplicity. If you would
- * like, you may implement them on your own. However, we are not going to be teaching how to do
- * so in this course.
+ * Forecasts are stored per saved location. The URIs under /location/#/weather only ever see the
+ * rows of that location, while the older /weather URIs see every location for bulk operations
+ * and the current location for single days. Single inserts and updates are only implemented for
+ * locations.
+ * <p>
+ * This class only translates URIs; reading and writing is done by {@link WeatherRepository},
+ * which code inside Sunshine's process calls directly.
  */
 public class WeatherProvider extends ContentProvider {
 
+    private static final String TAG = WeatherProvider.class.getSimpleName();
+
     /*
      * These constant will be used to match URIs with the data they are looking for. We will take
      * advantage of the UriMatcher class to make that matching MUCH easier than doing something
@@ -45,6 +65,23 @@ public class WeatherProvider extends ContentProvider {
      */
     public static final int CODE_WEATHER = 100;
     public static final int CODE_WEATHER_WITH_DATE = 101;
+    public static final int CODE_WEATHER_TODAY = 102;
+
+    public static final int CODE_LOCATION = 200;
+    public static final int CODE_LOCATION_WITH_ID = 201;
+    public static final int CODE_LOCATION_WEATHER = 202;
+    public static final int CODE_LOCATION_WEATHER_WITH_DATE = 203;
+    public static final int CODE_LOCATION_WEATHER_TODAY = 204;
+    public static final int CODE_LOCATION_HOURLY = 205;
+    public static final int CODE_LOCATION_WEATHER_EXTREMES = 206;
+    public static final int CODE_LOCATION_WEATHER_WEEKLY = 207;
+    public static final int CODE_LOCATION_WEATHER_CONDITIONS = 208;
+
+    public static final int CODE_TRANSFER_WEATHER = 300;
+    public static final int CODE_TRANSFER_HOURLY = 301;
+
+    public static final int CODE_DEBUG_STATS = 900;
+    public static final int CODE_DEBUG_SLOW = 901;
 
     /*
      * The URI Matcher used by this content provider. The leading "s" in this variable name
@@ -52,7 +89,19 @@ public class WeatherProvider extends ContentProvider {
      * common convention in Android programming.
      */
     private static final UriMatcher sUriMatcher = buildUriMatcher();
-    private WeatherDbHelper mOpenHelper;
+    private WeatherRepository mRepository;
+
+    /* Timing of every operation below, see ProviderStats */
+    private ProviderStats mStats;
+
+    /*
+     * Transfers run on at most two threads, enough to copy an export straight into an import,
+     * and a few more wait their turn. Past that openFile refuses, rather than starting a thread
+     * per caller. Idle threads die after a minute.
+     */
+    private static final int TRANSFER_THREADS = 2;
+    private static final int TRANSFER_QUEUE = 8;
+    private ThreadPoolExecutor mTransferExecutor;
 
     /**
      * Creates the UriMatcher that will match each URI to the CODE_WEATHER and
@@ -96,6 +145,63 @@ public class WeatherProvider extends ContentProvider {
          */
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/#", CODE_WEATHER_WITH_DATE);
 
+        /* This URI is content://com.example.android.diegobaldi.sunshine/weather/today */
+        matcher.addURI(authority,
+                WeatherContract.PATH_WEATHER + "/" + WeatherContract.PATH_TODAY,
+                CODE_WEATHER_TODAY);
+
+        /* This URI is content://com.example.android.diegobaldi.sunshine/location/ */
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION, CODE_LOCATION);
+
+        /* This URI would look something like content://com.example.android.diegobaldi.sunshine/location/3 */
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/#", CODE_LOCATION_WITH_ID);
+
+        /*
+         * The forecast of a single location lives underneath it, with the same shapes as the
+         * weather URIs above, e.g. content://com.example.android.diegobaldi.sunshine/location/3/weather/1472214172
+         */
+        matcher.addURI(authority,
+                WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_WEATHER,
+                CODE_LOCATION_WEATHER);
+        matcher.addURI(authority,
+                WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_WEATHER + "/#",
+                CODE_LOCATION_WEATHER_WITH_DATE);
+        matcher.addURI(authority,
+                WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_WEATHER
+                        + "/" + WeatherContract.PATH_TODAY,
+                CODE_LOCATION_WEATHER_TODAY);
+
+        /* Summaries of a forecast, e.g. .../location/3/weather/weekly, see SummaryEntry */
+        matcher.addURI(authority,
+                WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_WEATHER
+                        + "/" + WeatherContract.PATH_EXTREMES,
+                CODE_LOCATION_WEATHER_EXTREMES);
+        matcher.addURI(authority,
+                WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_WEATHER
+                        + "/" + WeatherContract.PATH_WEEKLY,
+                CODE_LOCATION_WEATHER_WEEKLY);
+        matcher.addURI(authority,
+                WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_WEATHER
+                        + "/" + WeatherContract.PATH_CONDITIONS,
+                CODE_LOCATION_WEATHER_CONDITIONS);
+
+        /* content://com.example.android.diegobaldi.sunshine/location/3/hourly, see HourlyEntry */
+        matcher.addURI(authority,
+                WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_HOURLY,
+                CODE_LOCATION_HOURLY);
+
+        /* Whole tables as files, only reachable through openFile, see TransferEntry */
+        matcher.addURI(authority,
+                WeatherContract.PATH_TRANSFER + "/" + WeatherContract.PATH_WEATHER,
+                CODE_TRANSFER_WEATHER);
+        matcher.addURI(authority,
+                WeatherContract.PATH_TRANSFER + "/" + WeatherContract.PATH_HOURLY,
+                CODE_TRANSFER_HOURLY);
+
+        /* Diagnostics about the provider itself, see ProviderStats */
+        matcher.addURI(authority, WeatherContract.PATH_DEBUG + "/stats", CODE_DEBUG_STATS);
+        matcher.addURI(authority, WeatherContract.PATH_DEBUG + "/slow", CODE_DEBUG_SLOW);
+
         return matcher;
     }
 
@@ -119,12 +225,222 @@ public class WeatherProvider extends ContentProvider {
         /*
          * As noted in the comment above, onCreate is run on the main thread, so performing any
          * lengthy operations will cause lag in your app. Since WeatherDbHelper's constructor is
-         * very lightweight, we are safe to perform that initialization here.
+         * very lightweight, we are safe to perform that initialization here. The repository is
+         * shared with the rest of the process, so both use the same database connection.
          */
-        mOpenHelper = new WeatherDbHelper(getContext());
+        mRepository = WeatherRepository.getInstance(getContext());
+        mStats = new ProviderStats(getContext().getPackageManager());
+
+        mTransferExecutor = new ThreadPoolExecutor(TRANSFER_THREADS, TRANSFER_THREADS,
+                1, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(TRANSFER_QUEUE),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "WeatherTransfer");
+                    }
+                });
+        mTransferExecutor.allowCoreThreadTimeOut(true);
         return true;
     }
 
+    /*
+     * The public entry points below match the URI, time the operation and record it in mStats,
+     * and leave the actual work to the *Matched methods further down. Queries count their rows
+     * here, which runs the query before returning; the caller would do so right away anyway,
+     * and it makes the recorded time include the work SQLite does for the rows.
+     */
+
+    @Override
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder) {
+        int code = sUriMatcher.match(uri);
+        if (code == CODE_DEBUG_STATS) return mStats.statsCursor();
+        if (code == CODE_DEBUG_SLOW) return mStats.slowLogCursor();
+
+        int callingUid = Binder.getCallingUid();
+        long start = System.nanoTime();
+        int rows = -1;
+        try {
+            Cursor cursor = queryMatched(code, uri, projection, selection, selectionArgs, sortOrder);
+            rows = cursor.getCount();
+            return cursor;
+        } finally {
+            mStats.record(ProviderStats.OP_QUERY, code, uri,
+                    projection == null ? 0 : projection.length,
+                    rows, System.nanoTime() - start, callingUid);
+        }
+    }
+
+    @Override
+    public Uri insert(@NonNull Uri uri, ContentValues values) {
+        int code = sUriMatcher.match(uri);
+        int callingUid = Binder.getCallingUid();
+        long start = System.nanoTime();
+        int rows = -1;
+        try {
+            Uri inserted = insertMatched(code, uri, values);
+            rows = 1;
+            return inserted;
+        } finally {
+            mStats.record(ProviderStats.OP_INSERT, code, uri, 0,
+                    rows, System.nanoTime() - start, callingUid);
+        }
+    }
+
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        int code = sUriMatcher.match(uri);
+        int callingUid = Binder.getCallingUid();
+        long start = System.nanoTime();
+        int rows = -1;
+        try {
+            rows = bulkInsertMatched(code, uri, values);
+            return rows;
+        } finally {
+            mStats.record(ProviderStats.OP_BULK_INSERT, code, uri, 0,
+                    rows, System.nanoTime() - start, callingUid);
+        }
+    }
+
+    /**
+     * Updates are only supported for single locations, and for the slow operation threshold.
+     * The selection is ignored, as both are identified by the URI alone.
+     */
+    @Override
+    public int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        int code = sUriMatcher.match(uri);
+        if (code == CODE_DEBUG_SLOW) {
+            Long thresholdMillis = values == null ? null
+                    : values.getAsLong(WeatherContract.ProviderStatsEntry.COLUMN_THRESHOLD_MILLIS);
+            if (thresholdMillis == null) {
+                throw new IllegalArgumentException("Updating " + uri + " needs "
+                        + WeatherContract.ProviderStatsEntry.COLUMN_THRESHOLD_MILLIS);
+            }
+            mStats.setSlowThresholdMillis(thresholdMillis);
+            return 0;
+        }
+
+        int callingUid = Binder.getCallingUid();
+        long start = System.nanoTime();
+        int rows = -1;
+        try {
+            rows = updateMatched(code, uri, values);
+            return rows;
+        } finally {
+            mStats.record(ProviderStats.OP_UPDATE, code, uri, 0,
+                    rows, System.nanoTime() - start, callingUid);
+        }
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+        int code = sUriMatcher.match(uri);
+        if (code == CODE_DEBUG_STATS) {
+            mStats.reset();
+            return 0;
+        }
+
+        int callingUid = Binder.getCallingUid();
+        long start = System.nanoTime();
+        int rows = -1;
+        try {
+            rows = deleteMatched(code, uri, selection, selectionArgs);
+            return rows;
+        } finally {
+            mStats.record(ProviderStats.OP_DELETE, code, uri, 0,
+                    rows, System.nanoTime() - start, callingUid);
+        }
+    }
+
+    /**
+     * Exports a whole table when opened for reading, and imports rows into it when opened for
+     * writing; see {@link WeatherContract.TransferEntry}. The caller gets one end of a pipe and
+     * the rows move through it on a thread of our own, a batch at a time, so the caller can
+     * start on the first rows while the rest are still being read and memory stays flat. Too
+     * many transfers at once are refused with a FileNotFoundException.
+     * <p>
+     * A transfer that fails part way is logged and ends the stream early; rows imported before
+     * the failure are kept.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode)
+            throws FileNotFoundException {
+        final int code = sUriMatcher.match(uri);
+        final WeatherTransfer.Table table;
+        if (code == CODE_TRANSFER_WEATHER) {
+            table = WeatherTransfer.WEATHER;
+        } else if (code == CODE_TRANSFER_HOURLY) {
+            table = WeatherTransfer.HOURLY;
+        } else {
+            throw new FileNotFoundException("Unknown uri: " + uri);
+        }
+
+        final boolean export = "r".equals(mode);
+        if (!export && !"w".equals(mode) && !"wt".equals(mode)) {
+            throw new FileNotFoundException("Unsupported mode " + mode + " for " + uri);
+        }
+        final boolean binary = WeatherContract.TransferEntry.FORMAT_BINARY.equals(
+                uri.getQueryParameter(WeatherContract.TransferEntry.QUERY_PARAMETER_FORMAT));
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Unable to open a pipe for " + uri);
+        }
+
+        final Uri transferUri = uri;
+        final int callingUid = Binder.getCallingUid();
+        Runnable transfer = new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                long rows = -1;
+                try {
+                    if (export) {
+                        OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                        try {
+                            rows = WeatherTransfer.export(mRepository, table, binary, out);
+                        } finally {
+                            out.close();
+                        }
+                    } else {
+                        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]);
+                        try {
+                            rows = WeatherTransfer.importRows(mRepository, table, binary, in);
+                        } finally {
+                            in.close();
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Transfer of " + transferUri + " failed", e);
+                } finally {
+                    mStats.record(export ? ProviderStats.OP_EXPORT : ProviderStats.OP_IMPORT,
+                            code, transferUri, 0, (int) Math.min(rows, Integer.MAX_VALUE),
+                            System.nanoTime() - start, callingUid);
+                }
+            }
+        };
+
+        try {
+            mTransferExecutor.execute(transfer);
+        } catch (RejectedExecutionException e) {
+            closeQuietly(pipe[0]);
+            closeQuietly(pipe[1]);
+            throw new FileNotFoundException("Too many transfers in progress for " + uri);
+        }
+
+        return export ? pipe[0] : pipe[1];
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor descriptor) {
+        try {
+            descriptor.close();
+        } catch (IOException ignored) {
+            /* Nothing was written through it */
+        }
+    }
+
     /**
      * Handles requests to insert a set of new rows. In Sunshine, we are only going to be
      * inserting multiple rows of data at a time from a weather forecast. There is no use case
@@ -132,44 +448,29 @@ public class WeatherProvider extends ContentProvider {
      * implement bulkInsert. In a normal ContentProvider's implementation, you will probably want
      * to provide proper functionality for the insert method as well.
      *
+     * @param code   The code sUriMatcher matched the URI to
      * @param uri    The content:// URI of the insertion request.
      * @param values An array of sets of column_name/value pairs to add to the database.
      *               This must not be {@code null}.
      *
      * @return The number of values that were inserted.
      */
-    @Override
-    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+    private int bulkInsertMatched(int code, Uri uri, ContentValues[] values) {
 
-        switch (sUriMatcher.match(uri)) {
+        switch (code) {
 
+            /* Rows inserted here must carry their own COLUMN_LOCATION_ID */
             case CODE_WEATHER:
-                db.beginTransaction();
-                int rowsInserted = 0;
-                try {
-                    for (ContentValues value : values) {
-                        long weatherDate =
-                                value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
-                        if (!SunshineDateUtils.isDateNormalized(weatherDate)) {
-                            throw new IllegalArgumentException("Date must be normalized to insert");
-                        }
+                return mRepository.insertForecast(-1, values);
 
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            rowsInserted++;
-                        }
-                    }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
-                }
-
-                if (rowsInserted > 0) {
-                    getContext().getContentResolver().notifyChange(uri, null);
-                }
+            /* Rows inserted here are stamped with the location from the URI */
+            case CODE_LOCATION_WEATHER:
+                return mRepository.insertForecast(
+                        WeatherContract.LocationEntry.getLocationIdFromUri(uri), values);
 
-                return rowsInserted;
+            case CODE_LOCATION_HOURLY:
+                return mRepository.insertHourly(
+                        WeatherContract.LocationEntry.getLocationIdFromUri(uri), values);
 
             default:
                 return super.bulkInsert(uri, values);
@@ -180,6 +481,7 @@ public class WeatherProvider extends ContentProvider {
      * Handles query requests from clients. We will use this method in Sunshine to query for all
      * of our weather data as well as to query for the weather on a particular day.
      *
+     * @param code          The code sUriMatcher matched the URI to
      * @param uri           The URI to query
      * @param projection    The list of columns to put into the cursor. If null, all columns are
      *                      included.
@@ -191,9 +493,8 @@ public class WeatherProvider extends ContentProvider {
      * @param sortOrder     How the rows in the cursor should be sorted.
      * @return A Cursor containing the results of the query. In our implementation,
      */
-    @Override
-    public Cursor query(@NonNull Uri uri, String[] projection, String selection,
-                        String[] selectionArgs, String sortOrder) {
+    private Cursor queryMatched(int code, Uri uri, String[] projection, String selection,
+                                String[] selectionArgs, String sortOrder) {
 
         Cursor cursor;
 
@@ -201,7 +502,7 @@ public class WeatherProvider extends ContentProvider {
          * Here's the switch statement that, given a URI, will determine what kind of request is
          * being made and query the database accordingly.
          */
-        switch (sUriMatcher.match(uri)) {
+        switch (code) {
 
             /*
              * When sUriMatcher's match method is called with a URI that looks something like this
@@ -232,10 +533,21 @@ public class WeatherProvider extends ContentProvider {
                  * because this method signature accepts a string array.
                  */
                 String[] selectionArguments = new String[]{normalizedUtcDateString};
+                String dateSelection = WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+                /*
+                 * Now that several locations are stored, a date alone no longer identifies a
+                 * row. Callers of this older URI mean the location they are looking at, which
+                 * is the current one.
+                 */
+                long locationId = SunshinePreferences.getCurrentLocationId(getContext());
+                if (locationId != -1) {
+                    dateSelection = WeatherRepository.LOCATION_SELECTION + " AND " + dateSelection;
+                    selectionArguments =
+                            new String[]{Long.toString(locationId), normalizedUtcDateString};
+                }
 
-                cursor = mOpenHelper.getReadableDatabase().query(
-                        /* Table we are going to query */
-                        WeatherContract.WeatherEntry.TABLE_NAME,
+                cursor = mRepository.queryForecast(
                         /*
                          * A projection designates the columns we want returned in our Cursor.
                          * Passing null will return all columns of data within the Cursor.
@@ -252,10 +564,109 @@ public class WeatherProvider extends ContentProvider {
                          * within the selectionArguments array will be inserted into the
                          * selection statement by SQLite under the hood.
                          */
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ",
+                        dateSelection,
                         selectionArguments,
-                        null,
-                        null,
+                        sortOrder,
+                        null);
+
+                break;
+            }
+
+            /*
+             * content://com.example.android.diegobaldi.sunshine/weather/today is answered from
+             * the in-memory TodaySummary whenever it covers today and the projection only asks
+             * for columns the summary has. Otherwise we fall back to a query by today's date.
+             * As with the URI above, this means today at the current location.
+             */
+            case CODE_WEATHER_TODAY: {
+                cursor = mRepository.queryToday(
+                        SunshinePreferences.getCurrentLocationId(getContext()), projection);
+                break;
+            }
+
+            /* The same as CODE_WEATHER_TODAY, for the location in the URI */
+            case CODE_LOCATION_WEATHER_TODAY: {
+                cursor = mRepository.queryToday(
+                        WeatherContract.LocationEntry.getLocationIdFromUri(uri), projection);
+                break;
+            }
+
+            /* A single day of the forecast of the location in the URI */
+            case CODE_LOCATION_WEATHER_WITH_DATE: {
+                String locationId = uri.getPathSegments().get(1);
+                String normalizedUtcDateString = uri.getLastPathSegment();
+
+                cursor = mRepository.queryForecast(
+                        projection,
+                        WeatherRepository.LOCATION_SELECTION + " AND "
+                                + WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ",
+                        new String[]{locationId, normalizedUtcDateString},
+                        sortOrder,
+                        null);
+
+                break;
+            }
+
+            /*
+             * The whole forecast of the location in the URI. The caller's selection is combined
+             * with the location, so it can still ask for, say, today onwards.
+             */
+            case CODE_LOCATION_WEATHER: {
+                String locationId = uri.getPathSegments().get(1);
+
+                cursor = queryWeatherPage(uri,
+                        projection,
+                        WeatherRepository.withLocation(selection),
+                        WeatherRepository.withLocationArgs(locationId, selectionArgs),
+                        sortOrder);
+
+                break;
+            }
+
+            /* The hourly forecast of the location in the URI, optionally within a time range */
+            case CODE_LOCATION_HOURLY: {
+                cursor = queryHourly(uri, projection, selection, selectionArgs, sortOrder);
+                break;
+            }
+
+            /*
+             * Summaries of the forecast of the location in the URI, computed by SQLite. They
+             * have fixed columns, so the projection, selection and sort order are ignored.
+             */
+            case CODE_LOCATION_WEATHER_EXTREMES: {
+                cursor = mRepository.queryExtremes(
+                        WeatherContract.LocationEntry.getLocationIdFromUri(uri),
+                        rangeStart(uri), rangeEnd(uri));
+                break;
+            }
+
+            case CODE_LOCATION_WEATHER_WEEKLY: {
+                cursor = mRepository.queryWeeklyMeans(
+                        WeatherContract.LocationEntry.getLocationIdFromUri(uri),
+                        rangeStart(uri), rangeEnd(uri));
+                break;
+            }
+
+            case CODE_LOCATION_WEATHER_CONDITIONS: {
+                cursor = mRepository.queryConditionCounts(
+                        WeatherContract.LocationEntry.getLocationIdFromUri(uri),
+                        rangeStart(uri), rangeEnd(uri));
+                break;
+            }
+
+            /* Every saved location */
+            case CODE_LOCATION: {
+                cursor = mRepository.queryLocations(projection, selection, selectionArgs, sortOrder);
+
+                break;
+            }
+
+            /* A single saved location */
+            case CODE_LOCATION_WITH_ID: {
+                cursor = mRepository.queryLocations(
+                        projection,
+                        WeatherContract.LocationEntry._ID + " = ? ",
+                        new String[]{uri.getLastPathSegment()},
                         sortOrder);
 
                 break;
@@ -273,13 +684,16 @@ public class WeatherProvider extends ContentProvider {
              * in our weather table.
              */
             case CODE_WEATHER: {
-                cursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.WeatherEntry.TABLE_NAME,
+                /* Every location has a row per date, so the date alone can't be a page key */
+                if (uri.getQueryParameter(WeatherContract.QUERY_PARAMETER_AFTER) != null) {
+                    throw new IllegalArgumentException(
+                            "Keyset paging needs a location's forecast URI: " + uri);
+                }
+
+                cursor = queryWeatherPage(uri,
                         projection,
                         selection,
                         selectionArgs,
-                        null,
-                        null,
                         sortOrder);
 
                 break;
@@ -289,20 +703,177 @@ public class WeatherProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUriFor(code, uri));
         return cursor;
     }
 
+    /**
+     * Queries forecast rows, honouring the paging parameters of the URI (see
+     * {@link WeatherContract#QUERY_PARAMETER_LIMIT}). Keyset paging adds "date > after" to the
+     * selection and always orders by date. It is only allowed on a location's forecast, where
+     * the date is unique and the location is fixed by the selection, so that the unique
+     * (location_id, date) index can seek straight to the page instead of stepping over the rows
+     * before it.
+     *
+     * @param uri           The URI of the query, possibly with paging parameters
+     * @param projection    The columns to return
+     * @param selection     The selection, already restricted to a location if needed
+     * @param selectionArgs The arguments of the selection
+     * @param sortOrder     The order of the rows, ignored for keyset paging
+     * @return A Cursor containing at most one page of rows
+     */
+    private Cursor queryWeatherPage(Uri uri, String[] projection, String selection,
+                                    String[] selectionArgs, String sortOrder) {
+        String limit = null;
+        String limitParameter = uri.getQueryParameter(WeatherContract.QUERY_PARAMETER_LIMIT);
+        if (limitParameter != null) {
+            limit = Long.toString(parseNonNegative(uri, limitParameter));
+
+            String offsetParameter = uri.getQueryParameter(WeatherContract.QUERY_PARAMETER_OFFSET);
+            if (offsetParameter != null) {
+                limit = parseNonNegative(uri, offsetParameter) + "," + limit;
+            }
+        }
+
+        String after = uri.getQueryParameter(WeatherContract.QUERY_PARAMETER_AFTER);
+        if (after != null) {
+            String afterSelection = WeatherContract.WeatherEntry.COLUMN_DATE + " > ? ";
+            selection = selection == null
+                    ? afterSelection
+                    : "(" + selection + ") AND " + afterSelection;
+
+            String afterDate = Long.toString(parseNonNegative(uri, after));
+            if (selectionArgs == null) {
+                selectionArgs = new String[]{afterDate};
+            } else {
+                String[] args = new String[selectionArgs.length + 1];
+                System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+                args[selectionArgs.length] = afterDate;
+                selectionArgs = args;
+            }
+
+            sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+        }
+
+        return mRepository.queryForecast(projection, selection, selectionArgs, sortOrder, limit);
+    }
+
+    /**
+     * Queries the hourly forecast of the location in the URI, restricted to the range given by
+     * {@link WeatherContract#QUERY_PARAMETER_FROM} and {@link WeatherContract#QUERY_PARAMETER_TO}.
+     * Both bounds go into the selection on (location_id, time), which the unique index of the
+     * hourly table answers with a single range scan, so a day of entries is read without
+     * looking at the rest of the location's rows.
+     *
+     * @param uri           The hourly URI of a location, possibly with a range
+     * @param projection    The columns to return
+     * @param selection     An additional selection, or null
+     * @param selectionArgs The arguments of the selection
+     * @param sortOrder     The order of the rows, by time ascending if null
+     * @return A Cursor of the matching hourly rows
+     */
+    private Cursor queryHourly(Uri uri, String[] projection, String selection,
+                               String[] selectionArgs, String sortOrder) {
+        List<String> args = new ArrayList<>();
+        args.add(uri.getPathSegments().get(1));
+
+        StringBuilder where = new StringBuilder(WeatherRepository.LOCATION_SELECTION);
+        String from = uri.getQueryParameter(WeatherContract.QUERY_PARAMETER_FROM);
+        if (from != null) {
+            where.append(" AND ").append(WeatherContract.HourlyEntry.COLUMN_TIME).append(" >= ? ");
+            args.add(Long.toString(parseNonNegative(uri, from)));
+        }
+        String to = uri.getQueryParameter(WeatherContract.QUERY_PARAMETER_TO);
+        if (to != null) {
+            where.append(" AND ").append(WeatherContract.HourlyEntry.COLUMN_TIME).append(" < ? ");
+            args.add(Long.toString(parseNonNegative(uri, to)));
+        }
+        if (selection != null) {
+            where.append(" AND (").append(selection).append(")");
+            if (selectionArgs != null) {
+                args.addAll(Arrays.asList(selectionArgs));
+            }
+        }
+
+        return mRepository.queryHourly(
+                projection,
+                where.toString(),
+                args.toArray(new String[args.size()]),
+                sortOrder != null ? sortOrder : WeatherContract.HourlyEntry.COLUMN_TIME + " ASC");
+    }
+
+    /* The from parameter of a summary URI, or the start of time if it has none */
+    private static long rangeStart(Uri uri) {
+        String from = uri.getQueryParameter(WeatherContract.QUERY_PARAMETER_FROM);
+        return from != null ? parseNonNegative(uri, from) : 0;
+    }
+
+    /* The to parameter of a summary URI, or the end of time if it has none */
+    private static long rangeEnd(Uri uri) {
+        String to = uri.getQueryParameter(WeatherContract.QUERY_PARAMETER_TO);
+        return to != null ? parseNonNegative(uri, to) : Long.MAX_VALUE;
+    }
+
+    /* Parses a paging or range parameter, rejecting anything that isn't a non-negative number */
+    private static long parseNonNegative(Uri uri, String parameter) {
+        long value;
+        try {
+            value = Long.parseLong(parameter);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid query parameter in " + uri);
+        }
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid query parameter in " + uri);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the URI a query's Cursor should watch. Single days and today watch their own URI,
+     * which is only notified when that day changes. Lists watch one of the change URIs, which
+     * are notified once per write; see {@link WeatherContract#PATH_CHANGES} for why lists can't
+     * simply watch the URI they queried.
+     *
+     * @param code The code sUriMatcher matched the query's URI to
+     * @param uri  The URI that was queried
+     * @return The URI to pass to Cursor#setNotificationUri
+     */
+    private static Uri notificationUriFor(int code, Uri uri) {
+        switch (code) {
+            case CODE_WEATHER:
+                return WeatherContract.buildForecastChangesUri(-1);
+
+            case CODE_LOCATION_WEATHER:
+            case CODE_LOCATION_WEATHER_EXTREMES:
+            case CODE_LOCATION_WEATHER_WEEKLY:
+            case CODE_LOCATION_WEATHER_CONDITIONS:
+                return WeatherContract.buildForecastChangesUri(
+                        WeatherContract.LocationEntry.getLocationIdFromUri(uri));
+
+            case CODE_LOCATION:
+            case CODE_LOCATION_WITH_ID:
+                return WeatherContract.LOCATION_CHANGES_URI;
+
+            /* Without the range, which observers don't look at anyway */
+            case CODE_LOCATION_HOURLY:
+                return WeatherContract.LocationEntry.buildHourlyUri(
+                        WeatherContract.LocationEntry.getLocationIdFromUri(uri));
+
+            default:
+                return uri;
+        }
+    }
+
     /**
      * Deletes data at a given URI with optional arguments for more fine tuned deletions.
      *
+     * @param code          The code sUriMatcher matched the URI to
      * @param uri           The full URI to query
      * @param selection     An optional restriction to apply to rows when deleting.
      * @param selectionArgs Used in conjunction with the selection statement
      * @return The number of rows deleted
      */
-    @Override
-    public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+    private int deleteMatched(int code, Uri uri, String selection, String[] selectionArgs) {
 
         /* Users of the delete method will expect the number of rows deleted to be returned. */
         int numRowsDeleted;
@@ -316,25 +887,38 @@ public class WeatherProvider extends ContentProvider {
          */
         if (null == selection) selection = "1";
 
-        switch (sUriMatcher.match(uri)) {
+        switch (code) {
 
             case CODE_WEATHER:
-                numRowsDeleted = mOpenHelper.getWritableDatabase().delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME,
+                numRowsDeleted = mRepository.deleteForecast(selection, selectionArgs);
+                break;
+
+            /* Only ever deletes rows of the location in the URI */
+            case CODE_LOCATION_WEATHER: {
+                String locationId = uri.getPathSegments().get(1);
+                numRowsDeleted = mRepository.deleteForecast(
+                        WeatherRepository.withLocation(selection),
+                        WeatherRepository.withLocationArgs(locationId, selectionArgs));
+                break;
+            }
+
+            /* Removing a location removes its forecast with it */
+            case CODE_LOCATION_WITH_ID:
+                numRowsDeleted = mRepository.deleteLocation(ContentUris.parseId(uri));
+                break;
+
+            /* Only ever deletes hourly rows of the location in the URI */
+            case CODE_LOCATION_HOURLY:
+                numRowsDeleted = mRepository.deleteHourly(
+                        WeatherContract.LocationEntry.getLocationIdFromUri(uri),
                         selection,
                         selectionArgs);
-
                 break;
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
-        /* If we actually deleted any rows, notify that a change has occurred to this URI */
-        if (numRowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
-        }
-
         return numRowsDeleted;
     }
 
@@ -354,25 +938,48 @@ public class WeatherProvider extends ContentProvider {
     }
 
     /**
-     * In Sunshine, we aren't going to do anything with this method. However, we are required to
-     * override it as WeatherProvider extends ContentProvider and insert is an abstract method in
-     * ContentProvider. Rather than the single insert method, we are only going to implement
-     * {@link WeatherProvider#bulkInsert}.
+     * Handles requests to save a single location. Locations are unique by their setting, so
+     * inserting a location that is already saved returns the existing row instead of creating a
+     * second one. Forecast rows are only inserted through {@link WeatherProvider#bulkInsert}.
      *
+     * @param code   The code sUriMatcher matched the URI to
      * @param uri    The URI of the insertion request. This must not be null.
      * @param values A set of column_name/value pairs to add to the database.
      *               This must not be null
-     * @return nothing in Sunshine, but normally the URI for the newly inserted item.
+     * @return The URI of the saved location
      */
-    @Override
-    public Uri insert(@NonNull Uri uri, ContentValues values) {
-        throw new RuntimeException(
-                "We are not implementing insert in Sunshine. Use bulkInsert instead");
+    private Uri insertMatched(int code, Uri uri, ContentValues values) {
+        if (code != CODE_LOCATION) {
+            throw new UnsupportedOperationException(
+                    "Unknown uri: " + uri + ". Use bulkInsert for weather.");
+        }
+
+        long locationId = mRepository.saveLocation(values);
+        return WeatherContract.LocationEntry.buildLocationUri(locationId);
+    }
+
+    /**
+     * Handles requests to update a single saved location, for instance with the coordinates the
+     * weather server returned for it.
+     *
+     * @param code   The code sUriMatcher matched the URI to
+     * @param uri    The URI of the location to update
+     * @param values The columns to change
+     * @return The number of rows updated
+     */
+    private int updateMatched(int code, Uri uri, ContentValues values) {
+        if (code != CODE_LOCATION_WITH_ID) {
+            throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+
+        return mRepository.updateLocation(ContentUris.parseId(uri), values);
     }
 
     @Override
-    public int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        throw new RuntimeException("We are not implementing update in Sunshine");
+    @TargetApi(18)
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        /* Reached with "adb shell dumpsys activity provider WeatherProvider" */
+        mStats.dump(writer);
     }
 
     /**
@@ -383,7 +990,7 @@ public class WeatherProvider extends ContentProvider {
     @Override
     @TargetApi(11)
     public void shutdown() {
-        mOpenHelper.close();
+        mRepository.close();
         super.shutdown();
     }
 }
\ No newline at end of file
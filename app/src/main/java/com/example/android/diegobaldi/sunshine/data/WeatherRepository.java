@@ -0,0 +1,1051 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+
+import com.example.android.diegobaldi.sunshine.utilities.SunshineDateUtils;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Reads and writes Sunshine's database directly, for code running in Sunshine's own process.
+ * <p>
+ * The sync, the notification and the wearable listener used to go through the ContentResolver,
+ * paying for the provider lookup, URI matching and a Cursor for every call, only to end up in
+ * this same process. They now call the typed methods here instead. {@link WeatherProvider} is
+ * a thin adapter on top of this class for loaders and other apps: it turns URIs into the
+ * package-private calls below, and all SQL, change detection and change notifications live
+ * here, so both paths see the same data and notify the same observers.
+ * <p>
+ * There is one instance per process, sharing one {@link WeatherDbHelper} and therefore one
+ * database connection with the provider.
+ */
+public final class WeatherRepository {
+
+    /* Restricts a weather or hourly query to the rows of a single location */
+    static final String LOCATION_SELECTION =
+            WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = ? ";
+
+    private static final String DAY_COUNT =
+            "COUNT(*) AS " + WeatherContract.SummaryEntry.COLUMN_DAY_COUNT;
+
+    /*
+     * The Monday a normalized date's week starts on. Day 0 of the epoch was a Thursday, 3 days
+     * after a Monday, so we shift by 3 days before rounding down to whole weeks and back after.
+     */
+    private static final String WEEK_START = "(((" + WeatherContract.WeatherEntry.COLUMN_DATE
+            + " / " + SunshineDateUtils.DAY_IN_MILLIS + " + 3) / 7) * 7 - 3) * "
+            + SunshineDateUtils.DAY_IN_MILLIS;
+
+    /* Maps a weather ID to its WeatherContract.SummaryEntry condition group */
+    private static final String CONDITION_GROUP = "CASE WHEN "
+            + WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " BETWEEN "
+            + WeatherContract.SummaryEntry.CONDITION_GROUP_CLOUDS + " AND 899 THEN "
+            + WeatherContract.SummaryEntry.CONDITION_GROUP_CLOUDS + " ELSE ("
+            + WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " / 100) * 100 END";
+
+    private static WeatherRepository sInstance;
+
+    private final Context mContext;
+    private final WeatherDbHelper mOpenHelper;
+
+    private WeatherRepository(Context context) {
+        mContext = context;
+        mOpenHelper = new WeatherDbHelper(context);
+    }
+
+    /**
+     * Returns the repository of this process.
+     *
+     * @param context Any context, only its application context is kept
+     * @return The repository
+     */
+    public static synchronized WeatherRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WeatherRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Saves a location, or finds it if it is already saved, as locations are unique by their
+     * setting.
+     *
+     * @param values The columns of the location; must contain its setting
+     * @return The _ID of the location
+     */
+    long saveLocation(ContentValues values) {
+        String setting = values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        if (setting == null) {
+            throw new IllegalArgumentException("A location needs a location setting");
+        }
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long locationId;
+        boolean created = false;
+
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                    new String[]{WeatherContract.LocationEntry._ID},
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ",
+                    new String[]{setting},
+                    null,
+                    null,
+                    null);
+            try {
+                locationId = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+            } finally {
+                cursor.close();
+            }
+
+            if (locationId == -1) {
+                locationId = db.insertOrThrow(
+                        WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                created = true;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (created) {
+            mContext.getContentResolver().notifyChange(WeatherContract.LOCATION_CHANGES_URI, null);
+        }
+        return locationId;
+    }
+
+    /**
+     * Saves a location by its setting, or finds it if it is already saved.
+     *
+     * @param locationSetting The location query sent to the weather server
+     * @return The _ID of the location
+     */
+    public long saveLocation(String locationSetting) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        return saveLocation(values);
+    }
+
+    /**
+     * Changes columns of a saved location.
+     *
+     * @param locationId The _ID of the location
+     * @param values     The columns to change
+     * @return The number of rows updated, 0 if there is no such location
+     */
+    int updateLocation(long locationId, ContentValues values) {
+        int numRowsUpdated = mOpenHelper.getWritableDatabase().update(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                values,
+                WeatherContract.LocationEntry._ID + " = ? ",
+                new String[]{Long.toString(locationId)});
+
+        /* Not the location's URI, as that would also wake every observer of its forecast */
+        if (numRowsUpdated != 0) {
+            mContext.getContentResolver().notifyChange(WeatherContract.LOCATION_CHANGES_URI, null);
+        }
+
+        return numRowsUpdated;
+    }
+
+    /**
+     * Stores the coordinates the weather server returned for a location.
+     *
+     * @param locationId The _ID of the location
+     * @param latitude   The latitude of the location
+     * @param longitude  The longitude of the location
+     * @return true if the location exists
+     */
+    public boolean updateLocationCoordinates(long locationId, double latitude, double longitude) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, latitude);
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, longitude);
+        return updateLocation(locationId, values) != 0;
+    }
+
+    /**
+     * Removes a location together with its forecast. We don't enable foreign keys (they are off
+     * by default before API 16), so we cascade by hand in one transaction.
+     *
+     * @param locationId The _ID of the location
+     * @return The number of locations deleted, 0 or 1
+     */
+    public int deleteLocation(long locationId) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        String[] locationArgs = new String[]{Long.toString(locationId)};
+        Map<Long, Set<Long>> deleted;
+        int numRowsDeleted;
+
+        db.beginTransaction();
+        try {
+            deleted = findForecastRows(db, LOCATION_SELECTION, locationArgs);
+            db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                    LOCATION_SELECTION,
+                    locationArgs);
+            db.delete(WeatherContract.HourlyEntry.TABLE_NAME,
+                    LOCATION_SELECTION,
+                    locationArgs);
+            numRowsDeleted = db.delete(WeatherContract.LocationEntry.TABLE_NAME,
+                    WeatherContract.LocationEntry._ID + " = ? ",
+                    locationArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (numRowsDeleted != 0) {
+            TodaySummary.invalidate(mContext, locationId);
+            notifyForecastChanged(deleted);
+            ContentResolver resolver = mContext.getContentResolver();
+            resolver.notifyChange(WeatherContract.LOCATION_CHANGES_URI, null);
+            resolver.notifyChange(WeatherContract.LocationEntry.buildHourlyUri(locationId), null);
+        }
+
+        return numRowsDeleted;
+    }
+
+    /**
+     * Inserts a set of forecast rows in a single transaction. A row for a (location, date) pair
+     * that already exists replaces the old one, unless it holds exactly the same values, in
+     * which case we neither write it nor tell anyone about it.
+     *
+     * @param locationId The location to stamp on every row, or -1 to use the rows' own
+     * @param values     The rows to insert
+     * @return The number of rows that were inserted, counting those that were already stored
+     */
+    public int insertForecast(long locationId, ContentValues[] values) {
+        return writeForecast(locationId, values, null);
+    }
+
+    /**
+     * Writes forecast rows like {@link #insertForecast}, leaving the location's other days as
+     * they are. This is how part of a forecast is committed: replacing would delete the days
+     * we didn't get.
+     *
+     * @param locationId The location to stamp on every row
+     * @param values     The rows to write
+     * @return The number of days that were added or changed
+     */
+    public int mergeForecast(long locationId, ContentValues[] values) {
+        int[] changedDays = new int[1];
+        writeForecast(locationId, values, changedDays);
+        return changedDays[0];
+    }
+
+    /**
+     * Does the work of {@link #insertForecast}.
+     *
+     * @param changedDays If not null, its first element is set to the number of rows that were
+     *                    actually written because they were new or different
+     */
+    private int writeForecast(long locationId, ContentValues[] values, int[] changedDays) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Map<Long, Set<Long>> changed = new TreeMap<>();
+        int rowsInserted;
+
+        db.beginTransaction();
+        try {
+            rowsInserted = writeForecastRows(db, locationId, values, changed);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (!changed.isEmpty()) {
+            /* Keep the materialized summary of today in step with the table */
+            TodaySummary.onWeatherWritten(mContext, values);
+            notifyForecastChanged(changed);
+        }
+
+        if (changedDays != null) {
+            changedDays[0] = countDays(changed);
+        }
+        return rowsInserted;
+    }
+
+    /**
+     * Writes forecast rows inside the caller's transaction, skipping those already stored.
+     *
+     * @param db         The database, inside the caller's transaction
+     * @param locationId The location to stamp on every row, or -1 to use the rows' own
+     * @param values     The rows to write
+     * @param changed    Filled with the dates of the rows actually written, by location
+     * @return The number of rows that were inserted, counting those that were already stored
+     */
+    private static int writeForecastRows(SQLiteDatabase db, long locationId,
+                                         ContentValues[] values, Map<Long, Set<Long>> changed) {
+        int rowsInserted = 0;
+        for (ContentValues value : values) {
+            long weatherDate =
+                    value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+            if (!SunshineDateUtils.isDateNormalized(weatherDate)) {
+                throw new IllegalArgumentException("Date must be normalized to insert");
+            }
+
+            if (locationId != -1) {
+                value.put(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID, locationId);
+            }
+
+            Long rowLocationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID);
+            if (rowLocationId != null && isStored(db, value, rowLocationId, weatherDate)) {
+                rowsInserted++;
+                continue;
+            }
+
+            long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+            if (_id != -1) {
+                rowsInserted++;
+                addChange(changed, rowLocationId, weatherDate);
+            }
+        }
+        return rowsInserted;
+    }
+
+    /**
+     * Replaces the whole forecast of a location with rows loaded in bulk, such as the years of
+     * fake weather of a load test. Unlike {@link #replaceForecast}, the rows aren't compared
+     * with what is stored first, and observers are notified once, when everything is written.
+     * The batches are written one at a time, so only one needs to be in memory.
+     *
+     * @param locationId The _ID of the location
+     * @param batches    The new forecast, in batches of rows; a batch can be reused by the next
+     * @return The number of rows inserted
+     */
+    public int loadForecast(long locationId, Iterator<ContentValues[]> batches) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int rowsInserted = 0;
+
+        db.beginTransaction();
+        try {
+            db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                    LOCATION_SELECTION,
+                    new String[]{Long.toString(locationId)});
+            while (batches.hasNext()) {
+                for (ContentValues value : batches.next()) {
+                    if (!SunshineDateUtils.isDateNormalized(
+                            value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE))) {
+                        throw new IllegalArgumentException("Date must be normalized to insert");
+                    }
+                    value.put(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID, locationId);
+                    if (db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value) != -1) {
+                        rowsInserted++;
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        onImported(WeatherContract.WeatherEntry.TABLE_NAME, Collections.singleton(locationId));
+        return rowsInserted;
+    }
+
+    /**
+     * Replaces the forecast of a location with a new one. Days in both are only written if
+     * their values changed (see {@link #insertForecast}), and the days before and after the new
+     * forecast are deleted, so a sync that brings the same weather notifies nobody. Both happen
+     * in one transaction. An empty forecast changes nothing, rather than deleting every day.
+     *
+     * @param locationId The _ID of the location
+     * @param values     The new forecast, one row per day
+     * @return The number of days that changed: new, different from before, or deleted
+     */
+    public int replaceForecast(long locationId, ContentValues[] values) {
+        /* Without a first and last date, the delete below would match the whole forecast */
+        if (values.length == 0) return 0;
+
+        long firstDate = Long.MAX_VALUE;
+        long lastDate = Long.MIN_VALUE;
+        for (ContentValues value : values) {
+            long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+            firstDate = Math.min(firstDate, date);
+            lastDate = Math.max(lastDate, date);
+        }
+        String selection = withLocation(WeatherContract.WeatherEntry.COLUMN_DATE + " < ? OR "
+                + WeatherContract.WeatherEntry.COLUMN_DATE + " > ? ");
+        String[] selectionArgs = withLocationArgs(Long.toString(locationId),
+                new String[]{Long.toString(firstDate), Long.toString(lastDate)});
+
+        /*
+         * One transaction for both, so nobody ever reads the new days next to the old ones they
+         * replace, and the changes are notified once, after the commit.
+         */
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Map<Long, Set<Long>> written = new TreeMap<>();
+        Map<Long, Set<Long>> deleted;
+
+        db.beginTransaction();
+        try {
+            writeForecastRows(db, locationId, values, written);
+            deleted = deleteForecastRows(db, selection, selectionArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        int changedDays = countDays(written) + countDays(deleted);
+        if (changedDays == 0) return 0;
+
+        if (!written.isEmpty()) {
+            TodaySummary.onWeatherWritten(mContext, values);
+        }
+        if (!deleted.isEmpty()) {
+            TodaySummary.onWeatherDeleted(mContext, deleted);
+        }
+        /* The deleted days are outside the written ones, merging loses none of them */
+        for (Map.Entry<Long, Set<Long>> location : deleted.entrySet()) {
+            for (long date : location.getValue()) {
+                addChange(written, location.getKey(), date);
+            }
+        }
+        notifyForecastChanged(written);
+
+        return changedDays;
+    }
+
+    /**
+     * Deletes the forecast rows matching a selection and notifies the days that were removed.
+     *
+     * @param selection     The rows to delete, or null for every row
+     * @param selectionArgs The arguments of the selection
+     * @return The number of rows deleted
+     */
+    int deleteForecast(String selection, String[] selectionArgs) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Map<Long, Set<Long>> deleted;
+        int numRowsDeleted;
+
+        db.beginTransaction();
+        try {
+            deleted = deleteForecastRows(db, selection, selectionArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        /* There is one row per location and date, so this is also the number of rows */
+        numRowsDeleted = countDays(deleted);
+        if (numRowsDeleted != 0) {
+            TodaySummary.onWeatherDeleted(mContext, deleted);
+            notifyForecastChanged(deleted);
+        }
+
+        return numRowsDeleted;
+    }
+
+    /**
+     * Deletes the forecast rows matching a selection inside the caller's transaction.
+     *
+     * @param db            The database, inside the caller's transaction
+     * @param selection     The rows to delete, or null for every row
+     * @param selectionArgs The arguments of the selection
+     * @return The dates of the deleted rows, grouped by location
+     */
+    private static Map<Long, Set<Long>> deleteForecastRows(SQLiteDatabase db, String selection,
+                                                         String[] selectionArgs) {
+        Map<Long, Set<Long>> deleted = findForecastRows(db, selection, selectionArgs);
+        db.delete(WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+        return deleted;
+    }
+
+    /**
+     * Returns whether a location has any forecast from today onwards.
+     *
+     * @param locationId The _ID of the location, or -1 for any location
+     * @return true if there is at least one such day
+     */
+    public boolean hasForecastFromToday(long locationId) {
+        String selection = WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards();
+        String[] selectionArgs = null;
+        if (locationId != -1) {
+            selection = withLocation(selection);
+            selectionArgs = withLocationArgs(Long.toString(locationId), null);
+        }
+
+        /* queryNumEntries with a selection is API 11, so we count ourselves */
+        return DatabaseUtils.longForQuery(mOpenHelper.getReadableDatabase(),
+                "SELECT EXISTS (SELECT 1 FROM " + WeatherContract.WeatherEntry.TABLE_NAME
+                        + " WHERE " + selection + ")",
+                selectionArgs) != 0;
+    }
+
+    /**
+     * Returns the summary of today's weather at a location, from memory when it can.
+     *
+     * @param locationId The _ID of the location, or -1 for today's row of any location
+     * @return Today's summary, or null if there is no weather stored for today
+     */
+    public TodaySummary getToday(long locationId) {
+        if (locationId != -1) {
+            TodaySummary summary = TodaySummary.peekForToday(mContext, locationId);
+            return summary != null ? summary : loadTodaySummary(locationId);
+        }
+
+        Cursor cursor = queryTodayRow(-1, TodaySummary.SUMMARY_COLUMNS);
+        try {
+            return cursor.moveToFirst() ? TodaySummary.fromCursor(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Queries forecast rows.
+     *
+     * @param projection    The columns to return
+     * @param selection     The selection, already restricted to a location if needed
+     * @param selectionArgs The arguments of the selection
+     * @param sortOrder     The order of the rows
+     * @param limit         An SQL LIMIT clause, or null for every row
+     * @return A Cursor of the matching rows
+     */
+    Cursor queryForecast(String[] projection, String selection, String[] selectionArgs,
+                         String sortOrder, String limit) {
+        return mOpenHelper.getReadableDatabase().query(
+                WeatherContract.WeatherEntry.TABLE_NAME,
+                projection,
+                selection,
+                selectionArgs,
+                null,
+                null,
+                sortOrder,
+                limit);
+    }
+
+    /**
+     * Queries the lowest low and highest high of a location's forecast within a date range.
+     *
+     * @param locationId The _ID of the location
+     * @param fromDate   The first normalized date to include
+     * @param toDate     The first normalized date to leave out
+     * @return A Cursor of exactly one row, see {@link WeatherContract.SummaryEntry}
+     */
+    Cursor queryExtremes(long locationId, long fromDate, long toDate) {
+        return querySummary(locationId, fromDate, toDate, new String[]{
+                "MIN(" + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ") AS "
+                        + WeatherContract.SummaryEntry.COLUMN_MIN_TEMP,
+                "MAX(" + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ") AS "
+                        + WeatherContract.SummaryEntry.COLUMN_MAX_TEMP,
+                DAY_COUNT}, null);
+    }
+
+    /**
+     * Queries the mean low and high of each week of a location's forecast within a date range.
+     *
+     * @param locationId The _ID of the location
+     * @param fromDate   The first normalized date to include
+     * @param toDate     The first normalized date to leave out
+     * @return A Cursor of one row per week, see {@link WeatherContract.SummaryEntry}
+     */
+    Cursor queryWeeklyMeans(long locationId, long fromDate, long toDate) {
+        return querySummary(locationId, fromDate, toDate, new String[]{
+                WEEK_START + " AS " + WeatherContract.SummaryEntry.COLUMN_WEEK_START,
+                "AVG(" + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ") AS "
+                        + WeatherContract.SummaryEntry.COLUMN_MEAN_MIN_TEMP,
+                "AVG(" + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ") AS "
+                        + WeatherContract.SummaryEntry.COLUMN_MEAN_MAX_TEMP,
+                DAY_COUNT}, WeatherContract.SummaryEntry.COLUMN_WEEK_START);
+    }
+
+    /**
+     * Queries how many days of a location's forecast within a date range fall into each weather
+     * condition group.
+     *
+     * @param locationId The _ID of the location
+     * @param fromDate   The first normalized date to include
+     * @param toDate     The first normalized date to leave out
+     * @return A Cursor of one row per group, see {@link WeatherContract.SummaryEntry}
+     */
+    Cursor queryConditionCounts(long locationId, long fromDate, long toDate) {
+        return querySummary(locationId, fromDate, toDate, new String[]{
+                CONDITION_GROUP + " AS " + WeatherContract.SummaryEntry.COLUMN_CONDITION_GROUP,
+                DAY_COUNT}, WeatherContract.SummaryEntry.COLUMN_CONDITION_GROUP);
+    }
+
+    /**
+     * Runs an aggregate query over the days from <= date < to of a location. Every column it
+     * reads is in {@link WeatherContract.WeatherEntry#INDEX_SUMMARY}, so SQLite seeks to the
+     * range in that index and aggregates it without reading a single table row.
+     *
+     * @param locationId The _ID of the location
+     * @param fromDate   The first normalized date to include
+     * @param toDate     The first normalized date to leave out
+     * @param columns    The aggregate columns
+     * @param groupBy    The column to group and order by, or null for a single row
+     * @return A Cursor of the aggregated rows
+     */
+    private Cursor querySummary(long locationId, long fromDate, long toDate, String[] columns,
+                                String groupBy) {
+        return mOpenHelper.getReadableDatabase().query(
+                WeatherContract.WeatherEntry.TABLE_NAME,
+                columns,
+                withLocation(WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? AND "
+                        + WeatherContract.WeatherEntry.COLUMN_DATE + " < ? "),
+                withLocationArgs(Long.toString(locationId),
+                        new String[]{Long.toString(fromDate), Long.toString(toDate)}),
+                groupBy,
+                null,
+                groupBy != null ? groupBy + " ASC" : null);
+    }
+
+    /**
+     * Answers a query for today's weather at a location, from {@link TodaySummary} when it can.
+     * Used by {@link WeatherProvider}; in-process callers use {@link #getToday(long)}.
+     *
+     * @param locationId The location, or -1 if no location has been synced yet
+     * @param projection The columns to return
+     * @return A Cursor containing at most one row
+     */
+    Cursor queryToday(long locationId, String[] projection) {
+        TodaySummary summary = null;
+        if (locationId != -1) {
+            summary = TodaySummary.peekForToday(mContext, locationId);
+            if (summary == null) {
+                summary = loadTodaySummary(locationId);
+            }
+        }
+
+        if (summary != null && TodaySummary.canServe(projection)) {
+            return summary.toCursor(projection);
+        }
+        return queryTodayRow(locationId, projection);
+    }
+
+    /**
+     * Reads today's row from the database and remembers it in {@link TodaySummary}, so that the
+     * next request for today is served from memory.
+     *
+     * @param locationId The location to read today's row of
+     * @return Today's summary, or null if there is no row for today
+     */
+    private TodaySummary loadTodaySummary(long locationId) {
+        Cursor cursor = queryTodayRow(locationId, TodaySummary.SUMMARY_COLUMNS);
+        try {
+            if (!cursor.moveToFirst()) return null;
+
+            TodaySummary summary = TodaySummary.fromCursor(cursor);
+            TodaySummary.seed(mContext, summary);
+            return summary;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Queries the weather row for today's normalized date.
+     *
+     * @param locationId The location to query, or -1 to match today's row of any location
+     * @param projection The columns to return
+     * @return A Cursor containing at most one row
+     */
+    private Cursor queryTodayRow(long locationId, String[] projection) {
+        long normalizedUtcToday = SunshineDateUtils.getNormalizedUtcDateForToday();
+
+        String selection = WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+        String[] selectionArgs = new String[]{Long.toString(normalizedUtcToday)};
+        if (locationId != -1) {
+            selection = withLocation(selection);
+            selectionArgs = withLocationArgs(Long.toString(locationId), selectionArgs);
+        }
+
+        return mOpenHelper.getReadableDatabase().query(
+                WeatherContract.WeatherEntry.TABLE_NAME,
+                projection,
+                selection,
+                selectionArgs,
+                null,
+                null,
+                null,
+                "1");
+    }
+
+    /**
+     * Inserts a location's hourly forecast in a single transaction. An entry for a time that
+     * already exists replaces the old one.
+     *
+     * @param locationId The location to stamp on every row, or -1 to use the rows' own
+     * @param values     The rows to insert
+     * @return The number of rows that were inserted
+     */
+    public int insertHourly(long locationId, ContentValues[] values) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Set<Long> changed = new TreeSet<>();
+
+        db.beginTransaction();
+        int rowsInserted = 0;
+        try {
+            for (ContentValues value : values) {
+                if (locationId != -1) {
+                    value.put(WeatherContract.HourlyEntry.COLUMN_LOCATION_ID, locationId);
+                }
+                long _id = db.insert(WeatherContract.HourlyEntry.TABLE_NAME, null, value);
+                if (_id != -1) {
+                    rowsInserted++;
+                    changed.add(value.getAsLong(WeatherContract.HourlyEntry.COLUMN_LOCATION_ID));
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        ContentResolver resolver = mContext.getContentResolver();
+        for (long changedLocationId : changed) {
+            resolver.notifyChange(WeatherContract.LocationEntry.buildHourlyUri(changedLocationId),
+                    null);
+        }
+
+        return rowsInserted;
+    }
+
+    /**
+     * Replaces the hourly forecast of a location, dropping the hours before the new one starts.
+     *
+     * @param locationId The _ID of the location
+     * @param values     The new hourly forecast, sorted by time
+     * @return The number of rows inserted
+     */
+    public int replaceHourly(long locationId, ContentValues[] values) {
+        if (values.length == 0) return 0;
+
+        int rowsInserted = insertHourly(locationId, values);
+        deleteHourly(locationId,
+                WeatherContract.HourlyEntry.COLUMN_TIME + " < ? ",
+                new String[]{values[0].getAsLong(WeatherContract.HourlyEntry.COLUMN_TIME).toString()});
+        return rowsInserted;
+    }
+
+    /**
+     * Deletes hourly rows of a location.
+     *
+     * @param locationId    The _ID of the location
+     * @param selection     Which of its rows to delete, or null for every row
+     * @param selectionArgs The arguments of the selection
+     * @return The number of rows deleted
+     */
+    int deleteHourly(long locationId, String selection, String[] selectionArgs) {
+        int numRowsDeleted = mOpenHelper.getWritableDatabase().delete(
+                WeatherContract.HourlyEntry.TABLE_NAME,
+                withLocation(selection),
+                withLocationArgs(Long.toString(locationId), selectionArgs));
+
+        if (numRowsDeleted != 0) {
+            mContext.getContentResolver().notifyChange(
+                    WeatherContract.LocationEntry.buildHourlyUri(locationId), null);
+        }
+
+        return numRowsDeleted;
+    }
+
+    /**
+     * Queries hourly rows.
+     *
+     * @param projection    The columns to return
+     * @param selection     The selection, already restricted to a location
+     * @param selectionArgs The arguments of the selection
+     * @param sortOrder     The order of the rows
+     * @return A Cursor of the matching rows
+     */
+    Cursor queryHourly(String[] projection, String selection, String[] selectionArgs,
+                       String sortOrder) {
+        return mOpenHelper.getReadableDatabase().query(
+                WeatherContract.HourlyEntry.TABLE_NAME,
+                projection,
+                selection,
+                selectionArgs,
+                null,
+                null,
+                sortOrder);
+    }
+
+    /**
+     * Queries saved locations.
+     *
+     * @param projection    The columns to return
+     * @param selection     The selection
+     * @param selectionArgs The arguments of the selection
+     * @param sortOrder     The order of the rows
+     * @return A Cursor of the matching locations
+     */
+    Cursor queryLocations(String[] projection, String selection, String[] selectionArgs,
+                          String sortOrder) {
+        return mOpenHelper.getReadableDatabase().query(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                projection,
+                selection,
+                selectionArgs,
+                null,
+                null,
+                sortOrder);
+    }
+
+    /**
+     * Queries one page of a whole table for an export, in _ID order. Each page starts with a
+     * seek on the primary key, so the last page costs no more than the first.
+     *
+     * @param table   The name of the table
+     * @param columns The columns to return after the _ID, which is always column 0
+     * @param afterId The _ID of the last row of the previous page, 0 for the first page
+     * @param limit   The number of rows in a page
+     * @return A Cursor of at most limit rows
+     */
+    Cursor queryExportPage(String table, String[] columns, long afterId, int limit) {
+        String[] projection = new String[columns.length + 1];
+        projection[0] = BaseColumns._ID;
+        System.arraycopy(columns, 0, projection, 1, columns.length);
+
+        return mOpenHelper.getReadableDatabase().query(
+                table,
+                projection,
+                BaseColumns._ID + " > ? ",
+                new String[]{Long.toString(afterId)},
+                null,
+                null,
+                BaseColumns._ID + " ASC",
+                Integer.toString(limit));
+    }
+
+    /**
+     * Inserts rows imported in bulk into the weather or hourly table, in one transaction. Unlike
+     * {@link #insertForecast}, the rows aren't compared with what is stored and nobody is
+     * notified, so an import of millions of rows costs neither a lookup nor a notification per
+     * row. Call {@link #onImported} once the whole import is in.
+     *
+     * @param table  The name of the weather or hourly table
+     * @param values The rows to insert, each with its location _ID
+     * @return The number of rows inserted
+     */
+    int insertImported(String table, ContentValues[] values) {
+        boolean weather = WeatherContract.WeatherEntry.TABLE_NAME.equals(table);
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        db.beginTransaction();
+        int rowsInserted = 0;
+        try {
+            for (ContentValues value : values) {
+                if (weather && !SunshineDateUtils.isDateNormalized(
+                        value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE))) {
+                    throw new IllegalArgumentException("Date must be normalized to insert");
+                }
+
+                /* Both tables replace the row for the same location and date or time */
+                if (db.insert(table, null, value) != -1) {
+                    rowsInserted++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return rowsInserted;
+    }
+
+    /**
+     * Tells everyone that an import wrote to a table. Today's summaries of the imported
+     * locations are dropped, to be loaded from the table again. Observers are notified once on
+     * the base URI, which reaches the observers of every URI under it.
+     *
+     * @param table       The name of the weather or hourly table
+     * @param locationIds The _IDs of the locations rows were imported for
+     */
+    void onImported(String table, Set<Long> locationIds) {
+        if (locationIds.isEmpty()) return;
+
+        if (WeatherContract.WeatherEntry.TABLE_NAME.equals(table)) {
+            for (long locationId : locationIds) {
+                TodaySummary.invalidate(mContext, locationId);
+            }
+        }
+        mContext.getContentResolver().notifyChange(WeatherContract.BASE_CONTENT_URI, null);
+    }
+
+    /* Closes the database; it is opened again by the next call */
+    void close() {
+        mOpenHelper.close();
+    }
+
+    /**
+     * Returns true if the weather table already holds a row for the location and date with
+     * exactly the given values. This is a lookup on the unique (location_id, date) index.
+     *
+     * @param db         The database, inside the caller's transaction
+     * @param value      The row about to be written
+     * @param locationId The location of the row
+     * @param date       The normalized date of the row
+     * @return true if writing the row would change nothing
+     */
+    private static boolean isStored(SQLiteDatabase db, ContentValues value,
+                                    long locationId, long date) {
+        /* ContentValues#keySet is API 11, valueSet works everywhere */
+        Set<Map.Entry<String, Object>> entries = value.valueSet();
+        String[] columns = new String[entries.size()];
+        Object[] expected = new Object[entries.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : entries) {
+            columns[i] = entry.getKey();
+            expected[i] = entry.getValue();
+            i++;
+        }
+
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                columns,
+                LOCATION_SELECTION + " AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ",
+                new String[]{Long.toString(locationId), Long.toString(date)},
+                null,
+                null,
+                null);
+        try {
+            if (!cursor.moveToFirst()) return false;
+
+            for (i = 0; i < expected.length; i++) {
+                if (expected[i] == null) {
+                    if (!cursor.isNull(i)) return false;
+                } else if (expected[i] instanceof Number) {
+                    /* Numbers are compared by value, as 75 and 75.0 are stored the same way */
+                    if (cursor.isNull(i)
+                            || cursor.getDouble(i) != ((Number) expected[i]).doubleValue()) {
+                        return false;
+                    }
+                } else if (!expected[i].toString().equals(cursor.getString(i))) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* The number of days in a set of changes, over every location */
+    private static int countDays(Map<Long, Set<Long>> changed) {
+        int days = 0;
+        for (Set<Long> dates : changed.values()) {
+            days += dates.size();
+        }
+        return days;
+    }
+
+    /* Remembers that the row of a location and date changed */
+    private static void addChange(Map<Long, Set<Long>> changed, long locationId, long date) {
+        Set<Long> dates = changed.get(locationId);
+        if (dates == null) {
+            dates = new TreeSet<>();
+            changed.put(locationId, dates);
+        }
+        dates.add(date);
+    }
+
+    /**
+     * Reads the location and date of every forecast row matching a selection, so that a delete
+     * can tell exactly which days it removed.
+     *
+     * @param db            The database, inside the caller's transaction
+     * @param selection     The selection of the rows about to be deleted
+     * @param selectionArgs The arguments of the selection
+     * @return The dates of the matching rows, grouped by location
+     */
+    private static Map<Long, Set<Long>> findForecastRows(SQLiteDatabase db, String selection,
+                                                       String[] selectionArgs) {
+        Map<Long, Set<Long>> rows = new TreeMap<>();
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                new String[]{
+                        WeatherContract.WeatherEntry.COLUMN_LOCATION_ID,
+                        WeatherContract.WeatherEntry.COLUMN_DATE},
+                selection,
+                selectionArgs,
+                null,
+                null,
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                addChange(rows, cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Notifies observers of the forecast rows a write changed. Each changed day is notified on
+     * its own URIs, so the screen showing one day only reloads when that day changed, and each
+     * location's forecast list is notified once, however many of its days changed.
+     *
+     * @param changed The dates of the changed rows, grouped by location
+     */
+    private void notifyForecastChanged(Map<Long, Set<Long>> changed) {
+        ContentResolver resolver = mContext.getContentResolver();
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+
+        /* The location-less URIs of a day are shared by every location, notify them once */
+        Set<Long> notifiedDates = new TreeSet<>();
+
+        for (Map.Entry<Long, Set<Long>> location : changed.entrySet()) {
+            long locationId = location.getKey();
+
+            for (long date : location.getValue()) {
+                resolver.notifyChange(
+                        WeatherContract.LocationEntry.buildWeatherUriWithDate(locationId, date),
+                        null);
+                if (date == today) {
+                    resolver.notifyChange(
+                            WeatherContract.LocationEntry.buildTodayUri(locationId), null);
+                }
+
+                if (notifiedDates.add(date)) {
+                    resolver.notifyChange(
+                            WeatherContract.WeatherEntry.buildWeatherUriWithDate(date), null);
+                    if (date == today) {
+                        resolver.notifyChange(WeatherContract.WeatherEntry.CONTENT_URI_TODAY, null);
+                    }
+                }
+            }
+
+            /* Also reaches the lists of every location, which watch the parent change URI */
+            resolver.notifyChange(WeatherContract.buildForecastChangesUri(locationId), null);
+        }
+    }
+
+    /* Prefixes a caller's selection, which may be null, with the location restriction */
+    static String withLocation(String selection) {
+        if (selection == null) return LOCATION_SELECTION;
+        return LOCATION_SELECTION + " AND (" + selection + ")";
+    }
+
+    /* Prefixes a caller's selection arguments, which may be null, with the location _ID */
+    static String[] withLocationArgs(String locationId, String[] selectionArgs) {
+        if (selectionArgs == null) return new String[]{locationId};
+
+        String[] args = new String[selectionArgs.length + 1];
+        args[0] = locationId;
+        System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+        return args;
+    }
+}
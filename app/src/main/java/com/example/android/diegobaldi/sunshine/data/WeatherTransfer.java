@@ -0,0 +1,507 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.provider.BaseColumns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Streams the rows of the weather or hourly table to and from the files behind
+ * {@link WeatherContract.TransferEntry}, in CSV or in a compact binary format.
+ * <p>
+ * Both directions work on one bounded batch of rows at a time, so memory stays the same
+ * whether a table holds a hundred rows or millions. Exports read the table in pages by _ID,
+ * each page a seek on the primary key. Imports insert one transaction per batch, without the
+ * per-row change detection of a sync, and notify observers once when all rows are in.
+ * <p>
+ * A file starts with every saved location, as _IDs differ from one device to the next. On
+ * import, each location is saved, or found by its setting, and the rows of the file are moved
+ * to the _ID it has here. Rows whose location isn't in the file keep their _ID.
+ * <p>
+ * In CSV, each location is a line "#location,_ID,latitude,longitude,setting" before the header
+ * line; the setting comes last, as it may contain commas. After the last row comes the line
+ * "#end,rows", so that an import can tell a whole file from one that was cut short, for
+ * instance by an export that failed part way. The binary format is a header
+ * (magic, version, table name, column names), then the number of locations and each location,
+ * then one record per row, each introduced by a 1 byte and ended by a 0 byte after the last
+ * row. Integer columns are written as zig-zag varints, mostly 1 to 3 bytes, and real columns
+ * as 8 byte doubles so that they come back exactly as they were.
+ */
+final class WeatherTransfer {
+
+    /* Rows read per export page and inserted per import transaction */
+    private static final int BATCH_SIZE = 500;
+
+    private static final int BINARY_MAGIC = 0x53574458;
+    /* Version 2 added the locations */
+    private static final int BINARY_VERSION = 2;
+
+    private static final String CSV_SEPARATOR = ",";
+    private static final String CSV_LOCATION = "#location";
+    private static final String CSV_END = "#end";
+
+    private static final String[] LOCATION_COLUMNS = {
+            BaseColumns._ID,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING};
+    private static final String CHARSET = "UTF-8";
+
+    /* The columns of one table, in file order */
+    static final class Table {
+
+        final String name;
+        final String[] columns;
+        final boolean[] integer;
+
+        private Table(String name, String[] columns, boolean[] integer) {
+            this.name = name;
+            this.columns = columns;
+            this.integer = integer;
+        }
+    }
+
+    static final Table WEATHER = new Table(WeatherContract.WeatherEntry.TABLE_NAME,
+            new String[]{
+                    WeatherContract.WeatherEntry.COLUMN_LOCATION_ID,
+                    WeatherContract.WeatherEntry.COLUMN_DATE,
+                    WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                    WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                    WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                    WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+                    WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+                    WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+                    WeatherContract.WeatherEntry.COLUMN_DEGREES},
+            new boolean[]{true, true, true, false, false, false, false, false, false});
+
+    static final Table HOURLY = new Table(WeatherContract.HourlyEntry.TABLE_NAME,
+            new String[]{
+                    WeatherContract.HourlyEntry.COLUMN_LOCATION_ID,
+                    WeatherContract.HourlyEntry.COLUMN_TIME,
+                    WeatherContract.HourlyEntry.COLUMN_WEATHER_ID,
+                    WeatherContract.HourlyEntry.COLUMN_TEMP,
+                    WeatherContract.HourlyEntry.COLUMN_HUMIDITY,
+                    WeatherContract.HourlyEntry.COLUMN_PRESSURE,
+                    WeatherContract.HourlyEntry.COLUMN_WIND_SPEED,
+                    WeatherContract.HourlyEntry.COLUMN_DEGREES},
+            new boolean[]{true, true, true, true, true, true, true, true});
+
+    private WeatherTransfer() {
+    }
+
+    /**
+     * Writes every row of a table to a stream. The stream is flushed but not closed.
+     *
+     * @param repository Where the rows are read from
+     * @param table      The table to export
+     * @param binary     true for the binary format, false for CSV
+     * @param out        Where the rows are written to
+     * @return The number of rows written
+     * @throws IOException If the stream could not be written, e.g. the reader went away
+     */
+    static long export(WeatherRepository repository, Table table, boolean binary,
+                       OutputStream out) throws IOException {
+        return binary
+                ? exportBinary(repository, table, out)
+                : exportCsv(repository, table, out);
+    }
+
+    /**
+     * Reads rows from a stream until it ends and inserts them into a table, under the _IDs
+     * their locations have here. The stream is not closed.
+     *
+     * @param repository Where the rows are inserted
+     * @param table      The table to import into
+     * @param binary     true for the binary format, false for CSV
+     * @param in         Where the rows are read from
+     * @return The number of rows inserted
+     * @throws IOException If the stream could not be read or is not a valid file for the table
+     */
+    static long importRows(WeatherRepository repository, Table table, boolean binary,
+                           InputStream in) throws IOException {
+        Batch batch = new Batch(repository, table);
+        try {
+            if (binary) {
+                importBinary(table, in, batch);
+            } else {
+                importCsv(table, in, batch);
+            }
+            return batch.finish();
+        } finally {
+            /* Even a failed import may have committed batches before it failed */
+            batch.notifyImported();
+        }
+    }
+
+    private static long exportCsv(WeatherRepository repository, Table table, OutputStream out)
+            throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET));
+        Cursor locations = queryLocations(repository);
+        try {
+            while (locations.moveToNext()) {
+                writer.write(CSV_LOCATION + CSV_SEPARATOR + locations.getLong(0)
+                        + CSV_SEPARATOR + locations.getDouble(1)
+                        + CSV_SEPARATOR + locations.getDouble(2)
+                        + CSV_SEPARATOR + locations.getString(3) + "\n");
+            }
+        } finally {
+            locations.close();
+        }
+
+        for (int i = 0; i < table.columns.length; i++) {
+            if (i > 0) writer.write(CSV_SEPARATOR);
+            writer.write(table.columns[i]);
+        }
+        writer.write('\n');
+
+        long rows = 0;
+        long afterId = 0;
+        int pageSize;
+        do {
+            Cursor page = repository.queryExportPage(table.name, table.columns, afterId,
+                    BATCH_SIZE);
+            try {
+                pageSize = page.getCount();
+                while (page.moveToNext()) {
+                    afterId = page.getLong(0);
+                    for (int i = 0; i < table.columns.length; i++) {
+                        if (i > 0) writer.write(CSV_SEPARATOR);
+                        /* Column 0 of the page is the _ID */
+                        writer.write(table.integer[i]
+                                ? Long.toString(page.getLong(i + 1))
+                                : Double.toString(page.getDouble(i + 1)));
+                    }
+                    writer.write('\n');
+                    rows++;
+                }
+            } finally {
+                page.close();
+            }
+        } while (pageSize == BATCH_SIZE);
+
+        writer.write(CSV_END + CSV_SEPARATOR + rows + "\n");
+        writer.flush();
+        return rows;
+    }
+
+    private static long exportBinary(WeatherRepository repository, Table table, OutputStream out)
+            throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(BINARY_MAGIC);
+        data.writeByte(BINARY_VERSION);
+        data.writeUTF(table.name);
+        data.writeByte(table.columns.length);
+        for (String column : table.columns) {
+            data.writeUTF(column);
+        }
+
+        Cursor locations = queryLocations(repository);
+        try {
+            writeVarLong(data, locations.getCount());
+            while (locations.moveToNext()) {
+                writeVarLong(data, locations.getLong(0));
+                data.writeDouble(locations.getDouble(1));
+                data.writeDouble(locations.getDouble(2));
+                data.writeUTF(locations.getString(3));
+            }
+        } finally {
+            locations.close();
+        }
+
+        long rows = 0;
+        long afterId = 0;
+        int pageSize;
+        do {
+            Cursor page = repository.queryExportPage(table.name, table.columns, afterId,
+                    BATCH_SIZE);
+            try {
+                pageSize = page.getCount();
+                while (page.moveToNext()) {
+                    afterId = page.getLong(0);
+                    data.writeByte(1);
+                    for (int i = 0; i < table.columns.length; i++) {
+                        if (table.integer[i]) {
+                            writeVarLong(data, page.getLong(i + 1));
+                        } else {
+                            data.writeDouble(page.getDouble(i + 1));
+                        }
+                    }
+                    rows++;
+                }
+            } finally {
+                page.close();
+            }
+        } while (pageSize == BATCH_SIZE);
+
+        data.writeByte(0);
+        data.flush();
+        return rows;
+    }
+
+    private static void importCsv(Table table, InputStream in, Batch batch)
+            throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, CHARSET));
+        String header;
+        int lineNumber = 0;
+        while ((header = reader.readLine()) != null && header.startsWith(CSV_LOCATION)) {
+            lineNumber++;
+            String[] fields = header.split(CSV_SEPARATOR, 5);
+            if (fields.length != 5) {
+                throw new IOException("Invalid location on line " + lineNumber);
+            }
+            try {
+                batch.addLocation(Long.parseLong(fields[1]), Double.parseDouble(fields[2]),
+                        Double.parseDouble(fields[3]), fields[4]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid number on line " + lineNumber);
+            }
+        }
+        if (header == null) {
+            throw new IOException("File ends before the header line");
+        }
+        lineNumber++;
+        int[] fileToTable = mapColumns(table, header.trim().split(CSV_SEPARATOR));
+
+        long rows = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) continue;
+
+            if (line.startsWith(CSV_END)) {
+                String[] fields = line.trim().split(CSV_SEPARATOR);
+                if (fields.length != 2 || !Long.toString(rows).equals(fields[1])) {
+                    throw new IOException("End of file on line " + lineNumber + " doesn't match "
+                            + "the " + rows + " rows read");
+                }
+                return;
+            }
+
+            String[] fields = line.trim().split(CSV_SEPARATOR);
+            if (fields.length != fileToTable.length) {
+                throw new IOException("Expected " + fileToTable.length + " fields on line "
+                        + lineNumber + " but found " + fields.length);
+            }
+
+            ContentValues values = new ContentValues();
+            try {
+                for (int i = 0; i < fields.length; i++) {
+                    int column = fileToTable[i];
+                    if (table.integer[column]) {
+                        values.put(table.columns[column], Long.parseLong(fields[i]));
+                    } else {
+                        values.put(table.columns[column], Double.parseDouble(fields[i]));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid number on line " + lineNumber);
+            }
+            batch.add(values);
+            rows++;
+        }
+
+        throw new IOException("File was cut short after line " + lineNumber);
+    }
+
+    private static void importBinary(Table table, InputStream in, Batch batch)
+            throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != BINARY_MAGIC || data.readUnsignedByte() != BINARY_VERSION) {
+            throw new IOException("Not a Sunshine " + table.name + " file");
+        }
+        if (!table.name.equals(data.readUTF())) {
+            throw new IOException("Not a Sunshine " + table.name + " file");
+        }
+        String[] fileColumns = new String[data.readUnsignedByte()];
+        for (int i = 0; i < fileColumns.length; i++) {
+            fileColumns[i] = data.readUTF();
+        }
+        int[] fileToTable = mapColumns(table, fileColumns);
+
+        long locations = readVarLong(data);
+        for (long i = 0; i < locations; i++) {
+            batch.addLocation(readVarLong(data), data.readDouble(), data.readDouble(),
+                    data.readUTF());
+        }
+
+        while (data.readUnsignedByte() == 1) {
+            ContentValues values = new ContentValues();
+            for (int column : fileToTable) {
+                if (table.integer[column]) {
+                    values.put(table.columns[column], readVarLong(data));
+                } else {
+                    values.put(table.columns[column], data.readDouble());
+                }
+            }
+            batch.add(values);
+        }
+    }
+
+    /* Every saved location, with the columns in LOCATION_COLUMNS order */
+    private static Cursor queryLocations(WeatherRepository repository) {
+        return repository.queryLocations(LOCATION_COLUMNS, null, null,
+                BaseColumns._ID + " ASC");
+    }
+
+    /**
+     * Finds the position in the table of every column of a file, which must name each column
+     * of the table exactly once.
+     *
+     * @param table       The table the file is imported into
+     * @param fileColumns The column names of the file, in file order
+     * @return For each column of the file, its index in {@link Table#columns}
+     * @throws IOException If a column is unknown, repeated or missing
+     */
+    private static int[] mapColumns(Table table, String[] fileColumns) throws IOException {
+        if (fileColumns.length != table.columns.length) {
+            throw new IOException("Expected the " + table.columns.length + " columns of "
+                    + table.name + " but found " + fileColumns.length);
+        }
+
+        int[] fileToTable = new int[fileColumns.length];
+        boolean[] seen = new boolean[table.columns.length];
+        for (int i = 0; i < fileColumns.length; i++) {
+            int column = indexOf(table.columns, fileColumns[i].trim());
+            if (column == -1 || seen[column]) {
+                throw new IOException("Unexpected column " + fileColumns[i] + " for " + table.name);
+            }
+            seen[column] = true;
+            fileToTable[i] = column;
+        }
+        return fileToTable;
+    }
+
+    private static int indexOf(String[] values, String value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].equals(value)) return i;
+        }
+        return -1;
+    }
+
+    /* Zig-zag, so that small negative numbers such as temperatures in tenths stay short */
+    private static void writeVarLong(DataOutputStream data, long value) throws IOException {
+        long zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7FL) != 0) {
+            data.writeByte((int) ((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+        data.writeByte((int) zigZag);
+    }
+
+    private static long readVarLong(DataInputStream data) throws IOException {
+        long zigZag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = data.readUnsignedByte();
+            zigZag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigZag >>> 1) ^ -(zigZag & 1);
+            }
+        }
+        throw new EOFException("Malformed number");
+    }
+
+    /* Collects imported rows and inserts them a batch at a time */
+    private static final class Batch {
+
+        /* Both tables name the column the same */
+        private static final String COLUMN_LOCATION_ID =
+                WeatherContract.WeatherEntry.COLUMN_LOCATION_ID;
+
+        private final WeatherRepository mRepository;
+        private final Table mTable;
+        private final ContentValues[] mValues = new ContentValues[BATCH_SIZE];
+        private int mSize;
+        private long mInserted;
+
+        /* The _ID each location of the file has here, by its _ID in the file */
+        private final Map<Long, Long> mLocationIds = new HashMap<>();
+        /* The locations that rows were inserted for, to notify */
+        private final Set<Long> mImported = new TreeSet<>();
+
+        Batch(WeatherRepository repository, Table table) {
+            mRepository = repository;
+            mTable = table;
+        }
+
+        /* Saves a location of the file, or finds it by its setting, and maps its _ID */
+        void addLocation(long fileId, double latitude, double longitude, String setting) {
+            ContentValues location = new ContentValues();
+            location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, setting);
+            location.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, latitude);
+            location.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, longitude);
+            mLocationIds.put(fileId, mRepository.saveLocation(location));
+        }
+
+        void add(ContentValues values) {
+            Long locationId = mLocationIds.get(values.getAsLong(COLUMN_LOCATION_ID));
+            if (locationId != null) {
+                values.put(COLUMN_LOCATION_ID, locationId);
+            }
+            mValues[mSize++] = values;
+            if (mSize == BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        long finish() {
+            flush();
+            return mInserted;
+        }
+
+        private void flush() {
+            if (mSize == 0) return;
+
+            ContentValues[] values = mSize == BATCH_SIZE ? mValues : copyOf(mValues, mSize);
+            mInserted += mRepository.insertImported(mTable.name, values);
+
+            for (int i = 0; i < mSize; i++) {
+                mImported.add(mValues[i].getAsLong(COLUMN_LOCATION_ID));
+                mValues[i] = null;
+            }
+            mSize = 0;
+        }
+
+        /* One notification for the whole import, however many batches it took */
+        void notifyImported() {
+            mRepository.onImported(mTable.name, mImported);
+        }
+
+        private static ContentValues[] copyOf(ContentValues[] values, int length) {
+            ContentValues[] copy = new ContentValues[length];
+            System.arraycopy(values, 0, copy, 0, length);
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import android.content.ContentValues;
+
+import com.example.android.diegobaldi.sunshine.data.TodaySummary;
+import com.example.android.diegobaldi.sunshine.data.WeatherContract;
+import com.example.android.diegobaldi.sunshine.utilities.SunshineDateUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An immutable copy of the forecast a sync has just stored, handed to every {@link SyncSink}.
+ * It is built from the rows the sync wrote rather than read back, so no sink needs the
+ * database, and since nothing in it can change, the sinks can share it across threads.
+ */
+public final class ForecastSnapshot {
+
+    /* _ID of the location the forecast was stored under */
+    public final long locationId;
+
+    /* UNIX time the snapshot was taken */
+    public final long syncedAt;
+
+    /* How many stored days the sync added, changed or removed */
+    public final int changedDays;
+
+    /* Today's weather, or null if the forecast doesn't cover today */
+    public final TodaySummary today;
+
+    private final List<TodaySummary> mDays;
+
+    private ForecastSnapshot(long locationId, long syncedAt, int changedDays,
+                             List<TodaySummary> days) {
+        this.locationId = locationId;
+        this.syncedAt = syncedAt;
+        this.changedDays = changedDays;
+        mDays = Collections.unmodifiableList(days);
+
+        long todayDate = SunshineDateUtils.normalizeDate(syncedAt);
+        TodaySummary today = null;
+        for (TodaySummary day : days) {
+            if (day.date == todayDate) {
+                today = day;
+                break;
+            }
+        }
+        this.today = today;
+    }
+
+    /**
+     * Takes a snapshot of the rows a sync wrote for a location.
+     *
+     * @param locationId  The _ID of the location the rows were stored under
+     * @param values      The rows written to the weather table
+     * @param changedDays How many stored days the write changed
+     * @return The snapshot, with its days sorted by date
+     */
+    static ForecastSnapshot of(long locationId, ContentValues[] values, int changedDays) {
+        List<TodaySummary> days = new ArrayList<>(values.length);
+        for (ContentValues value : values) {
+            Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+            Integer weatherId = value.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+            Double high = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+            Double low = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+
+            /* Rows that can't be summarized were rejected by the database anyway */
+            if (date == null || weatherId == null || high == null || low == null) continue;
+
+            days.add(new TodaySummary(locationId, date, weatherId, high, low));
+        }
+
+        Collections.sort(days, new Comparator<TodaySummary>() {
+            @Override
+            public int compare(TodaySummary lhs, TodaySummary rhs) {
+                return lhs.date < rhs.date ? -1 : (lhs.date == rhs.date ? 0 : 1);
+            }
+        });
+
+        return new ForecastSnapshot(locationId, System.currentTimeMillis(), changedDays, days);
+    }
+
+    /* Every day of the forecast, oldest first */
+    public List<TodaySummary> getDays() {
+        return mDays;
+    }
+}
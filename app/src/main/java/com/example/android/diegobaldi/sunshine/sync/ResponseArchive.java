@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.util.Log;
+
+import com.example.android.diegobaldi.sunshine.data.SunshinePreferences;
+import com.example.android.diegobaldi.sunshine.data.WeatherContract;
+import com.example.android.diegobaldi.sunshine.data.WeatherRepository;
+import com.example.android.diegobaldi.sunshine.utilities.OpenWeatherJsonUtils;
+import com.example.android.diegobaldi.sunshine.utilities.SunshineDateUtils;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The last few daily forecast responses that were stored, gzipped on disk as the server sent
+ * them, so the forecast can be parsed again without the network.
+ * <p>
+ * When the parser or the weather table changes in a way the rows already stored don't follow,
+ * bump {@link #PARSER_VERSION}. The first time the app starts after the update, the newest
+ * response of every location is parsed again and its days that haven't passed yet are written
+ * over what is stored. The responses are also what to look at, or replay, when a forecast was
+ * parsed wrong.
+ * <p>
+ * At most {@link #MAX_RESPONSES} responses and {@link #MAX_BYTES} are kept. Past that, the
+ * least recently used are deleted first; a response is used when it's archived and when it's
+ * parsed again. The hourly forecast isn't archived, the next sync fetches it anyway.
+ */
+final class ResponseArchive {
+
+    private static final String TAG = ResponseArchive.class.getSimpleName();
+
+    /*
+     * The version of the parser and schema the stored rows were made with. Bumping it has every
+     * device rebuild its forecast from the archive once.
+     */
+    static final int PARSER_VERSION = 1;
+
+    /* Directory (in the app's private files directory) holding the responses */
+    private static final String DIRECTORY_NAME = "response_archive";
+    private static final String SUFFIX = ".json.gz";
+
+    /* A response is about 6 KB, 1 to 2 KB gzipped, so this is rarely what evicts */
+    private static final int MAX_RESPONSES = 10;
+    private static final long MAX_BYTES = 256 * 1024;
+
+    private static final Comparator<File> LEAST_RECENTLY_USED = new Comparator<File>() {
+        @Override
+        public int compare(File first, File second) {
+            long difference = first.lastModified() - second.lastModified();
+            return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+        }
+    };
+
+    private static ResponseArchive sInstance;
+
+    private final Context mContext;
+    private final File mDirectory;
+
+    /** A response read back from the archive. */
+    private static final class Entry {
+        final File file;
+        final long receivedMillis;
+        /* The normalized UTC date the parser took for the first day when it was received */
+        long firstDate;
+        String location;
+        String json;
+
+        Entry(File file, long receivedMillis) {
+            this.file = file;
+            this.receivedMillis = receivedMillis;
+        }
+    }
+
+    ResponseArchive(Context context) {
+        mContext = context;
+        mDirectory = new File(context.getFilesDir(), DIRECTORY_NAME);
+    }
+
+    /**
+     * Returns the archive of this app.
+     *
+     * @param context Any context, only its application context is kept
+     * @return The archive
+     */
+    static synchronized ResponseArchive getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ResponseArchive(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Archives the daily forecast the run just stored. Failing to write is logged and otherwise
+     * ignored; the sync doesn't depend on the archive.
+     *
+     * @param run The run, after its forecast was stored
+     */
+    void add(SyncRun run) {
+        add(run, System.currentTimeMillis());
+    }
+
+    /**
+     * Archives the daily forecast like {@link #add(SyncRun)}, as received at the given time.
+     *
+     * @param run The run, after its forecast was stored
+     * @param now The current time, as a UNIX time
+     */
+    synchronized void add(SyncRun run, long now) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDirectory);
+            return;
+        }
+
+        File file = new File(mDirectory, now + SUFFIX);
+        boolean written = false;
+        OutputStream out = null;
+        try {
+            out = new GZIPOutputStream(new FileOutputStream(file));
+            /* Like the checkpoint: our header line first, with the location last */
+            String header = SunshineDateUtils.getNormalizedUtcDateForDay(now, TimeZone.getDefault())
+                    + "\t" + run.location + "\n";
+            out.write(header.getBytes("UTF-8"));
+            out.write(run.dailyJson.getBytes("UTF-8"));
+            written = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + file, e);
+        } finally {
+            closeQuietly(out);
+        }
+
+        if (!written) {
+            file.delete();
+        } else {
+            /* Some file systems only keep seconds, which would tie responses archived together */
+            file.setLastModified(now);
+        }
+        evict();
+    }
+
+    /**
+     * Rebuilds the stored forecast from the archive if it was parsed by an older version of the
+     * parser, and remembers that it's up to date. Runs on SyncEngine's thread, so no sync writes
+     * at the same time.
+     *
+     * @return How many days were changed
+     */
+    synchronized int rebuildIfOutdated() {
+        if (SunshinePreferences.getParserVersion(mContext) == PARSER_VERSION) return 0;
+
+        int changed = rebuild();
+        SunshinePreferences.saveParserVersion(mContext, PARSER_VERSION);
+        return changed;
+    }
+
+    /**
+     * Parses the newest response of every location again and writes the days that haven't
+     * passed yet over what is stored, without touching the network.
+     *
+     * @return How many days were changed
+     */
+    synchronized int rebuild() {
+        Map<String, Entry> newest = new HashMap<>();
+        for (Entry entry : list()) {
+            if (!readInto(entry)) continue;
+
+            Entry current = newest.get(entry.location);
+            if (current == null || current.receivedMillis < entry.receivedMillis) {
+                newest.put(entry.location, entry);
+            }
+        }
+
+        /* The parser keeps the coordinates it finds, which should stay the preferred location's */
+        boolean hadCoordinates = SunshinePreferences.isLocationLatLonAvailable(mContext);
+        double[] coordinates = SunshinePreferences.getLocationCoordinates(mContext);
+
+        WeatherRepository repository = WeatherRepository.getInstance(mContext);
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        int changed = 0;
+        try {
+            for (Entry entry : newest.values()) {
+                ContentValues[] values = parse(entry, today);
+                if (values == null) continue;
+
+                long locationId = repository.saveLocation(entry.location);
+                double[] parsed = SunshinePreferences.getLocationCoordinates(mContext);
+                repository.updateLocationCoordinates(locationId, parsed[0], parsed[1]);
+                changed += repository.mergeForecast(locationId, values);
+
+                entry.file.setLastModified(System.currentTimeMillis());
+            }
+        } finally {
+            if (hadCoordinates) {
+                SunshinePreferences.setLocationDetails(mContext, coordinates[0], coordinates[1]);
+            } else {
+                SunshinePreferences.resetLocationCoordinates(mContext);
+            }
+        }
+
+        Log.d(TAG, "Rebuilt " + newest.size() + " locations, " + changed + " days changed");
+        return changed;
+    }
+
+    /**
+     * Writes every archived response, newest first, for replaying parsing bugs.
+     *
+     * @param writer Where to write the responses
+     */
+    synchronized void dump(PrintWriter writer) {
+        List<Entry> entries = list();
+        writer.println("Response archive (" + entries.size() + " responses, newest first):");
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Entry entry = entries.get(i);
+            if (!readInto(entry)) continue;
+            writer.println("  " + entry.receivedMillis + "\t" + entry.location);
+            writer.println("  " + entry.json);
+        }
+    }
+
+    /*
+     * The parser gives the first day today's date, so the days are moved back to the date they
+     * had when the response was received, and those that have passed since are dropped.
+     */
+    private ContentValues[] parse(Entry entry, long today) {
+        ContentValues[] values;
+        try {
+            values = OpenWeatherJsonUtils.getWeatherContentValuesFromJson(mContext, entry.json);
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to parse " + entry.file, e);
+            return null;
+        }
+        if (values == null) return null;
+
+        long shift = entry.firstDate - today;
+        List<ContentValues> upcoming = new ArrayList<>(values.length);
+        for (ContentValues day : values) {
+            long date = day.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE) + shift;
+            if (date < today) continue;
+
+            day.put(WeatherContract.WeatherEntry.COLUMN_DATE, date);
+            upcoming.add(day);
+        }
+        return upcoming.isEmpty() ? null : upcoming.toArray(new ContentValues[upcoming.size()]);
+    }
+
+    /* Every archived response, least recently used first, without reading them */
+    private List<Entry> list() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return new ArrayList<>();
+
+        Arrays.sort(files, LEAST_RECENTLY_USED);
+        List<Entry> entries = new ArrayList<>(files.length);
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                long received = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                entries.add(new Entry(file, received));
+            } catch (RuntimeException e) {
+                /* Not ours, most likely left by a kill while writing under another name */
+                file.delete();
+            }
+        }
+        return entries;
+    }
+
+    private boolean readInto(Entry entry) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(new FileInputStream(entry.file)), "UTF-8"));
+            String[] header = reader.readLine().split("\t", 2);
+            entry.firstDate = Long.parseLong(header[0]);
+            entry.location = header[1];
+
+            StringBuilder json = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                json.append(buffer, 0, read);
+            }
+            entry.json = json.toString();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            /* Cut short by a kill while writing, or corrupt; it's of no use to anyone */
+            Log.w(TAG, "Unable to read " + entry.file, e);
+            entry.file.delete();
+            return false;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /* Deletes the least recently used responses until the archive is within both limits */
+    private void evict() {
+        List<Entry> entries = list();
+        long bytes = 0;
+        for (Entry entry : entries) {
+            bytes += entry.file.length();
+        }
+
+        /* The most recently used response is always kept, whatever its size */
+        for (int i = 0; i < entries.size() - 1
+                && (entries.size() - i > MAX_RESPONSES || bytes > MAX_BYTES); i++) {
+            File file = entries.get(i).file;
+            bytes -= file.length();
+            if (!file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
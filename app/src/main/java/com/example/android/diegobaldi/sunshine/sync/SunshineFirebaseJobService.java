@@ -15,54 +15,137 @@
  */
 package com.example.android.diegobaldi.sunshine.sync;
 
-import android.content.Context;
-import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.util.Log;
 
 import com.firebase.jobdispatcher.Job;
 import com.firebase.jobdispatcher.JobParameters;
 import com.firebase.jobdispatcher.JobService;
 import com.firebase.jobdispatcher.RetryStrategy;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 
 public class SunshineFirebaseJobService extends JobService {
 
-    private AsyncTask<Void, Void, Void> mFetchWeatherTask;
+    private static final String TAG = SunshineFirebaseJobService.class.getSimpleName();
+
+    /* Shared by every instance of the service, as the dispatcher may create a new one per job */
+    private static final SyncJobStats sStats = new SyncJobStats();
+
+    /*
+     * The jobs we were started for and haven't ended yet. The dispatcher calls us on the main
+     * thread, but syncs finish on SyncEngine's thread, so this is only used under its lock.
+     */
+    private final Map<JobParameters, JobSync> mJobs = new IdentityHashMap<>();
+
+    /**
+     * One job and its sync. A job ends exactly once: either its sync finishes and we call
+     * jobFinished, or the dispatcher stops it first and must not hear from us again.
+     */
+    private final class JobSync implements SyncEngine.Listener {
+
+        private final JobParameters mParams;
+        private final long mStartMillis = SystemClock.elapsedRealtime();
+        private final AtomicBoolean mEnded = new AtomicBoolean();
+        private SyncEngine.Handle mHandle;
+
+        JobSync(JobParameters params) {
+            mParams = params;
+        }
+
+        /*
+         * Called on SyncEngine's thread. The scheduler has already picked the next window from
+         * this outcome, including a short one after a failure, so asking the dispatcher to
+         * retry as well would only queue a second sync.
+         */
+        @Override
+        public void onSyncFinished(SyncRun run) {
+            if (!end(false, false)) return;
+            finishJob(mParams);
+        }
+
+        /* Called on the main thread when the dispatcher stops the job */
+        boolean stop() {
+            boolean retry = SyncScheduler.needsRetry(getApplicationContext());
+            if (!end(true, retry)) return false;
+            mHandle.cancel();
+            return retry;
+        }
+
+        /* Returns true the first time only */
+        private boolean end(boolean stopped, boolean reschedule) {
+            if (!mEnded.compareAndSet(false, true)) return false;
+
+            synchronized (mJobs) {
+                mJobs.remove(mParams);
+            }
+            sStats.onEnded(SystemClock.elapsedRealtime() - mStartMillis, stopped, reschedule);
+            Log.d(TAG, sStats.toString());
+            return true;
+        }
+    }
 
     /**
      * The entry point to your Job. Implementations should offload work to another thread of
      * execution as soon as possible.
      *
      * This is called by the Job Dispatcher to tell us we should start our job. Keep in mind this
-     * method is run on the application's main thread, so we need to offload work to a background
-     * thread.
+     * method is run on the application's main thread, so the sync runs on SyncEngine's thread.
+     * SyncEngine runs one sync at a time, so a job started while another is still outstanding
+     * simply queues behind it; such overlaps are counted.
      *
      * @return whether there is more work remaining.
      */
     @Override
     public boolean onStartJob(final JobParameters jobParameters) {
+        int trigger = triggerOf(jobParameters);
+        if (trigger == SyncRun.TRIGGER_PREFETCH && !UsagePredictor.startPrefetch(this)) {
+            /* Nothing to fetch, or today's budget is spent; look for the next predicted use */
+            SunshineSyncUtils.schedulePrefetch(this);
+            return false;
+        }
 
-        mFetchWeatherTask = new AsyncTask<Void, Void, Void>(){
-            @Override
-            protected Void doInBackground(Void... voids) {
-                Context context = getApplicationContext();
-                SunshineSyncTask.syncWeather(context);
-                jobFinished(jobParameters, false);
-                return null;
-            }
-
-            @Override
-            protected void onPostExecute(Void aVoid) {
-                jobFinished(jobParameters, false);
-            }
-        };
+        if (sStats.onStarted()) {
+            Log.d(TAG, "Job started while another was outstanding");
+        }
 
-        mFetchWeatherTask.execute();
+        JobSync job = new JobSync(jobParameters);
+        synchronized (mJobs) {
+            mJobs.put(jobParameters, job);
+            /* Assigned under the lock so onStopJob never sees a job without its handle */
+            job.mHandle = getEngine().submit(trigger, job);
+        }
         return true;
     }
 
+    /* The engine jobs are synced on; tests hand in one with stages of their own */
+    SyncEngine getEngine() {
+        return SyncEngine.getInstance(this);
+    }
+
+    /* Tells the dispatcher a job is done; tests count the calls instead */
+    void finishJob(JobParameters jobParameters) {
+        jobFinished(jobParameters, false);
+    }
+
+    /* The batch job always syncs everything, the periodic one depends on what that costs */
+    private static int triggerOf(JobParameters jobParameters) {
+        String tag = jobParameters.getTag();
+        if (SunshineSyncUtils.SUNSHINE_BATCH_SYNC_TAG.equals(tag)) return SyncRun.TRIGGER_BATCH;
+        if (SunshineSyncUtils.SUNSHINE_PREFETCH_TAG.equals(tag)) return SyncRun.TRIGGER_PREFETCH;
+        return SyncRun.TRIGGER_JOB;
+    }
+
     /**
      * Called when the scheduling engine has decided to interrupt the execution of a running job,
      * most likely because the runtime constraints associated with the job are no longer satisfied.
+     * The sync stops before its next stage.
+     * <p>
+     * We only ask for a retry when the stored forecast is getting old; otherwise the next
+     * periodic sync comes soon enough, and retrying every stopped job would pile syncs up.
      *
      * @return whether the job should be retried
      * @see Job.Builder#setRetryStrategy(RetryStrategy)
@@ -70,9 +153,11 @@ public class SunshineFirebaseJobService extends JobService {
      */
     @Override
     public boolean onStopJob(JobParameters jobParameters) {
-        if (mFetchWeatherTask != null) {
-            mFetchWeatherTask.cancel(true);
+        JobSync job;
+        synchronized (mJobs) {
+            job = mJobs.get(jobParameters);
         }
-        return true;
+        /* The sync already finished and we called jobFinished */
+        return job != null && job.stop();
     }
-}
\ No newline at end of file
+}
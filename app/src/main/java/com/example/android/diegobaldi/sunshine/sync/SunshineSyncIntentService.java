@@ -18,18 +18,43 @@ package com.example.android.diegobaldi.sunshine.sync;
 import android.app.IntentService;
 import android.content.Intent;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * An {@link IntentService} subclass for handling asynchronous task requests in
  * a service on a separate handler thread.
  */
 public class SunshineSyncIntentService extends IntentService {
 
+    /* What asked for the sync, one of the SyncRun.TRIGGER_ constants */
+    static final String EXTRA_TRIGGER = "trigger";
+
     public SunshineSyncIntentService() {
         super("SunshineSyncIntentService");
     }
 
+    /*
+     * The sync runs on SyncEngine's thread like every other sync. We wait for it here, so the
+     * service, and with it our process, stays alive until the sync is done.
+     */
     @Override
     protected void onHandleIntent(Intent intent) {
-        SunshineSyncTask.syncWeather(this);
+        int trigger = intent.getIntExtra(EXTRA_TRIGGER, SyncRun.TRIGGER_INTENT);
+        SyncEngine.getInstance(this).submit(trigger, null).await();
+    }
+
+    /*
+     * Prints the sync journal for "adb shell dumpsys activity service SunshineSyncIntentService",
+     * followed by the archived responses when "--responses" is passed as well. The service has
+     * to be running, which it is while a sync is; otherwise pull the files or use the debug
+     * screen.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        SyncJournal.getInstance(this).dump(writer);
+        if (args.length > 0 && "--responses".equals(args[0])) {
+            ResponseArchive.getInstance(this).dump(writer);
+        }
     }
 }
\ No newline at end of file
@@ -15,150 +15,302 @@
  */
 package com.example.android.diegobaldi.sunshine.sync;
 
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
-import android.net.Uri;
 import android.text.format.DateUtils;
+import android.util.Log;
 
 import com.example.android.diegobaldi.sunshine.data.SunshinePreferences;
-import com.example.android.diegobaldi.sunshine.data.WeatherContract;
+import com.example.android.diegobaldi.sunshine.data.WeatherRepository;
 import com.example.android.diegobaldi.sunshine.utilities.NetworkUtils;
 import com.example.android.diegobaldi.sunshine.utilities.NotificationUtils;
 import com.example.android.diegobaldi.sunshine.utilities.OpenWeatherJsonUtils;
-import com.example.android.diegobaldi.sunshine.utilities.SunshineDateUtils;
 import com.example.android.diegobaldi.sunshine.utilities.SunshineWeatherUtils;
 
-import java.net.URL;
+import org.json.JSONException;
 
-import static com.example.android.diegobaldi.sunshine.utilities.NotificationUtils.INDEX_MAX_TEMP;
-import static com.example.android.diegobaldi.sunshine.utilities.NotificationUtils.INDEX_MIN_TEMP;
-import static com.example.android.diegobaldi.sunshine.utilities.NotificationUtils.INDEX_WEATHER_ID;
-import static com.example.android.diegobaldi.sunshine.utilities.NotificationUtils.WEATHER_NOTIFICATION_PROJECTION;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * The stages of a sync of the preferred location, run in this order by {@link SyncEngine}:
+ * fetch the daily forecast, parse it, fetch the hourly forecast, store both, and hand what was
+ * stored to the wearable and the notification at the same time.
+ */
 public class SunshineSyncTask {
 
+    private static final String TAG = SunshineSyncTask.class.getSimpleName();
+
+    /* How long each sink may take to deliver the stored forecast, see SyncFanOut */
+    private static final long WEAR_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final long NOTIFICATION_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
     /**
-     * Performs the network request for updated weather, parses the JSON from that request, and
-     * inserts the new weather information into our ContentProvider. Will notify the user that new
-     * weather has been loaded if the user hasn't been notified of the weather within the last day
-     * AND they haven't disabled notifications in the preferences screen.
+     * Returns the stages of a sync.
      *
-     * @param context Used to access utility methods and the ContentResolver
+     * @return A new array of every stage, in the order they run
      */
-    synchronized public static void syncWeather(Context context) {
+    static SyncStage[] stages() {
+        return new SyncStage[]{
+                FETCH_DAILY, PARSE_DAILY, FETCH_HOURLY, STORE, FAN_OUT
+        };
+    }
 
-        try {
-            /*
-             * The getUrl method will return the URL that we need to get the forecast JSON for the
-             * weather. It will decide whether to create a URL based off of the latitude and
-             * longitude or off of a simple location as a String.
-             */
-            URL weatherRequestUrl = NetworkUtils.getUrl(context);
+    /*
+     * The URL decides whether to ask for the forecast by the latitude and longitude or by the
+     * location as a String, and SyncPolicy how many days to ask for. If the response is still
+     * coming in when the stage's time is up, we keep the days that arrived whole rather than
+     * nothing. Whatever we got is checkpointed until it's stored, and if an earlier sync of this
+     * location got that far but no further, we start from its checkpoint instead.
+     */
+    private static final SyncStage FETCH_DAILY = new SyncStage("fetch", 45, false) {
+        @Override
+        void run(SyncRun run) throws IOException {
+            run.location = SunshinePreferences.getPreferredWeatherLocation(run.context);
+            SyncCheckpoint checkpoint = SyncCheckpoint.getInstance(run.context);
+            if (checkpoint.restore(run)) return;
+
+            run.payload = SyncPolicy.choosePayload(run.context, run.getTrigger());
+
+            URL weatherRequestUrl = run.payload == SyncPolicy.PAYLOAD_MINIMAL
+                    ? NetworkUtils.getUrl(run.context, SyncPolicy.MINIMAL_DAYS)
+                    : NetworkUtils.getUrl(run.context);
+            try {
+                run.dailyJson = run.fetch(weatherRequestUrl);
+            } catch (NetworkUtils.DeadlineExceededException e) {
+                run.dailyJson = OpenWeatherJsonUtils.completeDaysOf(e.partialResponse);
+                if (run.dailyJson == null) throw e;
+
+                Log.d(TAG, "Out of time, keeping the days of the forecast that arrived");
+                run.dailyPartial = true;
+                run.partial = true;
+            }
+            if (run.dailyJson != null) {
+                run.bytesDownloaded += run.dailyJson.length();
+                checkpoint.save(run);
+            }
+        }
+    };
 
-            /* Use the URL to retrieve the JSON */
-            String jsonWeatherResponse = NetworkUtils.getResponseFromHttpUrl(weatherRequestUrl);
+    /*
+     * In cases where our JSON contained an error code, getWeatherContentValuesFromJson returns
+     * null. We have no reason to go on if there isn't any fresh data to insert, and no reason
+     * to keep the checkpoint of a response we can't use.
+     */
+    private static final SyncStage PARSE_DAILY = new SyncStage("parse", 5, false) {
+        @Override
+        void run(SyncRun run) throws JSONException {
+            try {
+                if (run.dailyJson != null) {
+                    run.weatherValues = OpenWeatherJsonUtils
+                            .getWeatherContentValuesFromJson(run.context, run.dailyJson);
+                }
+            } catch (JSONException e) {
+                SyncCheckpoint.getInstance(run.context).clear();
+                throw e;
+            }
+            if (run.weatherValues == null || run.weatherValues.length == 0) {
+                SyncCheckpoint.getInstance(run.context).clear();
+                run.finish(SyncRun.OUTCOME_NO_DATA);
+                return;
+            }
+
+            /* Not every server honours the number of days we ask for */
+            if (run.payload == SyncPolicy.PAYLOAD_MINIMAL) {
+                if (run.weatherValues.length > SyncPolicy.MINIMAL_DAYS) {
+                    run.weatherValues = Arrays.copyOf(run.weatherValues, SyncPolicy.MINIMAL_DAYS);
+                }
+                run.dailyPartial = true;
+            }
+        }
+    };
 
-            /* Parse the JSON into a list of weather values */
-            ContentValues[] weatherValues = OpenWeatherJsonUtils
-                    .getWeatherContentValuesFromJson(context, jsonWeatherResponse);
+    /*
+     * The hourly forecast is optional, and isn't fetched when the sync has to be cheap. When we
+     * have it, the days it covers get their low and high from it, which were collected while
+     * parsing it.
+     */
+    private static final SyncStage FETCH_HOURLY = new SyncStage("hourly", 30, true) {
+        @Override
+        void run(SyncRun run) {
+            if (!SyncPolicy.includesHourly(run.payload)) return;
+
+            run.hourlyValues = fetchHourlyForecast(run);
+            if (run.hourlyValues != null) {
+                OpenWeatherJsonUtils.applyDailyExtremes(run.weatherValues, run.dailyExtremes);
+            }
+        }
+    };
 
+    /*
+     * We run in Sunshine's own process, so we write through the repository instead of the
+     * ContentResolver. Observers are notified the same way. This is the last stage that
+     * cancellation can stop before anything is written; once the forecast is written, the run
+     * commits and can no longer be cancelled.
+     */
+    private static final SyncStage STORE = new SyncStage("store", 10, false) {
+        @Override
+        void run(SyncRun run) {
             /*
-             * In cases where our JSON contained an error code, getWeatherContentValuesFromJson
-             * would have returned null. We need to check for those cases here to prevent any
-             * NullPointerExceptions being thrown. We also have no reason to insert fresh data if
-             * there isn't any to insert.
+             * If the location was changed in the settings while we were fetching, what we have
+             * is for a location nobody wants anymore; the resync the settings asked for will
+             * store the right one.
              */
-            if (weatherValues != null && weatherValues.length != 0) {
-                /* Get a handle on the ContentResolver to delete and insert data */
-                ContentResolver sunshineContentResolver = context.getContentResolver();
-
-                /* Delete old weather data because we don't need to keep multiple days' data */
-                sunshineContentResolver.delete(
-                        WeatherContract.WeatherEntry.CONTENT_URI,
-                        null,
-                        null);
-
-                /* Insert our new weather data into Sunshine's ContentProvider */
-                sunshineContentResolver.bulkInsert(
-                        WeatherContract.WeatherEntry.CONTENT_URI,
-                        weatherValues);
-
-                /* Build the URI for today's weather in order to show up to date data in notification */
-                Uri todaysWeatherUri = WeatherContract.WeatherEntry.buildWeatherUriWithDate(SunshineDateUtils.normalizeDate(System.currentTimeMillis()));
-
-                /*
-                 * The MAIN_FORECAST_PROJECTION array passed in as the second parameter is defined in our WeatherContract
-                 * class and is used to limit the columns returned in our cursor.
-                 */
-                Cursor todayWeatherCursor = context.getContentResolver().query(
-                        todaysWeatherUri,
-                        WEATHER_NOTIFICATION_PROJECTION,
-                        null,
-                        null,
-                        null);
-
-                /*
-                 * If todayWeatherCursor is empty, moveToFirst will return false. If our cursor is not
-                 * empty, we want to show the notification.
-                 */
-                if (todayWeatherCursor.moveToFirst()) {
-
-                    /* Weather ID as returned by API, used to identify the icon to be used */
-                    int weatherId = todayWeatherCursor.getInt(INDEX_WEATHER_ID);
-                    double high = todayWeatherCursor.getDouble(INDEX_MAX_TEMP);
-                    double low = todayWeatherCursor.getDouble(INDEX_MIN_TEMP);
-
-                    /* getSmallArtResourceIdForWeatherCondition returns the proper art to show given an ID */
-                    int smallArtResourceId = SunshineWeatherUtils.getSmallArtResourceIdForWeatherCondition(weatherId);
-                    String weatherString = SunshineWeatherUtils.getStringForWeatherCondition(context, weatherId);
-
-                    new SunshineWearSyncTask(context, weatherString, smallArtResourceId, high, low);
+            if (isObsolete(run)) {
+                Log.d(TAG, "Location changed while syncing, dropping the forecast for "
+                        + run.location);
+                SyncCheckpoint.getInstance(run.context).clear();
+                run.finish(SyncRun.OUTCOME_CANCELLED);
+                return;
+            }
 
+            WeatherRepository repository = WeatherRepository.getInstance(run.context);
 
-                }
+            /* The forecast is stored under the location it was requested for */
+            run.locationId = resolvePreferredLocationId(run.context);
 
-                /* Always close your cursor when you're done with it to avoid wasting resources. */
-                todayWeatherCursor.close();
+            /* Parsing the JSON stored the coordinates the server returned, keep them too */
+            double[] coordinates = SunshinePreferences.getLocationCoordinates(run.context);
+            repository.updateLocationCoordinates(run.locationId, coordinates[0], coordinates[1]);
 
+            /*
+             * Replace this location's forecast with the new one. Days that didn't change aren't
+             * written at all, so whoever is looking at one of those days doesn't reload it, and
+             * days that are no longer part of the forecast are deleted. Other saved locations
+             * keep their forecasts. If we only got the first days, because we ran out of time
+             * or only asked for those, they are written and the later ones we had are kept.
+             */
+            if (run.dailyPartial) {
+                run.changedDays = repository.mergeForecast(run.locationId, run.weatherValues);
+            } else {
+                run.changedDays = repository.replaceForecast(run.locationId, run.weatherValues);
+            }
 
+            if (run.hourlyValues != null) {
+                repository.replaceHourly(run.locationId, run.hourlyValues);
+            }
+            run.commit();
 
-                /*
-                 * Finally, after we insert data into the ContentProvider, determine whether or not
-                 * we should notify the user that the weather has been refreshed.
-                 */
-                boolean notificationsEnabled = SunshinePreferences.areNotificationsEnabled(context);
+            /* Stored, so it's archived and a later sync has no reason to start from it */
+            ResponseArchive.getInstance(run.context).add(run);
+            SyncCheckpoint.getInstance(run.context).clear();
+        }
+    };
 
-                /*
-                 * If the last notification was shown was more than 1 day ago, we want to send
-                 * another notification to the user that the weather has been updated. Remember,
-                 * it's important that you shouldn't spam your users with notifications.
-                 */
-                long timeSinceLastNotification = SunshinePreferences
-                        .getEllapsedTimeSinceLastNotification(context);
+    /*
+     * The snapshot is built from the rows that were just stored, so neither the watch face nor
+     * the notification goes back to the database for today's weather. The wearable sink waits
+     * until the watch has the data, so its timeout and failures are the fan-out's to handle.
+     */
+    private static final SyncSink WEAR = new SyncSink("wear", WEAR_TIMEOUT_MILLIS) {
+        @Override
+        void deliver(Context context, ForecastSnapshot snapshot) throws IOException {
+            if (snapshot.today == null) return;
 
-                boolean oneDayPassedSinceLastNotification = false;
+            /* getSmallArtResourceIdForWeatherCondition returns the proper art to show given an ID */
+            int smallArtResourceId = SunshineWeatherUtils
+                    .getSmallArtResourceIdForWeatherCondition(snapshot.today.weatherId);
+            String weatherString = SunshineWeatherUtils
+                    .getStringForWeatherCondition(context, snapshot.today.weatherId);
 
-                if (timeSinceLastNotification >= DateUtils.DAY_IN_MILLIS) {
-                    oneDayPassedSinceLastNotification = true;
-                }
+            SunshineWearSyncTask.sendBlocking(context, weatherString, smallArtResourceId,
+                    snapshot.today.high, snapshot.today.low, timeoutMillis);
+        }
+    };
 
-                /*
-                 * We only want to show the notification if the user wants them shown and we
-                 * haven't shown a notification in the past day.
-                 */
-                if (notificationsEnabled && oneDayPassedSinceLastNotification) {
-                    NotificationUtils.notifyUserOfNewWeather(context);
-                }
+    /*
+     * Finally, after we insert data into the database, determine whether or not we should
+     * notify the user that the weather has been refreshed.
+     */
+    private static final SyncSink NOTIFICATION =
+            new SyncSink("notification", NOTIFICATION_TIMEOUT_MILLIS) {
+        @Override
+        void deliver(Context context, ForecastSnapshot snapshot) {
+            if (snapshot.today == null) return;
+
+            boolean notificationsEnabled = SunshinePreferences.areNotificationsEnabled(context);
+
+            /*
+             * If the last notification was shown was more than 1 day ago, we want to send
+             * another notification to the user that the weather has been updated. Remember,
+             * it's important that you shouldn't spam your users with notifications.
+             */
+            long timeSinceLastNotification = SunshinePreferences
+                    .getEllapsedTimeSinceLastNotification(context);
 
-            /* If the code reaches this point, we have successfully performed our sync */
+            boolean oneDayPassedSinceLastNotification =
+                    timeSinceLastNotification >= DateUtils.DAY_IN_MILLIS;
 
+            /*
+             * We only want to show the notification if the user wants them shown and we
+             * haven't shown a notification in the past day.
+             */
+            if (notificationsEnabled && oneDayPassedSinceLastNotification) {
+                NotificationUtils.notifyUserOfNewWeather(context, snapshot.today);
             }
+        }
+    };
 
-        } catch (Exception e) {
-            /* Server probably invalid */
-            e.printStackTrace();
+    /* Hands what was stored to the sinks above, and to any registered later */
+    static final SyncFanOut FAN_OUT = new SyncFanOut(WEAR, NOTIFICATION);
+
+    /**
+     * Downloads and parses the forecast in 3 hour steps for the preferred location.
+     *
+     * @param run The sync, whose daily extremes are filled with the low and high of each day,
+     *            see {@link OpenWeatherJsonUtils#getHourlyContentValuesFromJson}
+     * @return The rows for the hourly table, or null if they couldn't be fetched
+     */
+    private static ContentValues[] fetchHourlyForecast(SyncRun run) {
+        Map<Long, double[]> dailyExtremes = run.dailyExtremes;
+        try {
+            String jsonHourlyResponse = run.fetch(NetworkUtils.getHourlyUrl(run.context));
+            if (jsonHourlyResponse == null) return null;
+            run.bytesDownloaded += jsonHourlyResponse.length();
+            return OpenWeatherJsonUtils.getHourlyContentValuesFromJson(
+                    jsonHourlyResponse, dailyExtremes);
+        } catch (NetworkUtils.DeadlineExceededException e) {
+            /* Half an hourly forecast is no use; the daily one is stored without it */
+            Log.d(TAG, "Out of time, storing the forecast without the hourly one");
+            run.partial = true;
+            dailyExtremes.clear();
+            return null;
+        } catch (IOException | JSONException e) {
+            /* Not every server has an hourly forecast; the daily one is synced regardless */
+            Log.w(TAG, "Unable to fetch the hourly forecast", e);
+            dailyExtremes.clear();
+            return null;
         }
     }
+
+    /**
+     * Returns whether the forecast a run fetched is for a location that is no longer the
+     * preferred one.
+     *
+     * @param run The run, which may not have fetched anything yet
+     * @return true if the run fetched the forecast of another location
+     */
+    static boolean isObsolete(SyncRun run) {
+        String location = run.location;
+        return location != null
+                && !location.equals(SunshinePreferences.getPreferredWeatherLocation(run.context));
+    }
+
+    /**
+     * Returns the _ID of the location set in the preferences, saving it first if this is the
+     * first time it is synced, and remembers it as the current location.
+     *
+     * @param context Used to read the preferences and access the database
+     * @return The _ID of the preferred location
+     */
+    public static long resolvePreferredLocationId(Context context) {
+        /* Saving a location that is already saved simply returns its _ID */
+        long locationId = WeatherRepository.getInstance(context)
+                .saveLocation(SunshinePreferences.getPreferredWeatherLocation(context));
+        SunshinePreferences.setCurrentLocationId(context, locationId);
+        return locationId;
+    }
 }
\ No newline at end of file
@@ -17,11 +17,10 @@ package com.example.android.diegobaldi.sunshine.sync;
 
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 
-import com.example.android.diegobaldi.sunshine.data.WeatherContract;
 import com.firebase.jobdispatcher.Constraint;
 import com.firebase.jobdispatcher.Driver;
 import com.firebase.jobdispatcher.FirebaseJobDispatcher;
@@ -35,19 +34,35 @@ import java.util.concurrent.TimeUnit;
 public class SunshineSyncUtils {
 
     /*
-     * Interval at which to sync with the weather. Use TimeUnit for convenience, rather than
-     * writing out a bunch of multiplication ourselves and risk making a silly mistake.
+     * How long to wait after the location was changed before syncing it. Each change within
+     * this time replaces the pending sync, so typing a location syncs it once.
      */
-    private static final int SYNC_INTERVAL_HOURS = 3;
-    private static final int SYNC_INTERVAL_SECONDS = (int) TimeUnit.HOURS.toSeconds(SYNC_INTERVAL_HOURS);
-    private static final int SYNC_FLEXTIME_SECONDS = SYNC_INTERVAL_SECONDS / 3;
+    private static final long LOCATION_RESYNC_DELAY_MILLIS = 1500;
 
     private static boolean sInitialized;
 
+    /* Posts the debounced location resync; only touched under the class lock */
+    private static Handler sHandler;
+    private static Runnable sPendingLocationResync;
+
     private static final String SUNSHINE_SYNC_TAG = "sunshine-sync";
 
+    /* Tag of the job that downloads the whole forecast while the device is charging on wifi */
+    static final String SUNSHINE_BATCH_SYNC_TAG = "sunshine-sync-batch";
+
+    /* Tag of the one-off job that syncs shortly before the weather is usually looked at */
+    static final String SUNSHINE_PREFETCH_TAG = "sunshine-prefetch";
+
+    /* How late the dispatcher may start the prefetch, which is still before the predicted use */
+    private static final int PREFETCH_WINDOW_SECONDS = (int) TimeUnit.MINUTES.toSeconds(15);
+
+    /* The batch job runs once in about a day, whenever the device is charging on wifi */
+    private static final int BATCH_SYNC_WINDOW_START_SECONDS = (int) TimeUnit.HOURS.toSeconds(12);
+    private static final int BATCH_SYNC_WINDOW_END_SECONDS = (int) TimeUnit.HOURS.toSeconds(24);
+
     /**
-     * Schedules a repeating sync of Sunshine's weather data using FirebaseJobDispatcher.
+     * Schedules a repeating sync of Sunshine's weather data using FirebaseJobDispatcher. The
+     * window is picked by {@link SyncScheduler}, and picked again after every sync.
      * @param context Context used to create the GooglePlayDriver that powers the
      *                FirebaseJobDispatcher
      */
@@ -56,6 +71,8 @@ public class SunshineSyncUtils {
         Driver driver = new GooglePlayDriver(context);
         FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(driver);
 
+        int[] window = SyncScheduler.nextWindowSeconds(context);
+
         /* Create the Job to periodically sync Sunshine */
         Job syncSunshineJob = dispatcher.newJobBuilder()
                 /* The Service that will be used to sync Sunshine's data */
@@ -79,15 +96,15 @@ public class SunshineSyncUtils {
                  */
                 .setRecurring(true)
                 /*
-                 * We want the weather data to be synced every 3 to 4 hours. The first argument for
+                 * We want the weather data to be synced within the window SyncScheduler picked,
+                 * between 1 and about 11 hours depending on how the weather has been changing,
+                 * whether anyone is looking and what a sync costs. The first argument for
                  * Trigger's static executionWindow method is the start of the time frame when the
                  * sync should be performed. The second argument is the latest point in time at
                  * which the data should be synced. Please note that this end time is not
                  * guaranteed, but is more of a guideline for FirebaseJobDispatcher to go off of.
                  */
-                .setTrigger(Trigger.executionWindow(
-                        SYNC_INTERVAL_SECONDS,
-                        SYNC_INTERVAL_SECONDS + SYNC_FLEXTIME_SECONDS))
+                .setTrigger(Trigger.executionWindow(window[0], window[1]))
                 /*
                  * If a Job with the tag with provided already exists, this new job will replace
                  * the old one.
@@ -99,6 +116,72 @@ public class SunshineSyncUtils {
         /* Schedule the Job with the dispatcher */
         dispatcher.schedule(syncSunshineJob);
     }
+
+    /**
+     * Schedules a repeating sync that only runs while the device is charging on an unmetered
+     * network. On a metered network or a low battery the periodic sync only refreshes the next
+     * few days (see {@link SyncPolicy}); this one downloads the whole forecast when it's cheap.
+     *
+     * @param context Context used to create the GooglePlayDriver that powers the
+     *                FirebaseJobDispatcher
+     */
+    static void scheduleBatchSync(@NonNull final Context context) {
+
+        Driver driver = new GooglePlayDriver(context);
+        FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(driver);
+
+        Job batchSyncJob = dispatcher.newJobBuilder()
+                .setService(SunshineFirebaseJobService.class)
+                .setTag(SUNSHINE_BATCH_SYNC_TAG)
+                /* Both constraints must hold, so the dispatcher batches it with other work */
+                .setConstraints(Constraint.ON_UNMETERED_NETWORK, Constraint.DEVICE_CHARGING)
+                .setLifetime(Lifetime.FOREVER)
+                .setRecurring(true)
+                .setTrigger(Trigger.executionWindow(
+                        BATCH_SYNC_WINDOW_START_SECONDS, BATCH_SYNC_WINDOW_END_SECONDS))
+                /* Its window never changes, so there's no need to push back one already pending */
+                .setReplaceCurrent(false)
+                .build();
+
+        dispatcher.schedule(batchSyncJob);
+    }
+
+    /**
+     * Schedules a sync shortly before the user usually looks at the weather, as predicted by
+     * {@link UsagePredictor}, replacing the one scheduled before. If no use is predicted within
+     * a day, any scheduled prefetch is cancelled.
+     *
+     * @param context Context used to create the GooglePlayDriver that powers the
+     *                FirebaseJobDispatcher
+     */
+    static void schedulePrefetch(@NonNull final Context context) {
+
+        Driver driver = new GooglePlayDriver(context);
+        FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(driver);
+
+        long prefetchMillis = UsagePredictor.nextPrefetchMillis(context);
+        if (prefetchMillis == -1) {
+            dispatcher.cancel(SUNSHINE_PREFETCH_TAG);
+            return;
+        }
+
+        int start = (int) TimeUnit.MILLISECONDS.toSeconds(
+                prefetchMillis - System.currentTimeMillis());
+        Job prefetchJob = dispatcher.newJobBuilder()
+                .setService(SunshineFirebaseJobService.class)
+                .setTag(SUNSHINE_PREFETCH_TAG)
+                .setConstraints(Constraint.ON_ANY_NETWORK)
+                /* A prediction from before a reboot is picked again after the next sync */
+                .setLifetime(Lifetime.UNTIL_NEXT_BOOT)
+                /* The next one is picked after this one syncs, or decides not to */
+                .setRecurring(false)
+                .setTrigger(Trigger.executionWindow(start, start + PREFETCH_WINDOW_SECONDS))
+                .setReplaceCurrent(true)
+                .build();
+
+        dispatcher.schedule(prefetchJob);
+    }
+
     /**
      * Creates periodic sync tasks and checks to see if an immediate sync is required. If an
      * immediate sync is required, this method will take care of making sure that sync occurs.
@@ -121,62 +204,29 @@ public class SunshineSyncUtils {
          * periodically.
          */
         scheduleFirebaseJobDispatcherSync(context);
+        scheduleBatchSync(context);
+        schedulePrefetch(context);
 
         /*
-         * We need to check to see if our ContentProvider has data to display in our forecast
-         * list. However, performing a query on the main thread is a bad idea as this may
-         * cause our UI to lag. Therefore, we create a thread in which we will run the query
-         * to check the contents of our ContentProvider.
+         * We need to check whether the last stored forecast still covers today. The last sync
+         * left what it stored in the preferences, so this reads a few values instead of
+         * querying the database, but loading the preferences may still hit the disk. So we
+         * check on SyncEngine's thread, which also means a sync that is already running
+         * finishes before we look; scheduled syncs still waiting run after the check. If this
+         * version of the app parses forecasts differently,
+         * the stored one is first parsed again from the archived responses.
          */
-        Thread checkForEmpty = new Thread(new Runnable() {
+        SyncEngine.getInstance(context).post(new Runnable() {
             @Override
             public void run() {
+                ResponseArchive.getInstance(context).rebuildIfOutdated();
 
-                /* URI for every row of weather data in our weather table*/
-                Uri forecastQueryUri = WeatherContract.WeatherEntry.CONTENT_URI;
-
-                /*
-                 * Since this query is going to be used only as a check to see if we have any
-                 * data (rather than to display data), we just need to PROJECT the ID of each
-                 * row. In our queries where we display data, we need to PROJECT more columns
-                 * to determine what weather details need to be displayed.
-                 */
-                String[] projectionColumns = {WeatherContract.WeatherEntry._ID};
-                String selectionStatement = WeatherContract.WeatherEntry
-                        .getSqlSelectForTodayOnwards();
-
-                /* Here, we perform the query to check to see if we have any weather data */
-                Cursor cursor = context.getContentResolver().query(
-                        forecastQueryUri,
-                        projectionColumns,
-                        selectionStatement,
-                        null,
-                        null);
-                /*
-                 * A Cursor object can be null for various different reasons. A few are
-                 * listed below.
-                 *
-                 *   1) Invalid URI
-                 *   2) A certain ContentProvider's query method returns null
-                 *   3) A RemoteException was thrown.
-                 *
-                 * Bottom line, it is generally a good idea to check if a Cursor returned
-                 * from a ContentResolver is null.
-                 *
-                 * If the Cursor was null OR if it was empty, we need to sync immediately to
-                 * be able to display data to the user.
-                 */
-                if (null == cursor || cursor.getCount() == 0) {
-                    startImmediateSync(context);
+                /* If it doesn't, we need to sync immediately to be able to show the user data */
+                if (!SyncScheduler.isFresh(context)) {
+                    startImmediateSync(context, SyncRun.TRIGGER_STARTUP);
                 }
-
-                /* Make sure to close the Cursor to avoid memory leaks! */
-                cursor.close();
             }
         });
-
-        /* Finally, once the thread is prepared, fire it off to perform our checks. */
-        checkForEmpty.start();
     }
 
     /**
@@ -186,7 +236,75 @@ public class SunshineSyncUtils {
      * @param context The Context used to start the IntentService for the sync.
      */
     public static void startImmediateSync(@NonNull final Context context) {
+        startImmediateSync(context, SyncRun.TRIGGER_INTENT);
+    }
+
+    /**
+     * Asks for the forecast of a location the user just picked. The sync starts once the
+     * location has stopped changing for a moment, and a sync still working on the previous
+     * location is cancelled rather than allowed to store it.
+     *
+     * @param context The Context used to reach the sync
+     */
+    synchronized public static void requestLocationResync(@NonNull Context context) {
+        final Context appContext = context.getApplicationContext();
+
+        SyncEngine.getInstance(appContext).cancelObsolete();
+
+        if (sHandler == null) {
+            sHandler = new Handler(Looper.getMainLooper());
+        }
+        if (sPendingLocationResync != null) {
+            sHandler.removeCallbacks(sPendingLocationResync);
+        }
+
+        sPendingLocationResync = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SunshineSyncUtils.class) {
+                    sPendingLocationResync = null;
+                }
+                startImmediateSync(appContext, SyncRun.TRIGGER_SETTINGS);
+            }
+        };
+        sHandler.postDelayed(sPendingLocationResync, LOCATION_RESYNC_DELAY_MILLIS);
+    }
+
+    /**
+     * Helper method to perform a sync immediately, recording what asked for it in the
+     * {@link SyncJournal}.
+     *
+     * @param context The Context used to start the IntentService for the sync.
+     * @param trigger What asked for the sync, one of the SyncRun.TRIGGER_ constants
+     */
+    public static void startImmediateSync(@NonNull final Context context, int trigger) {
         Intent intentToSyncImmediately = new Intent(context, SunshineSyncIntentService.class);
+        intentToSyncImmediately.putExtra(SunshineSyncIntentService.EXTRA_TRIGGER, trigger);
         context.startService(intentToSyncImmediately);
     }
-}
\ No newline at end of file
+
+    /**
+     * Starts a sync the user asked for and is watching. It runs ahead of any other waiting sync
+     * and stops a periodic one that is running, see {@link SyncEngine}. It runs in the caller's
+     * process without the IntentService, so it can report its progress; if the process dies
+     * first, whatever was downloaded is picked up by the next sync.
+     *
+     * @param context  The Context used to reach the engine
+     * @param listener Told on the engine's thread when each stage starts and when it is over
+     * @return The handle of the sync
+     */
+    public static SyncEngine.Handle startUserSync(@NonNull final Context context,
+                                                  SyncEngine.ProgressListener listener) {
+        return SyncEngine.getInstance(context).submit(SyncRun.TRIGGER_USER, listener);
+    }
+
+    /**
+     * Tells the sync schedule that the user is looking at the weather, so that it is kept
+     * fresher while they are.
+     *
+     * @param context The Context used to reach the preferences and the dispatcher
+     */
+    public static void onWeatherSeen(@NonNull final Context context) {
+        SyncScheduler.onWeatherSeen(context);
+    }
+}
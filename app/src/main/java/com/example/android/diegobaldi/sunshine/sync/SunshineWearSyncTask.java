@@ -4,6 +4,7 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
@@ -18,6 +19,8 @@ import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by diego on 24/01/2017.
@@ -57,6 +60,40 @@ public class SunshineWearSyncTask implements GoogleApiClient.ConnectionCallbacks
 
     }
 
+    /**
+     * Sends the weather to the wearable and waits until the data item is put, for callers on a
+     * background thread that need to know whether it worked, such as the sync's fan-out.
+     *
+     * @param timeoutMillis How long connecting and putting the item may take together
+     * @throws IOException If Google Play services couldn't be reached or didn't put the item
+     *                     in time
+     */
+    static void sendBlocking(Context context, String weatherString, int smallArtResourceId,
+                             double high, double low, long timeoutMillis) throws IOException {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        GoogleApiClient client = new GoogleApiClient.Builder(context)
+                .addApi(Wearable.API)
+                .build();
+
+        ConnectionResult connection = client.blockingConnect(timeoutMillis, TimeUnit.MILLISECONDS);
+        if (!connection.isSuccess()) {
+            throw new IOException("Unable to connect to Google Play services: "
+                    + connection.getErrorCode());
+        }
+        try {
+            PutDataRequest request = createRequest(context, weatherString, smallArtResourceId,
+                    high, low);
+            long remaining = Math.max(0, deadline - SystemClock.elapsedRealtime());
+            DataApi.DataItemResult result = Wearable.DataApi.putDataItem(client, request)
+                    .await(remaining, TimeUnit.MILLISECONDS);
+            if (!result.getStatus().isSuccess()) {
+                throw new IOException("Unable to put the weather: " + result.getStatus());
+            }
+        } finally {
+            client.disconnect();
+        }
+    }
+
     @Override
     public void onConnected(@Nullable Bundle bundle) {
         Log.d(LOG_TAG, "Google api client connected");
@@ -65,16 +102,8 @@ public class SunshineWearSyncTask implements GoogleApiClient.ConnectionCallbacks
     }
 
     private void sendDataToWearDevice() {
-        PutDataMapRequest dataMapRequest = PutDataMapRequest.create(WEATHER_PATH);
-        dataMapRequest.getDataMap().putDouble(HIGH_KEY, mHighTemp);
-        dataMapRequest.getDataMap().putDouble(LOW_KEY, mLowTemp);
-        dataMapRequest.getDataMap().putString(WEATHER_KEY, mWeatherString);
-        dataMapRequest.getDataMap().putLong("now", System.currentTimeMillis());
-        Bitmap bitmap = BitmapFactory.decodeResource(mContext.getResources(), mSmallArtResourceId);
-        Asset asset = createAssetFromBitmap(bitmap);
-        dataMapRequest.getDataMap().putAsset(IMAGE_KEY, asset);
-        PutDataRequest putDataRequest = dataMapRequest.asPutDataRequest();
-        putDataRequest.setUrgent();
+        PutDataRequest putDataRequest = createRequest(mContext, mWeatherString,
+                mSmallArtResourceId, mHighTemp, mLowTemp);
         Wearable.DataApi.putDataItem(mGoogleApiClient, putDataRequest).setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
             @Override
             public void onResult(@NonNull DataApi.DataItemResult dataItemResult) {
@@ -87,6 +116,21 @@ public class SunshineWearSyncTask implements GoogleApiClient.ConnectionCallbacks
         });
     }
 
+    private static PutDataRequest createRequest(Context context, String weatherString,
+                                                int smallArtResourceId, double high, double low) {
+        PutDataMapRequest dataMapRequest = PutDataMapRequest.create(WEATHER_PATH);
+        dataMapRequest.getDataMap().putDouble(HIGH_KEY, high);
+        dataMapRequest.getDataMap().putDouble(LOW_KEY, low);
+        dataMapRequest.getDataMap().putString(WEATHER_KEY, weatherString);
+        dataMapRequest.getDataMap().putLong("now", System.currentTimeMillis());
+        Bitmap bitmap = BitmapFactory.decodeResource(context.getResources(), smallArtResourceId);
+        Asset asset = createAssetFromBitmap(bitmap);
+        dataMapRequest.getDataMap().putAsset(IMAGE_KEY, asset);
+        PutDataRequest putDataRequest = dataMapRequest.asPutDataRequest();
+        putDataRequest.setUrgent();
+        return putDataRequest;
+    }
+
     private static Asset createAssetFromBitmap(Bitmap bitmap) {
         final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
         bitmap.compress(Bitmap.CompressFormat.PNG, 100, byteStream);
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the daily forecast a sync downloaded until it is stored, so a sync that never got that
+ * far, because the process was killed or the job was stopped, doesn't have to download it
+ * again.
+ * <p>
+ * The response is written as soon as it arrives, to a temporary file that is then renamed over
+ * the checkpoint, so a process killed while writing leaves the previous checkpoint or none,
+ * never half of one. The next sync of the same location within {@link #MAX_AGE_MILLIS} starts
+ * from the checkpoint instead of the network. Once a sync has stored the forecast, or found it
+ * unusable, the checkpoint is deleted. Anything else in the directory, like a temporary file
+ * left by a kill or a checkpoint too old or for another location, is deleted when the next sync
+ * looks for a checkpoint.
+ * <p>
+ * The hourly forecast isn't kept: it is optional and much shorter, so it is simply fetched
+ * again.
+ */
+final class SyncCheckpoint {
+
+    private static final String TAG = SyncCheckpoint.class.getSimpleName();
+
+    /* Directory (in the app's cache directory) holding the checkpoint and nothing else */
+    private static final String DIRECTORY_NAME = "sync_checkpoint";
+    private static final String DAILY_FILE_NAME = "daily";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /* Older than this, the server probably has something newer and we would rather ask */
+    static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private static SyncCheckpoint sInstance;
+
+    private final File mDirectory;
+    private final File mDaily;
+
+    private SyncCheckpoint(Context context) {
+        mDirectory = new File(context.getCacheDir(), DIRECTORY_NAME);
+        mDaily = new File(mDirectory, DAILY_FILE_NAME);
+    }
+
+    /**
+     * Returns the checkpoint of this app.
+     *
+     * @param context Any context, used to find the cache directory
+     * @return The checkpoint
+     */
+    static synchronized SyncCheckpoint getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SyncCheckpoint(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Saves the daily forecast the run just downloaded. Failing to write is logged and otherwise
+     * ignored; the sync goes on without a checkpoint.
+     *
+     * @param run The run, with its location, payload and daily forecast set
+     */
+    void save(SyncRun run) {
+        save(run, System.currentTimeMillis());
+    }
+
+    /* Saves as if it were now, for tests that move the clock */
+    synchronized void save(SyncRun run, long now) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDirectory);
+            return;
+        }
+
+        File temp = new File(mDirectory, DAILY_FILE_NAME + TEMP_SUFFIX);
+        boolean written = false;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            /* Everything on the first line is ours, the location last as it's typed by users */
+            String header = now + "\t" + run.payload
+                    + "\t" + (run.dailyPartial ? 1 : 0) + "\t" + run.location + "\n";
+            out.write(header.getBytes("UTF-8"));
+            out.write(run.dailyJson.getBytes("UTF-8"));
+            written = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + temp, e);
+        } finally {
+            closeQuietly(out);
+        }
+
+        if (written && temp.renameTo(mDaily)) return;
+
+        if (written) Log.w(TAG, "Unable to rename " + temp);
+        temp.delete();
+    }
+
+    /**
+     * Gives the run the daily forecast of its location if a fresh one was saved, and deletes
+     * anything else in the checkpoint directory.
+     *
+     * @param run The run, with its location set
+     * @return true if the run got the forecast and doesn't need to download it
+     */
+    boolean restore(SyncRun run) {
+        return restore(run, System.currentTimeMillis());
+    }
+
+    /* Restores as if it were now, for tests that move the clock */
+    synchronized boolean restore(SyncRun run, long now) {
+        collectGarbage();
+        if (!mDaily.exists()) return false;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(mDaily), "UTF-8"));
+            String[] header = reader.readLine().split("\t", 4);
+            long age = now - Long.parseLong(header[0]);
+
+            /* A negative age means the clock was set back; we can't tell how old it is */
+            if (age < 0 || age > MAX_AGE_MILLIS || !header[3].equals(run.location)) {
+                clear();
+                return false;
+            }
+
+            StringBuilder json = new StringBuilder((int) mDaily.length());
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                json.append(buffer, 0, read);
+            }
+
+            int payload = Integer.parseInt(header[1]);
+            if (payload != SyncPolicy.PAYLOAD_MINIMAL && payload != SyncPolicy.PAYLOAD_FULL) {
+                throw new IllegalArgumentException("Unknown payload " + payload);
+            }
+
+            run.payload = payload;
+            run.dailyPartial = "1".equals(header[2]);
+            run.dailyJson = json.toString();
+            Log.d(TAG, "Resuming from the forecast downloaded " + age + " ms ago");
+            return true;
+        } catch (IOException | RuntimeException e) {
+            /* Unreadable, most likely from an older version of the app; download again */
+            Log.w(TAG, "Unable to read " + mDaily, e);
+            clear();
+            return false;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Deletes the checkpoint, once the forecast was stored or turned out to be unusable.
+     */
+    synchronized void clear() {
+        if (mDaily.exists() && !mDaily.delete()) {
+            Log.w(TAG, "Unable to delete " + mDaily);
+        }
+    }
+
+    /* Only the checkpoint itself belongs in the directory; a temporary file is from a kill */
+    private void collectGarbage() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            if (!file.equals(mDaily) && !file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
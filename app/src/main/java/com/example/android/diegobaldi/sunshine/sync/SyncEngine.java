@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs syncs. The engine owns the only thread syncs run on, so two syncs never overlap, no
+ * matter whether they were started by the job, the IntentService or anything else, and nothing
+ * needs to be synchronized on a class lock to keep them apart.
+ * <p>
+ * A sync is a list of {@link SyncStage}s (see {@link SunshineSyncTask#stages()}) run in order
+ * against one {@link SyncRun}. Between two stages the engine checks whether the run was
+ * cancelled, and it times every stage that ran. A run has a time budget, depending on what
+ * triggered it, which {@link SyncStage}s share. Every run that ends is recorded in the
+ * {@link SyncJournal}.
+ * <p>
+ * Waiting syncs don't simply run in the order they were submitted: one the user asked for
+ * jumps ahead of the rest, and the syncs of the app and the watch face ahead of the scheduled
+ * ones. A sync the user asked for also cancels a scheduled one that is running, which ends
+ * before its next stage; whatever it downloaded is in the {@link SyncCheckpoint}, so the
+ * user's sync picks up from there.
+ */
+public final class SyncEngine {
+
+    private static final String TAG = SyncEngine.class.getSimpleName();
+
+    /* Called on the engine's thread once a run is over, whatever its outcome */
+    public interface Listener {
+        void onSyncFinished(SyncRun run);
+    }
+
+    /* A Listener that is also told, on the engine's thread, when each stage starts */
+    public interface ProgressListener extends Listener {
+        void onStageStarted(SyncRun run, String stage);
+    }
+
+    /* Which waiting work runs first, lowest first; see priorityOf */
+    private static final int PRIORITY_USER = 0;
+    private static final int PRIORITY_FOREGROUND = 1;
+    private static final int PRIORITY_BACKGROUND = 2;
+
+    /*
+     * Queued work, ordered by priority and then by when it was submitted. ThreadPoolExecutor
+     * would wrap what we submit in its own FutureTask, which the queue can't order, so we only
+     * ever hand it these.
+     */
+    private static final class Task<T> extends FutureTask<T> implements Comparable<Task<?>> {
+
+        private static final AtomicLong sSequence = new AtomicLong();
+
+        private final int mPriority;
+        private final long mSequence = sSequence.getAndIncrement();
+
+        Task(int priority, Callable<T> callable) {
+            super(callable);
+            mPriority = priority;
+        }
+
+        @Override
+        public int compareTo(Task<?> other) {
+            if (mPriority != other.mPriority) return mPriority < other.mPriority ? -1 : 1;
+            return mSequence < other.mSequence ? -1 : mSequence > other.mSequence ? 1 : 0;
+        }
+
+        /* Only the IntentService waits for its sync, so whatever else escapes is logged here */
+        @Override
+        protected void done() {
+            if (isCancelled()) return;
+            try {
+                get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Work on the sync thread crashed", e.getCause());
+            }
+        }
+    }
+
+    /* A submitted sync, which can be waited for or cancelled */
+    public static final class Handle {
+
+        private final SyncRun mRun;
+        private final Future<?> mFuture;
+
+        private Handle(SyncRun run, Future<?> future) {
+            mRun = run;
+            mFuture = future;
+        }
+
+        /**
+         * Cancels the sync. If it hasn't started, it ends as cancelled as soon as it does;
+         * if it is running, it stops before its next stage, a download in progress is
+         * disconnected, and a stage blocked in an interruptible call is interrupted. A sync
+         * that has stored its forecast can't be cancelled anymore.
+         */
+        public void cancel() {
+            mRun.cancel();
+        }
+
+        /**
+         * Blocks until the sync is over.
+         *
+         * @return The run, with its outcome and timings
+         */
+        public SyncRun await() {
+            try {
+                mFuture.get();
+            } catch (InterruptedException e) {
+                /* Our caller is being stopped, so the sync should be too */
+                cancel();
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Sync crashed", e.getCause());
+            }
+            return mRun;
+        }
+
+        public SyncRun getRun() {
+            return mRun;
+        }
+    }
+
+    /*
+     * How long a sync may take, by SyncRun.TRIGGER_ constant. Someone waiting on the screen
+     * gets what we have sooner; the periodic job can afford to wait for a slow network, but
+     * not until the dispatcher gives up on it and we lose everything.
+     */
+    private static final long[] DEFAULT_BUDGET_MILLIS = {
+            TimeUnit.SECONDS.toMillis(90),  /* job */
+            TimeUnit.SECONDS.toMillis(45),  /* intent */
+            TimeUnit.SECONDS.toMillis(20),  /* startup */
+            TimeUnit.SECONDS.toMillis(20),  /* settings */
+            TimeUnit.SECONDS.toMillis(15),  /* wear */
+            TimeUnit.SECONDS.toMillis(180), /* batch */
+            TimeUnit.SECONDS.toMillis(20),  /* user */
+            TimeUnit.SECONDS.toMillis(60),  /* prefetch */
+    };
+
+    private static SyncEngine sInstance;
+
+    private final Context mContext;
+    private final SyncStage[] mStages;
+    private final ThreadPoolExecutor mExecutor;
+    private final long[] mBudgetMillis = DEFAULT_BUDGET_MILLIS.clone();
+
+    /* The run on the engine's thread, if any */
+    private volatile SyncRun mRunning;
+
+    /* Tests run stages of their own on an engine of their own, the app uses getInstance */
+    SyncEngine(Context context, SyncStage[] stages) {
+        mContext = context;
+        mStages = stages;
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "SunshineSync");
+            }
+        });
+    }
+
+    /**
+     * Returns the engine of this process.
+     *
+     * @param context Any context, only its application context is kept
+     * @return The engine
+     */
+    public static synchronized SyncEngine getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SyncEngine(context.getApplicationContext(),
+                    SunshineSyncTask.stages());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queues a sync behind any sync that is already running and the waiting syncs that come
+     * first, see the class comment.
+     *
+     * @param trigger  What asked for the sync, one of the SyncRun.TRIGGER_ constants
+     * @param listener Told when the sync is over, or null; if it is a ProgressListener, it is
+     *                 also told when each stage starts
+     * @return The handle of the sync
+     */
+    public Handle submit(int trigger, final Listener listener) {
+        final SyncRun run = new SyncRun(mContext, trigger);
+        int priority = priorityOf(trigger);
+        Task<Void> task = new Task<>(priority, new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    execute(run, listener);
+                    SyncJournal.getInstance(mContext).append(run);
+                    SyncScheduler.onSyncFinished(mContext, run);
+                } finally {
+                    if (listener != null) {
+                        listener.onSyncFinished(run);
+                    }
+                }
+                return null;
+            }
+        });
+        mExecutor.execute(task);
+
+        SyncRun running = mRunning;
+        if (priority == PRIORITY_USER && running != null
+                && priorityOf(running.trigger) == PRIORITY_BACKGROUND) {
+            Log.d(TAG, "Cancelling the " + SyncRun.triggerName(running.trigger)
+                    + " sync for the one the user asked for");
+            running.cancel();
+        }
+        return new Handle(run, task);
+    }
+
+    /**
+     * Returns whether a sync is running, so whoever submits one can tell it will wait.
+     *
+     * @return true if a sync is running
+     */
+    public boolean isBusy() {
+        return mRunning != null;
+    }
+
+    private static int priorityOf(int trigger) {
+        switch (trigger) {
+            case SyncRun.TRIGGER_USER:
+                return PRIORITY_USER;
+            case SyncRun.TRIGGER_JOB:
+            case SyncRun.TRIGGER_BATCH:
+            case SyncRun.TRIGGER_PREFETCH:
+                return PRIORITY_BACKGROUND;
+            default:
+                return PRIORITY_FOREGROUND;
+        }
+    }
+
+    /**
+     * Changes how long syncs with a trigger may take, from the next one on.
+     *
+     * @param trigger      One of the SyncRun.TRIGGER_ constants
+     * @param budgetMillis The time budget, or Long.MAX_VALUE for none
+     */
+    public synchronized void setBudgetMillis(int trigger, long budgetMillis) {
+        if (budgetMillis <= 0) {
+            throw new IllegalArgumentException("Budget must be positive: " + budgetMillis);
+        }
+        mBudgetMillis[trigger] = budgetMillis;
+    }
+
+    private synchronized long getBudgetMillis(int trigger) {
+        return mBudgetMillis[trigger];
+    }
+
+    /**
+     * Cancels the running sync if it is fetching or storing the forecast of a location that is
+     * no longer the preferred one. A sync that hasn't fetched anything yet will fetch the new
+     * location, so it is left alone.
+     */
+    public void cancelObsolete() {
+        SyncRun run = mRunning;
+        if (run != null && SunshineSyncTask.isObsolete(run)) {
+            run.cancel();
+        }
+    }
+
+    /**
+     * Runs a short piece of background work on the engine's thread, after the sync that is
+     * running, if any. It waits like a sync of the app would, so it goes after the syncs the
+     * user asked for but ahead of scheduled ones that are still waiting: a check the app is
+     * waiting on shouldn't sit behind a slow periodic sync. Meant for checks that decide
+     * whether to sync, not for anything slow.
+     *
+     * @param task The work to run
+     */
+    public void post(Runnable task) {
+        mExecutor.execute(new Task<>(PRIORITY_FOREGROUND, Executors.callable(task)));
+    }
+
+    /*
+     * Runs the stages in order until one finishes the run, fails, or the run is cancelled.
+     * An optional stage whose deadline has already passed is skipped, and the run is partial.
+     */
+    private void execute(SyncRun run, Listener listener) {
+        run.attach(Thread.currentThread());
+        run.setBudget(getBudgetMillis(run.trigger));
+        mRunning = run;
+        try {
+            int cumulativeShare = 0;
+            for (SyncStage stage : mStages) {
+                if (run.isCancelled()) {
+                    run.finish(SyncRun.OUTCOME_CANCELLED);
+                    break;
+                }
+
+                cumulativeShare += stage.budgetShare;
+                run.startStage(cumulativeShare);
+                if (stage.optional && run.isPastStageDeadline()) {
+                    Log.d(TAG, "Out of time, skipping " + stage.name);
+                    run.partial = true;
+                    continue;
+                }
+
+                if (listener instanceof ProgressListener) {
+                    ((ProgressListener) listener).onStageStarted(run, stage.name);
+                }
+
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    stage.run(run);
+                } finally {
+                    run.recordStage(stage.name, SystemClock.elapsedRealtime() - start);
+                }
+
+                if (run.isFinished()) break;
+            }
+        } catch (IOException | JSONException e) {
+            if (run.isCancelled()) {
+                /* Most likely cancel disconnecting a download */
+                run.finish(SyncRun.OUTCOME_CANCELLED);
+            } else {
+                /* The server was unreachable or sent garbage; the next sync tries again */
+                run.fail(e);
+                Log.w(TAG, "Sync failed", e);
+            }
+        } catch (RuntimeException e) {
+            /*
+             * A bug in a stage. The run is still journaled and the next sync scheduled, or
+             * nothing would sync again until the app restarts.
+             */
+            run.fail(e);
+            Log.e(TAG, "Sync crashed", e);
+        } finally {
+            mRunning = null;
+            run.detach();
+            run.end();
+            Log.d(TAG, run.toString());
+        }
+    }
+}
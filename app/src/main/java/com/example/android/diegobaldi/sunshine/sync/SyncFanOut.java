@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The last stage of a sync: takes a {@link ForecastSnapshot} of what was stored and delivers it
+ * to every registered {@link SyncSink} in parallel.
+ * <p>
+ * The stage waits for each sink up to that sink's timeout, counted from when all of them were
+ * started. A sink that is late is interrupted and one that throws is logged; either way the
+ * other sinks and the outcome of the sync are unaffected. The stage isn't optional, even when
+ * the run is out of time: what was stored should reach the watch, and the sinks' timeouts
+ * already bound how long that takes.
+ */
+final class SyncFanOut extends SyncStage {
+
+    private static final String TAG = SyncFanOut.class.getSimpleName();
+
+    private final List<SyncSink> mSinks = new CopyOnWriteArrayList<>();
+
+    /* Threads are only kept while sinks are running, idle ones die after a minute */
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "SunshineSink");
+        }
+    });
+
+    SyncFanOut(SyncSink... sinks) {
+        super("fanout", 10, false);
+        for (SyncSink sink : sinks) {
+            mSinks.add(sink);
+        }
+    }
+
+    /**
+     * Adds a sink, which gets the snapshot from the next sync on.
+     *
+     * @param sink The sink to add
+     */
+    void register(SyncSink sink) {
+        mSinks.add(sink);
+    }
+
+    void unregister(SyncSink sink) {
+        mSinks.remove(sink);
+    }
+
+    @Override
+    void run(final SyncRun run) {
+        final ForecastSnapshot snapshot =
+                ForecastSnapshot.of(run.locationId, run.weatherValues, run.changedDays);
+        run.snapshot = snapshot;
+
+        SyncSink[] sinks = mSinks.toArray(new SyncSink[0]);
+        @SuppressWarnings("unchecked")
+        Future<Long>[] deliveries = new Future[sinks.length];
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < sinks.length; i++) {
+            final SyncSink sink = sinks[i];
+            deliveries[i] = mExecutor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    long sinkStart = SystemClock.elapsedRealtime();
+                    sink.deliver(run.context, snapshot);
+                    return SystemClock.elapsedRealtime() - sinkStart;
+                }
+            });
+        }
+
+        for (int i = 0; i < sinks.length; i++) {
+            SyncSink sink = sinks[i];
+            long wait = Math.max(0, start + sink.timeoutMillis - SystemClock.elapsedRealtime());
+            try {
+                run.recordStage(name + "/" + sink.name,
+                        deliveries[i].get(wait, TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                deliveries[i].cancel(true);
+                Log.w(TAG, sink.name + " took longer than " + sink.timeoutMillis + " ms");
+            } catch (ExecutionException e) {
+                Log.w(TAG, sink.name + " failed", e.getCause());
+            } catch (InterruptedException e) {
+                /*
+                 * Not a cancel, which can't reach a run that has stored its forecast, but
+                 * something stopping the thread itself. The unfinished sinks are stopped too,
+                 * and the run still ends as the success it is.
+                 */
+                for (int j = i; j < sinks.length; j++) {
+                    deliveries[j].cancel(true);
+                }
+                return;
+            }
+        }
+    }
+}
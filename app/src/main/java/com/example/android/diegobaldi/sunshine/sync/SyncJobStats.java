@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+/**
+ * Counts what happens to the sync jobs the dispatcher starts: how long each took from
+ * onStartJob to its end, how it ended, and how often a job started while another one was still
+ * outstanding. Latencies are kept in a histogram of power of two buckets, like the provider's
+ * timings, so the counters stay a few longs no matter how long the process lives.
+ */
+final class SyncJobStats {
+
+    /*
+     * Bucket i counts jobs that took less than 2^i milliseconds (and at least 2^(i-1)). The last
+     * bucket also counts everything slower, 2^17 milliseconds being a bit over 2 minutes.
+     */
+    static final int HISTOGRAM_BUCKETS = 18;
+
+    private long mStarted;
+    private long mFinished;
+    private long mRescheduled;
+    private long mStopped;
+    private long mOverlapped;
+
+    private int mOutstanding;
+    private int mMaxOutstanding;
+
+    private long mTotalMillis;
+    private long mMaxMillis;
+    private final long[] mHistogram = new long[HISTOGRAM_BUCKETS];
+
+    /**
+     * Records a job the dispatcher started.
+     *
+     * @return true if another job was still outstanding
+     */
+    synchronized boolean onStarted() {
+        mStarted++;
+        boolean overlapped = mOutstanding > 0;
+        if (overlapped) mOverlapped++;
+
+        mOutstanding++;
+        mMaxOutstanding = Math.max(mMaxOutstanding, mOutstanding);
+        return overlapped;
+    }
+
+    /**
+     * Records a job that ended, either by us calling jobFinished or by the dispatcher stopping it.
+     *
+     * @param latencyMillis Time from onStartJob to the end of the job
+     * @param stopped       Whether the dispatcher stopped the job
+     * @param reschedule    Whether we asked for the job to be run again
+     */
+    synchronized void onEnded(long latencyMillis, boolean stopped, boolean reschedule) {
+        mOutstanding--;
+        if (stopped) {
+            mStopped++;
+        } else {
+            mFinished++;
+        }
+        if (reschedule) mRescheduled++;
+
+        mTotalMillis += latencyMillis;
+        mMaxMillis = Math.max(mMaxMillis, latencyMillis);
+
+        int bucket = 0;
+        while (bucket < HISTOGRAM_BUCKETS - 1 && latencyMillis >= (1L << bucket)) {
+            bucket++;
+        }
+        mHistogram[bucket]++;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long ended = mFinished + mStopped;
+        StringBuilder histogram = new StringBuilder();
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            if (i > 0) histogram.append(',');
+            histogram.append(mHistogram[i]);
+        }
+        return "jobs started=" + mStarted
+                + " finished=" + mFinished
+                + " stopped=" + mStopped
+                + " rescheduled=" + mRescheduled
+                + " overlapped=" + mOverlapped
+                + " max_outstanding=" + mMaxOutstanding
+                + " avg_ms=" + (ended == 0 ? 0 : mTotalMillis / ended)
+                + " max_ms=" + mMaxMillis
+                + " histogram=[" + histogram + "]";
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A record of every sync, kept on disk so it survives the process and can be looked at when
+ * someone reports stale weather.
+ * <p>
+ * Each finished run appends one line: when it ended, what triggered it and how much it asked
+ * for, its outcome, how long it and each of its stages took, what it downloaded and changed,
+ * and the class of the error that failed it. Lines are only ever appended, with a single
+ * write, so recording a run costs about as much as a log call. Once the file reaches
+ * {@link #MAX_FILE_BYTES} it is renamed to a backup, replacing the previous one, and a new
+ * file is started, so the journal keeps between one and two files' worth of the most recent
+ * runs.
+ * <p>
+ * The journal can be read in the sync journal debug screen, with
+ * "adb shell dumpsys activity service SunshineSyncIntentService", or by pulling the files.
+ */
+public final class SyncJournal {
+
+    private static final String TAG = SyncJournal.class.getSimpleName();
+
+    /* Name of the file (in the app's private files directory) runs are appended to */
+    static final String JOURNAL_FILE_NAME = "sync_journal.log";
+    private static final String BACKUP_FILE_NAME = JOURNAL_FILE_NAME + ".1";
+
+    /* A line is about 150 bytes, so each file holds a few hundred runs, weeks at our rate */
+    private static final long MAX_FILE_BYTES = 64 * 1024;
+
+    private static SyncJournal sInstance;
+
+    private final File mFile;
+    private final File mBackup;
+
+    private SyncJournal(Context context) {
+        mFile = new File(context.getFilesDir(), JOURNAL_FILE_NAME);
+        mBackup = new File(context.getFilesDir(), BACKUP_FILE_NAME);
+    }
+
+    /**
+     * Returns the journal of this app.
+     *
+     * @param context Any context, used to find the files directory
+     * @return The journal
+     */
+    public static synchronized SyncJournal getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SyncJournal(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Appends a finished run. Failing to write is logged and otherwise ignored; the journal must
+     * never be the reason a sync fails.
+     *
+     * @param run The run, after it ended
+     */
+    synchronized void append(SyncRun run) {
+        String line = format(run);
+
+        if (mFile.length() >= MAX_FILE_BYTES && !mFile.renameTo(mBackup)) {
+            Log.w(TAG, "Unable to rotate " + mFile);
+        }
+
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mFile, true);
+            out.write(line.getBytes("UTF-8"));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to append to " + mFile, e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Reads the most recent runs.
+     *
+     * @param max The most lines to return
+     * @return The lines, most recent first
+     */
+    public synchronized List<String> read(int max) {
+        List<String> lines = new ArrayList<>();
+        readLines(mBackup, lines);
+        readLines(mFile, lines);
+
+        Collections.reverse(lines);
+        return lines.size() > max ? new ArrayList<>(lines.subList(0, max)) : lines;
+    }
+
+    /**
+     * Writes every run in the journal, oldest first.
+     *
+     * @param writer Where to write the runs
+     */
+    public void dump(PrintWriter writer) {
+        List<String> lines = read(Integer.MAX_VALUE);
+        writer.println("Sync journal (" + lines.size() + " runs, oldest first):");
+        for (int i = lines.size() - 1; i >= 0; i--) {
+            writer.println("  " + lines.get(i));
+        }
+    }
+
+    /*
+     * Tab separated: end time, trigger/payload, outcome, total time, bytes downloaded, days
+     * changed, error class or "-", and the time of each stage.
+     */
+    private static String format(SyncRun run) {
+        StringBuilder line = new StringBuilder(160);
+        line.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US).format(new Date()))
+                .append('\t').append(SyncRun.triggerName(run.getTrigger()))
+                .append('/').append(SyncPolicy.payloadName(run.payload))
+                .append('\t').append(SyncRun.outcomeName(run.getOutcome()))
+                .append('\t').append(run.getTotalMillis()).append("ms")
+                .append('\t').append(run.bytesDownloaded).append('B')
+                .append("\tchanged=").append(run.changedDays)
+                .append("\terror=").append(run.getFailure() == null
+                        ? "-" : run.getFailure().getClass().getSimpleName())
+                .append('\t');
+
+        boolean first = true;
+        for (Map.Entry<String, Long> stage : run.getStageMillis().entrySet()) {
+            if (!first) line.append(',');
+            line.append(stage.getKey()).append('=').append(stage.getValue());
+            first = false;
+        }
+        return line.append('\n').toString();
+    }
+
+    private static void readLines(File file, List<String> lines) {
+        if (!file.exists()) return;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + file, e);
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
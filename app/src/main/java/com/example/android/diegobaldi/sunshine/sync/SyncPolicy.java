@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+
+/**
+ * Decides how much a sync downloads, from what it costs right now.
+ * <p>
+ * On a metered network, or on a low battery, the periodic job only refreshes the next few days
+ * and skips the hourly forecast; charging doesn't make data any cheaper, it only lifts the
+ * battery limit. The whole forecast is left to a sync that finds the device on an unmetered
+ * network: either the periodic job when it happens to run then, or the batch job, which the
+ * dispatcher only runs while charging on an unmetered network (see
+ * {@link SunshineSyncUtils#scheduleBatchSync}). Syncs someone is waiting for, like after
+ * changing the location, always get the whole forecast.
+ */
+final class SyncPolicy {
+
+    /* Today and the next couple of days, without the hourly forecast */
+    static final int PAYLOAD_MINIMAL = 0;
+    /* The whole daily forecast and the hourly one */
+    static final int PAYLOAD_FULL = 1;
+
+    private static final String[] PAYLOAD_NAMES = {"minimal", "full"};
+
+    /* How many days a minimal sync asks for; the days after them are kept as they are */
+    static final int MINIMAL_DAYS = 3;
+
+    /* Below this, and not charging, we don't spend battery on more than the minimum */
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    private SyncPolicy() {
+    }
+
+    /**
+     * Picks what a sync downloads.
+     *
+     * @param context Used to read the state of the device
+     * @param trigger What started the sync, one of the SyncRun.TRIGGER_ constants
+     * @return One of the PAYLOAD_ constants
+     */
+    static int choosePayload(Context context, int trigger) {
+        /* Only the periodic job is ours to hold back; everything else is asked for */
+        if (trigger != SyncRun.TRIGGER_JOB) return PAYLOAD_FULL;
+
+        if (!isUnmetered(context)) return PAYLOAD_MINIMAL;
+
+        Intent battery = getBatteryStatus(context);
+        if (isBatteryLow(battery) && !isCharging(battery)) return PAYLOAD_MINIMAL;
+        return PAYLOAD_FULL;
+    }
+
+    static boolean includesHourly(int payload) {
+        return payload == PAYLOAD_FULL;
+    }
+
+    static String payloadName(int payload) {
+        return PAYLOAD_NAMES[payload];
+    }
+
+    /**
+     * Returns whether a sync is cheap right now, because the device is charging or on an
+     * unmetered network.
+     *
+     * @param context Used to read the state of the device
+     * @return true if a sync costs little
+     */
+    static boolean isCheap(Context context) {
+        return isCharging(getBatteryStatus(context)) || isUnmetered(context);
+    }
+
+    /* ACTION_BATTERY_CHANGED is sticky, so this returns the last broadcast without a receiver */
+    private static Intent getBatteryStatus(Context context) {
+        return context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    }
+
+    private static boolean isCharging(Intent battery) {
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private static boolean isBatteryLow(Intent battery) {
+        if (battery == null) return false;
+
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level >= 0 && scale > 0 && level * 100 / scale < LOW_BATTERY_PERCENT;
+    }
+
+    private static boolean isUnmetered(Context context) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return connectivityManager != null
+                && connectivityManager.getActiveNetworkInfo() != null
+                && !ConnectivityManagerCompat.isActiveNetworkMetered(connectivityManager);
+    }
+}
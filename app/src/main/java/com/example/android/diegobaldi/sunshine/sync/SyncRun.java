@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.SystemClock;
+
+import com.example.android.diegobaldi.sunshine.utilities.NetworkUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Everything about a single sync: its cancellation flag, what each stage produced for the
+ * stages after it, how long each stage took, and how the sync ended. A run belongs to the
+ * thread of {@link SyncEngine} while it runs; other threads may only cancel it or, once it is
+ * done, read its outcome and timings.
+ */
+public final class SyncRun {
+
+    /* The run has not finished yet */
+    public static final int OUTCOME_RUNNING = 0;
+    /* Every stage ran */
+    public static final int OUTCOME_SUCCESS = 1;
+    /* The server had no forecast for us, so there was nothing to store */
+    public static final int OUTCOME_NO_DATA = 2;
+    /* The run was cancelled before its last stage */
+    public static final int OUTCOME_CANCELLED = 3;
+    /* A stage failed; see getFailure */
+    public static final int OUTCOME_FAILED = 4;
+    /* The run ran out of time, and stored the part of the forecast it had by then */
+    public static final int OUTCOME_PARTIAL = 5;
+
+    private static final String[] OUTCOME_NAMES =
+            {"running", "success", "no data", "cancelled", "failed", "partial"};
+
+    /* The periodic job */
+    public static final int TRIGGER_JOB = 0;
+    /* An immediate sync through the IntentService, for no more specific reason */
+    public static final int TRIGGER_INTENT = 1;
+    /* The app started without a forecast for today */
+    public static final int TRIGGER_STARTUP = 2;
+    /* The location was changed in the settings */
+    public static final int TRIGGER_SETTINGS = 3;
+    /* The watch face asked for weather we didn't have */
+    public static final int TRIGGER_WEAR = 4;
+    /* The job that only runs on an unmetered network while charging */
+    public static final int TRIGGER_BATCH = 5;
+    /* The user pulled to refresh */
+    public static final int TRIGGER_USER = 6;
+    /* Fetching ahead of when the weather is usually looked at, see UsagePredictor */
+    public static final int TRIGGER_PREFETCH = 7;
+
+    private static final String[] TRIGGER_NAMES =
+            {"job", "intent", "startup", "settings", "wear", "batch", "user", "prefetch"};
+
+    final Context context;
+
+    /* One of the TRIGGER_ constants */
+    final int trigger;
+
+    /* Written by the stages, in order */
+    /* The preferred location when the forecast was requested; read by cancelObsolete */
+    volatile String location;
+    String dailyJson;
+    ContentValues[] weatherValues;
+    ContentValues[] hourlyValues;
+    final Map<Long, double[]> dailyExtremes = new HashMap<>();
+    long locationId = -1;
+    /* How many stored forecast days the sync added, changed or removed */
+    int changedDays;
+    /* What was stored, as handed to the sinks */
+    ForecastSnapshot snapshot;
+    /* Set by a stage that had to give up on part of the forecast to stay within the budget */
+    boolean partial;
+    /* What the sync downloads, one of the SyncPolicy.PAYLOAD_ constants */
+    int payload = SyncPolicy.PAYLOAD_FULL;
+    /* Whether the daily forecast only has its first days, cut off or because we asked for fewer */
+    boolean dailyPartial;
+    /* Characters of every response the sync read, which for our ASCII JSON is about its bytes */
+    long bytesDownloaded;
+
+    private volatile boolean mCancelled;
+    /* Set once the forecast is stored; from then on the run goes on to the end */
+    private boolean mCommitted;
+    /* The engine thread while the run is on it, so that cancel can interrupt it */
+    private Thread mThread;
+    /* The connection a stage is reading from, so that cancel can abort the read */
+    private HttpURLConnection mConnection;
+    private volatile int mOutcome = OUTCOME_RUNNING;
+    private Exception mFailure;
+
+    private final long mStartMillis = SystemClock.elapsedRealtime();
+    private long mBudgetMillis = Long.MAX_VALUE;
+    private long mStageDeadline = Long.MAX_VALUE;
+    private long mEndMillis;
+    private final Map<String, Long> mStageMillis = new LinkedHashMap<>();
+
+    SyncRun(Context context, int trigger) {
+        this.context = context;
+        this.trigger = trigger;
+    }
+
+    /**
+     * Asks the run to stop. No further stage starts, the response being read by
+     * {@link #fetch(URL)} is aborted, and the running stage is interrupted, which ends anything
+     * else that honours interrupts or checks {@link #isCancelled()}. Once the forecast is
+     * stored, cancelling does nothing: what was stored still has to reach the sinks, and the
+     * run is recorded as the success it is.
+     */
+    public synchronized void cancel() {
+        if (mCommitted) return;
+        mCancelled = true;
+        if (mConnection != null) {
+            /* Closes the socket, which a thread blocked reading it doesn't notice an interrupt */
+            mConnection.disconnect();
+        }
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+    }
+
+    /* True once the run was cancelled, or its thread interrupted */
+    public boolean isCancelled() {
+        return mCancelled || Thread.currentThread().isInterrupted();
+    }
+
+    synchronized void attach(Thread thread) {
+        mThread = thread;
+    }
+
+    /* Also clears an interrupt cancel may have left, so it can't leak into the next run */
+    synchronized void detach() {
+        mThread = null;
+        Thread.interrupted();
+    }
+
+    /*
+     * Called by the stage that stored the forecast. A cancel that arrived while it was storing
+     * came too late to stop anything, so it is forgotten along with its interrupt.
+     */
+    synchronized void commit() {
+        mCommitted = true;
+        mCancelled = false;
+        Thread.interrupted();
+    }
+
+    /* Lets a stage end the run early, e.g. with OUTCOME_NO_DATA */
+    void finish(int outcome) {
+        mOutcome = outcome;
+    }
+
+    boolean isFinished() {
+        return mOutcome != OUTCOME_RUNNING;
+    }
+
+    void fail(Exception failure) {
+        mFailure = failure;
+        mOutcome = OUTCOME_FAILED;
+    }
+
+    void setBudget(long budgetMillis) {
+        mBudgetMillis = budgetMillis;
+    }
+
+    /* Sets the stage deadline to when the given percentage of the budget will have been used */
+    void startStage(int cumulativeShare) {
+        mStageDeadline = mBudgetMillis == Long.MAX_VALUE
+                ? Long.MAX_VALUE : mStartMillis + mBudgetMillis * cumulativeShare / 100;
+    }
+
+    /**
+     * Downloads a response for the running stage, by the stage deadline. Cancelling the run
+     * disconnects the download, so it ends at once with an IOException.
+     *
+     * @param url The URL to fetch
+     * @return The contents of the response, null if there was none
+     * @throws NetworkUtils.DeadlineExceededException If the response wasn't read by the stage
+     *                                                deadline
+     * @throws IOException                            If the network failed or the run was
+     *                                                cancelled
+     */
+    String fetch(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        synchronized (this) {
+            if (mCancelled) throw new InterruptedIOException("Sync cancelled");
+            mConnection = connection;
+        }
+        try {
+            return NetworkUtils.getResponse(connection, mStageDeadline);
+        } finally {
+            synchronized (this) {
+                mConnection = null;
+            }
+        }
+    }
+
+    /**
+     * Returns when the running stage has to be done, to pass to blocking calls such as
+     * {@link #fetch(URL)}.
+     *
+     * @return SystemClock.elapsedRealtime of the deadline, Long.MAX_VALUE if there is none
+     */
+    long getStageDeadline() {
+        return mStageDeadline;
+    }
+
+    boolean isPastStageDeadline() {
+        return SystemClock.elapsedRealtime() >= mStageDeadline;
+    }
+
+    void recordStage(String stage, long elapsedMillis) {
+        mStageMillis.put(stage, elapsedMillis);
+    }
+
+    void end() {
+        if (mOutcome == OUTCOME_RUNNING) {
+            mOutcome = partial ? OUTCOME_PARTIAL : OUTCOME_SUCCESS;
+        }
+        mEndMillis = SystemClock.elapsedRealtime();
+    }
+
+    /* One of the OUTCOME_ constants */
+    public int getOutcome() {
+        return mOutcome;
+    }
+
+    /* What started the run, one of the TRIGGER_ constants */
+    public int getTrigger() {
+        return trigger;
+    }
+
+    /* The exception that failed the run, or null */
+    public Exception getFailure() {
+        return mFailure;
+    }
+
+    /* How long each stage that ran took, in the order they ran */
+    public Map<String, Long> getStageMillis() {
+        return Collections.unmodifiableMap(mStageMillis);
+    }
+
+    /* How long the whole run took, 0 while it is running */
+    public long getTotalMillis() {
+        return mEndMillis == 0 ? 0 : mEndMillis - mStartMillis;
+    }
+
+    static String triggerName(int trigger) {
+        return TRIGGER_NAMES[trigger];
+    }
+
+    static String outcomeName(int outcome) {
+        return OUTCOME_NAMES[outcome];
+    }
+
+    @Override
+    public String toString() {
+        return TRIGGER_NAMES[trigger] + " sync " + OUTCOME_NAMES[mOutcome] + " in " + getTotalMillis() + " ms "
+                + mStageMillis;
+    }
+}
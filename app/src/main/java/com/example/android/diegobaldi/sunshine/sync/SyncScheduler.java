@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import android.content.Context;
+
+import com.example.android.diegobaldi.sunshine.data.SunshinePreferences;
+import com.example.android.diegobaldi.sunshine.data.TodaySummary;
+import com.example.android.diegobaldi.sunshine.utilities.SunshineDateUtils;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the window of the next periodic sync, instead of syncing every 3 hours for everyone.
+ * <p>
+ * We start from 3 hours and stretch or shrink it by what we know:
+ * <p>
+ * 1) Volatility: the share of forecast days the last few syncs changed. Weather that keeps
+ * changing is synced up to 4 times as often as weather that doesn't.
+ * <p>
+ * 2) Attention: if the weather was seen in the app or on the watch face in the last 2 hours,
+ * we sync twice as often; if it wasn't seen for a day, less often.
+ * <p>
+ * 3) Cost: while charging or on an unmetered network a sync is cheap, so we sync a bit more.
+ * <p>
+ * The result is kept between 1 and 8 hours, and never lets the data get older than 10 hours,
+ * so after failed syncs we try again sooner instead of waiting a whole interval. Each failure
+ * in a row doubles that retry though, from 15 minutes up to 8 hours, so a server that keeps
+ * failing isn't polled every quarter of an hour.
+ */
+final class SyncScheduler {
+
+    private static final long BASE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(3);
+    private static final long MIN_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long MAX_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(8);
+
+    /* Data older than this is stale; we retry no sooner than MIN_RETRY to get below it */
+    private static final long MAX_DATA_AGE_MILLIS = TimeUnit.HOURS.toMillis(10);
+    private static final long MIN_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    /* Failures in a row past this don't back off any further, MIN_RETRY * 2^6 is past MAX */
+    private static final int MAX_BACKOFF_FAILURES = 6;
+
+    /* Seen more recently than this counts as being looked at */
+    private static final long RECENTLY_SEEN_MILLIS = TimeUnit.HOURS.toMillis(2);
+    /* Not seen for longer than this counts as not being looked at */
+    private static final long UNSEEN_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /* How many syncs the volatility is averaged over */
+    static final int CHANGE_HISTORY = 4;
+
+    private SyncScheduler() {
+    }
+
+    /**
+     * Picks the window of the next sync from the current state of the data and the device.
+     *
+     * @param context Used to read the preferences and the device state
+     * @return The earliest and latest time to sync, in seconds from now
+     */
+    static int[] nextWindowSeconds(Context context) {
+        long now = System.currentTimeMillis();
+        long lastSync = SunshinePreferences.getLastSyncTime(context);
+        long dataAge = lastSync == 0 ? Long.MAX_VALUE : now - lastSync;
+        long sinceSeen = now - SunshinePreferences.getLastSeenTime(context);
+
+        long interval = nextIntervalMillis(dataAge,
+                volatility(SunshinePreferences.getRecentSyncChanges(context)),
+                sinceSeen, SyncPolicy.isCheap(context),
+                SunshinePreferences.getSyncFailures(context));
+
+        int start = (int) TimeUnit.MILLISECONDS.toSeconds(interval);
+        return new int[]{start, start + start / 3};
+    }
+
+    /**
+     * Computes how long to wait before the next sync. Kept free of Android calls, so the
+     * policy can be read, and checked, in one place.
+     *
+     * @param dataAgeMillis   Time since the last successful sync, Long.MAX_VALUE if none
+     * @param volatility      Average share of forecast days recent syncs changed, 0 to 1
+     * @param sinceSeenMillis Time since the weather was last seen
+     * @param cheap           Whether the device is charging or on an unmetered network
+     * @param failures        How many syncs in a row failed since the last successful one
+     * @return The time to wait, in milliseconds
+     */
+    static long nextIntervalMillis(long dataAgeMillis, float volatility, long sinceSeenMillis,
+                                   boolean cheap, int failures) {
+        /* From twice the base interval for weather that doesn't change to half for weather that does */
+        double interval = BASE_INTERVAL_MILLIS * (2.0 - 1.5 * volatility);
+
+        if (sinceSeenMillis < RECENTLY_SEEN_MILLIS) {
+            interval *= 0.5;
+        } else if (sinceSeenMillis > UNSEEN_MILLIS) {
+            interval *= 1.5;
+        }
+
+        interval *= cheap ? 0.75 : 1.25;
+
+        long millis = Math.max(MIN_INTERVAL_MILLIS,
+                Math.min(MAX_INTERVAL_MILLIS, Math.round(interval)));
+
+        /* Don't let the data go stale waiting for the window */
+        long untilStale = dataAgeMillis >= MAX_DATA_AGE_MILLIS
+                ? 0 : MAX_DATA_AGE_MILLIS - dataAgeMillis;
+        millis = Math.min(millis, Math.max(MIN_RETRY_MILLIS, untilStale));
+
+        /* But wait twice as long after each failure in a row, up to the maximum interval */
+        long backoff = Math.min(MAX_INTERVAL_MILLIS,
+                MIN_RETRY_MILLIS << Math.min(failures, MAX_BACKOFF_FAILURES));
+        return Math.max(millis, backoff);
+    }
+
+    /**
+     * Records what a finished sync tells us and schedules the next one accordingly. Syncs that
+     * stored nothing count as failures, to back off the next; cancelled syncs are left to the
+     * job dispatcher to retry.
+     *
+     * @param context Used to access the preferences and the dispatcher
+     * @param run     The sync that finished
+     */
+    static void onSyncFinished(Context context, SyncRun run) {
+        if (run.getOutcome() == SyncRun.OUTCOME_CANCELLED) return;
+
+        if (run.getOutcome() == SyncRun.OUTCOME_SUCCESS
+                || run.getOutcome() == SyncRun.OUTCOME_PARTIAL) {
+            float changedShare = run.weatherValues.length == 0
+                    ? 0 : Math.min(1f, (float) run.changedDays / run.weatherValues.length);
+            List<TodaySummary> days = run.snapshot.getDays();
+            long syncedThrough = days.isEmpty() ? 0 : days.get(days.size() - 1).date;
+            SunshinePreferences.saveSync(context, System.currentTimeMillis(), run.locationId,
+                    syncedThrough, changedShare, CHANGE_HISTORY);
+        } else {
+            SunshinePreferences.saveSyncFailures(context,
+                    SunshinePreferences.getSyncFailures(context) + 1);
+        }
+
+        SunshineSyncUtils.scheduleFirebaseJobDispatcherSync(context);
+        SunshineSyncUtils.schedulePrefetch(context);
+    }
+
+    /**
+     * Returns whether the last stored forecast is still good enough to show without syncing
+     * first: it is of the current location and covers today. How old it is is left to the
+     * periodic sync. This only reads the few preferences the last sync saved, so it costs the
+     * same no matter how much is stored.
+     *
+     * @param context Used to read the preferences
+     * @return true if there is no need to sync before showing the forecast
+     */
+    static boolean isFresh(Context context) {
+        return SunshinePreferences.getLastSyncTime(context) != 0
+                && SunshinePreferences.getSyncedLocationId(context)
+                        == SunshinePreferences.getCurrentLocationId(context)
+                && SunshinePreferences.getSyncedThrough(context)
+                        >= SunshineDateUtils.getNormalizedUtcDateForToday();
+    }
+
+    /**
+     * Returns whether a sync that was stopped before it finished should be retried right away
+     * rather than waiting for the next window, which is when the stored forecast is older than
+     * the shortest interval we would ever pick.
+     *
+     * @param context Used to read the preferences
+     * @return true if the stored forecast is getting old
+     */
+    static boolean needsRetry(Context context) {
+        long lastSync = SunshinePreferences.getLastSyncTime(context);
+        return System.currentTimeMillis() - lastSync > MIN_INTERVAL_MILLIS;
+    }
+
+    /**
+     * Records that the user is looking at the weather. When they hadn't been for a while, the
+     * next sync is rescheduled, as it was picked for someone who wasn't looking. The hour is
+     * also counted by {@link UsagePredictor}, and the prefetch rescheduled if that changes it.
+     *
+     * @param context Used to access the preferences and the dispatcher
+     */
+    static void onWeatherSeen(Context context) {
+        long now = System.currentTimeMillis();
+        long sinceSeen = now - SunshinePreferences.getLastSeenTime(context);
+        SunshinePreferences.saveLastSeenTime(context, now);
+
+        if (sinceSeen >= RECENTLY_SEEN_MILLIS) {
+            SunshineSyncUtils.scheduleFirebaseJobDispatcherSync(context);
+        }
+        if (UsagePredictor.onWeatherSeen(context)) {
+            SunshineSyncUtils.schedulePrefetch(context);
+        }
+    }
+
+    private static float volatility(float[] changedShares) {
+        if (changedShares.length == 0) return 0.5f;
+
+        float sum = 0;
+        for (float share : changedShares) {
+            sum += share;
+        }
+        return sum / changedShares.length;
+    }
+}
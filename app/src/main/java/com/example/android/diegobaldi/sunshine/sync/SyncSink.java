@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import android.content.Context;
+
+/**
+ * Something that wants the forecast once a sync has stored it, such as the notification or the
+ * watch face. {@link SyncFanOut} delivers the same {@link ForecastSnapshot} to every sink at
+ * once, each on its own thread, so a sink may block, but not for longer than its timeout.
+ */
+abstract class SyncSink {
+
+    /* Used for the timings of a run and in the log */
+    final String name;
+
+    /* How long the sink may take before it is interrupted and the sync moves on */
+    final long timeoutMillis;
+
+    SyncSink(String name, long timeoutMillis) {
+        this.name = name;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Hands the forecast to whatever this sink feeds. Whatever a sink throws is logged and
+     * affects neither the sync nor the other sinks.
+     *
+     * @param context  The application context
+     * @param snapshot The forecast the sync has just stored
+     * @throws Exception If the forecast couldn't be delivered
+     */
+    abstract void deliver(Context context, ForecastSnapshot snapshot) throws Exception;
+}
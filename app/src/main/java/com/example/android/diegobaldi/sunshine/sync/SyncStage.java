@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+
+/**
+ * One step of a sync, such as fetching the forecast or storing it. {@link SyncEngine} runs the
+ * stages of a sync in order and checks for cancellation between them, so a stage only has to
+ * check {@link SyncRun#isCancelled()} itself if it can take long on its own.
+ * <p>
+ * Each stage gets a share of the run's time budget. Shares add up: a stage has to be done by
+ * the time its share and those of the stages before it have been used, so time an early stage
+ * didn't need goes to the later ones. See {@link SyncRun#getStageDeadline()}.
+ */
+abstract class SyncStage {
+
+    /* Used for the timings of a run and in the log */
+    final String name;
+
+    /* Percentage of the run's budget this stage gets */
+    final int budgetShare;
+
+    /* Whether the sync is still worth storing without this stage, so it can be skipped */
+    final boolean optional;
+
+    SyncStage(String name, int budgetShare, boolean optional) {
+        this.name = name;
+        this.budgetShare = budgetShare;
+        this.optional = optional;
+    }
+
+    /**
+     * Does this stage's part of the sync. A stage passes what it produced to the following
+     * stages through the run, and calls {@link SyncRun#finish(int)} if there is nothing left to
+     * do after it.
+     *
+     * @param run The sync this stage is part of
+     * @throws IOException   If the network or the database failed
+     * @throws JSONException If the server sent something we couldn't parse
+     */
+    abstract void run(SyncRun run) throws IOException, JSONException;
+}
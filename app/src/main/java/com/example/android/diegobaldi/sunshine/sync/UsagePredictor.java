@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.example.android.diegobaldi.sunshine.data.SunshinePreferences;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Learns when the weather is usually looked at, so it can be fetched shortly before.
+ * <p>
+ * Every hour of the day the weather was seen in, in the app or on the watch face, adds 1 to
+ * that hour's weight, once per day however often it was seen. Weights lose a tenth every day,
+ * so a habit counts for about the last two weeks and one that changed fades out. An hour whose
+ * weight reaches {@link #MIN_WEIGHT}, like one used on 2 of the last 3 days, is predicted to
+ * be used again, and a prefetch is scheduled {@link #LEAD_MILLIS} before it starts.
+ * <p>
+ * A prediction can be wrong, so at most {@link #MAX_PREFETCHES_PER_DAY} prefetches run a day.
+ * A prefetch whose forecast is still recent, because the periodic sync ran in the meantime,
+ * doesn't sync and doesn't count. Everything is in local time, as habits are.
+ */
+final class UsagePredictor {
+
+    private static final String TAG = UsagePredictor.class.getSimpleName();
+
+    private static final int HOURS_PER_DAY = 24;
+    private static final long HOUR_IN_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY_IN_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /* What is left of a weight after a day */
+    private static final float DAILY_DECAY = 0.9f;
+
+    /* The weight from which an hour is predicted to be used */
+    static final float MIN_WEIGHT = 1.5f;
+
+    /* How long before the predicted hour the prefetch is scheduled */
+    static final long LEAD_MILLIS = TimeUnit.MINUTES.toMillis(20);
+
+    static final int MAX_PREFETCHES_PER_DAY = 2;
+
+    /* A forecast synced more recently than this is fresh enough to show without a prefetch */
+    private static final long MIN_DATA_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private UsagePredictor() {
+    }
+
+    /**
+     * Counts the current hour as one the weather was seen in, unless it already was.
+     *
+     * @param context Used to access the preferences
+     * @return true if the hour was counted, and the prediction may have changed
+     */
+    static boolean onWeatherSeen(Context context) {
+        long localHour = toLocalMillis(System.currentTimeMillis()) / HOUR_IN_MILLIS;
+        if (localHour == SunshinePreferences.getUsageLastHour(context)) return false;
+
+        long today = localHour / HOURS_PER_DAY;
+        float[] weights = decay(SunshinePreferences.getUsageHistogram(context),
+                SunshinePreferences.getUsageDay(context), today);
+        weights[(int) (localHour % HOURS_PER_DAY)] += 1;
+
+        SunshinePreferences.saveUsage(context, weights, today, localHour);
+        return true;
+    }
+
+    /**
+     * Picks when to prefetch next, from the usage histogram and what is left of each day's
+     * budget.
+     *
+     * @param context Used to read the preferences
+     * @return The UNIX time to prefetch at, or -1 if no use is predicted within a day
+     */
+    static long nextPrefetchMillis(Context context) {
+        long now = System.currentTimeMillis();
+        long today = toLocalMillis(now) / DAY_IN_MILLIS;
+        float[] weights = decay(SunshinePreferences.getUsageHistogram(context),
+                SunshinePreferences.getUsageDay(context), today);
+        boolean budgetLeftToday =
+                SunshinePreferences.getPrefetchCount(context, today) < MAX_PREFETCHES_PER_DAY;
+
+        long prefetch = nextPrefetchMillis(weights, now, TimeZone.getDefault(), budgetLeftToday);
+        if (prefetch != -1) {
+            Log.d(TAG, "Next prefetch in " + (prefetch - now) / 60000 + " minutes");
+        }
+        return prefetch;
+    }
+
+    /**
+     * Computes when to prefetch next. Kept free of Android calls, so the prediction can be read,
+     * and checked, in one place.
+     *
+     * @param weights         The weight of each hour of the day, already decayed to today
+     * @param now             The current UNIX time
+     * @param timeZone        The time zone habits are in
+     * @param budgetLeftToday Whether another prefetch may run today
+     * @return The UNIX time to prefetch at, or -1 if no use is predicted within a day
+     */
+    static long nextPrefetchMillis(float[] weights, long now, TimeZone timeZone,
+                                   boolean budgetLeftToday) {
+        long offset = timeZone.getOffset(now);
+        long localNow = now + offset;
+        long localToday = localNow / DAY_IN_MILLIS;
+        long hourStart = localNow - localNow % HOUR_IN_MILLIS;
+
+        /*
+         * The current hour has started, so the first one to prefetch for is the next. The last
+         * is the one after the current hour tomorrow, whose prefetch may still fall within a day.
+         */
+        for (int i = 1; i <= HOURS_PER_DAY + 1; i++) {
+            long localStart = hourStart + i * HOUR_IN_MILLIS;
+            long localPrefetch = localStart - LEAD_MILLIS;
+            if (localPrefetch <= localNow) continue;
+            if (localPrefetch - localNow > DAY_IN_MILLIS) break;
+            if (!budgetLeftToday && localPrefetch / DAY_IN_MILLIS == localToday) continue;
+
+            int hour = (int) ((localStart / HOUR_IN_MILLIS) % HOURS_PER_DAY);
+            if (weights[hour] >= MIN_WEIGHT) return localPrefetch - offset;
+        }
+        return -1;
+    }
+
+    /**
+     * Decides whether a prefetch that is due should sync, and if so counts it against today's
+     * budget.
+     *
+     * @param context Used to access the preferences
+     * @return true if the prefetch should sync
+     */
+    static boolean startPrefetch(Context context) {
+        long now = System.currentTimeMillis();
+        if (now - SunshinePreferences.getLastSyncTime(context) < MIN_DATA_AGE_MILLIS) {
+            Log.d(TAG, "Skipping the prefetch, the forecast is recent");
+            return false;
+        }
+
+        long today = toLocalMillis(now) / DAY_IN_MILLIS;
+        int count = SunshinePreferences.getPrefetchCount(context, today);
+        if (count >= MAX_PREFETCHES_PER_DAY) {
+            Log.d(TAG, "Skipping the prefetch, today's are spent");
+            return false;
+        }
+
+        SunshinePreferences.savePrefetchCount(context, today, count + 1);
+        return true;
+    }
+
+    /* Ages the weights from the day they were last decayed on to today */
+    private static float[] decay(float[] saved, long savedDay, long today) {
+        float[] weights = new float[HOURS_PER_DAY];
+        if (saved.length != HOURS_PER_DAY) return weights;
+
+        float factor = (float) Math.pow(DAILY_DECAY, Math.max(0, today - savedDay));
+        for (int i = 0; i < HOURS_PER_DAY; i++) {
+            weights[i] = saved[i] * factor;
+        }
+        return weights;
+    }
+
+    private static long toLocalMillis(long millis) {
+        return millis + TimeZone.getDefault().getOffset(millis);
+    }
+}
@@ -3,52 +3,59 @@ package com.example.android.diegobaldi.sunshine.utilities;
 import android.content.ContentValues;
 import android.content.Context;
 
-import com.example.android.diegobaldi.sunshine.data.WeatherContract;
-
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.TimeUnit;
-
-import static com.example.android.diegobaldi.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.diegobaldi.sunshine.data.SunshinePreferences;
+import com.example.android.diegobaldi.sunshine.data.WeatherRepository;
+import com.example.android.diegobaldi.sunshine.sync.SunshineSyncTask;
 
 public class FakeDataUtils {
 
-    private static int [] weatherIDs = {200,300,500,711,900,962};
+    /* insertFakeData(Context) inserts the same weather on every run, so screens can be compared */
+    private static final long DEFAULT_SEED = 42;
+
+    /* How many days insertFakeData(Context, long, int, int) generates and inserts at a time */
+    private static final int BATCH_DAYS = 500;
 
     /**
-     * Creates a single ContentValues object with random weather data for the provided date
-     * @param date a normalized date
-     * @return ContentValues object filled with random weather data
+     * Creates fake weather data for 7 days starting today, under the preferred location
+     * @param context
      */
-    private static ContentValues createTestWeatherContentValues(long date) {
-        ContentValues testWeatherValues = new ContentValues();
-        testWeatherValues.put(WeatherEntry.COLUMN_DATE, date);
-        testWeatherValues.put(WeatherEntry.COLUMN_DEGREES, Math.random()*2);
-        testWeatherValues.put(WeatherEntry.COLUMN_HUMIDITY, Math.random()*100);
-        testWeatherValues.put(WeatherEntry.COLUMN_PRESSURE, 870 + Math.random()*100);
-        int maxTemp = (int)(Math.random()*100);
-        testWeatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
-        testWeatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, maxTemp - (int) (Math.random()*10));
-        testWeatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, Math.random()*10);
-        testWeatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, weatherIDs[(int)(Math.random()*10)%5]);
-        return testWeatherValues;
+    public static void insertFakeData(Context context) {
+        //Get today's normalized date, as the local day
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        double[] coordinates = SunshinePreferences.getLocationCoordinates(context);
+        ContentValues[] fakeValues = new FakeForecastGenerator(DEFAULT_SEED,
+                coordinates[0], coordinates[1]).dailyForecast(today, 7);
+        // Insert our new weather data into Sunshine's Database, under the preferred location
+        long locationId = SunshineSyncTask.resolvePreferredLocationId(context);
+        WeatherRepository.getInstance(context).insertForecast(locationId, fakeValues);
     }
 
     /**
-     * Creates random weather data for 7 days starting today
-     * @param context
+     * Fills the database with fake weather for as many locations and days as a load test needs.
+     * Each location is saved as "fake-0", "fake-1" and so on, with its own climate, and gets a
+     * forecast starting today in place of the one it had. The same seed always inserts the same
+     * data. The days are generated and inserted in batches, so years of them fit in memory.
+     *
+     * @param context   Used to reach the database
+     * @param seed      Decides every value, see {@link FakeForecastGenerator}
+     * @param locations How many locations
+     * @param days      How many days for each location, which can be years' worth
+     * @return The _IDs of the locations, in order
      */
-    public static void insertFakeData(Context context) {
-        //Get today's normalized date
-        long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
-        List<ContentValues> fakeValues = new ArrayList<ContentValues>();
-        //loop over 7 days starting today onwards
-        for(int i=0; i<7; i++) {
-            fakeValues.add(FakeDataUtils.createTestWeatherContentValues(today + TimeUnit.DAYS.toMillis(i)));
+    public static long[] insertFakeData(Context context, long seed, int locations, int days) {
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        WeatherRepository repository = WeatherRepository.getInstance(context);
+
+        long[] locationIds = new long[locations];
+        for (int i = 0; i < locations; i++) {
+            FakeForecastGenerator generator = FakeForecastGenerator.forLocation(seed, i);
+            long locationId = repository.saveLocation("fake-" + i);
+            repository.updateLocationCoordinates(locationId,
+                    generator.getLatitude(), generator.getLongitude());
+            repository.loadForecast(locationId,
+                    generator.dailyBatches(today, days, BATCH_DAYS));
+            locationIds[i] = locationId;
         }
-        // Bulk Insert our new weather data into Sunshine's Database
-        context.getContentResolver().bulkInsert(
-                WeatherContract.WeatherEntry.CONTENT_URI,
-                fakeValues.toArray(new ContentValues[7]));
+        return locationIds;
     }
 }
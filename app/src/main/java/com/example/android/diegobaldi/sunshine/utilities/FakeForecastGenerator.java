@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.utilities;
+
+import android.content.ContentValues;
+
+import com.example.android.diegobaldi.sunshine.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Generates forecasts that look like the real thing, for as many days and locations as a test
+ * or benchmark needs, without a server.
+ * <p>
+ * Temperatures follow a seasonal curve whose mean and swing depend on the latitude, with the
+ * seasons flipped south of the equator, plus an anomaly that carries over from day to day the
+ * way weather does. Conditions tend to persist too, and which ones are likely depends on the
+ * season: snow only when it's cold, thunderstorms mostly in summer. Pressure, humidity and wind
+ * follow the conditions.
+ * <p>
+ * Everything comes from one seed: a generator built with the same seed and location produces
+ * the same forecast on every run and every device, so results can be compared from one change
+ * to the next. That is why the curves use StrictMath, which unlike Math gives the same result
+ * everywhere. Each call starts the stream afresh, so asking for the same days twice gives the
+ * same rows twice. The forecast is available as the rows Sunshine stores and as the JSON the
+ * daily and hourly Open Weather Map endpoints return, so parsing can be measured as well.
+ */
+public final class FakeForecastGenerator {
+
+    /* Condition groups, each with the weather IDs Open Weather Map uses for it */
+    private static final int GROUP_CLEAR = 0;
+    private static final int GROUP_CLOUDS = 1;
+    private static final int GROUP_RAIN = 2;
+    private static final int GROUP_THUNDERSTORM = 3;
+    private static final int GROUP_SNOW = 4;
+    private static final int GROUP_FOG = 5;
+
+    private static final int[][] GROUP_WEATHER_IDS = {
+            {800},
+            {801, 802, 803, 804},
+            {300, 500, 500, 501, 502},
+            {200, 201, 211},
+            {600, 601, 602},
+            {701, 741},
+    };
+
+    private static final String[] GROUP_NAMES =
+            {"Clear", "Clouds", "Rain", "Thunderstorm", "Snow", "Mist"};
+
+    /* How likely tomorrow keeps today's conditions */
+    private static final double CONDITION_PERSISTENCE = 0.6;
+
+    /* How much of yesterday's temperature anomaly is left today, and how much a day adds */
+    private static final double ANOMALY_PERSISTENCE = 0.7;
+    private static final double ANOMALY_NOISE = 2.5;
+
+    private static final double DAYS_PER_YEAR = 365.2425;
+    /* The coldest day in the north, in days from the start of the year */
+    private static final double COLDEST_DAY = 20;
+
+    private static final int HOURLY_STEP_HOURS = 3;
+    private static final long HOUR_IN_MILLIS = SunshineDateUtils.DAY_IN_MILLIS / 24;
+
+    private final long mSeed;
+    private final double mLatitude;
+    private final double mLongitude;
+
+    /* Mean temperature over the year and half its swing, both in degrees Celsius */
+    private final double mMeanTemperature;
+    private final double mSeasonalSwing;
+
+    /**
+     * Creates a generator for one location.
+     *
+     * @param seed      Decides every value; the same seed gives the same forecast
+     * @param latitude  Of the location, between -90 and 90; decides the climate
+     * @param longitude Of the location, only reported back in the JSON
+     */
+    public FakeForecastGenerator(long seed, double latitude, double longitude) {
+        mSeed = seed;
+        mLatitude = latitude;
+        mLongitude = longitude;
+
+        double distanceFromEquator = Math.abs(latitude);
+        mMeanTemperature = 28 - 0.45 * distanceFromEquator;
+        mSeasonalSwing = 1 + 0.3 * distanceFromEquator;
+    }
+
+    /**
+     * Creates a generator for the index-th of several locations, each with its own climate and
+     * its own weather, all decided by the seed.
+     *
+     * @param seed  Shared by every location of the set
+     * @param index Which location of the set, from 0
+     * @return The generator of that location
+     */
+    public static FakeForecastGenerator forLocation(long seed, int index) {
+        Random random = new Random(seed * 31 + index);
+        /* Where people live: mostly the northern mid latitudes, some in the south */
+        double latitude = random.nextDouble() < 0.8
+                ? 10 + random.nextDouble() * 55
+                : -(10 + random.nextDouble() * 35);
+        double longitude = -180 + random.nextDouble() * 360;
+        return new FakeForecastGenerator(seed * 31 + index, latitude, longitude);
+    }
+
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    /**
+     * Generates the daily forecast as the rows Sunshine stores, without their location.
+     *
+     * @param startDate The normalized UTC date of the first day
+     * @param days      How many days, which can be years' worth
+     * @return One row per day, in date order
+     */
+    public ContentValues[] dailyForecast(long startDate, int days) {
+        ContentValues[] forecast = new ContentValues[days];
+        DayStream stream = new DayStream(startDate);
+        for (int i = 0; i < days; i++) {
+            stream.next();
+            forecast[i] = new ContentValues();
+            stream.putInto(forecast[i]);
+        }
+        return forecast;
+    }
+
+    /**
+     * Generates the same rows as {@link #dailyForecast(long, int)} a batch at a time, so years'
+     * worth of days can be inserted without holding them all in memory.
+     *
+     * @param startDate The normalized UTC date of the first day
+     * @param days      How many days in all
+     * @param batchSize How many days in each batch but the last, which can be shorter
+     * @return The batches, in date order
+     */
+    public DailyBatches dailyBatches(long startDate, int days, int batchSize) {
+        return new DailyBatches(startDate, days, batchSize);
+    }
+
+    /**
+     * The daily forecast, one batch of rows after another. The array and the rows of a batch
+     * are filled again by the next call to {@link #next}, so each batch must be used up, and
+     * not kept, before asking for the next.
+     */
+    public final class DailyBatches implements Iterator<ContentValues[]> {
+
+        private final DayStream mStream;
+        private final ContentValues[] mBatch;
+        private int mDaysLeft;
+
+        private DailyBatches(long startDate, int days, int batchSize) {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+            }
+            mStream = new DayStream(startDate);
+            mBatch = new ContentValues[Math.min(batchSize, Math.max(days, 0))];
+            for (int i = 0; i < mBatch.length; i++) {
+                mBatch[i] = new ContentValues();
+            }
+            mDaysLeft = days;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mDaysLeft > 0;
+        }
+
+        @Override
+        public ContentValues[] next() {
+            if (mDaysLeft <= 0) throw new NoSuchElementException();
+
+            ContentValues[] batch = mDaysLeft >= mBatch.length
+                    ? mBatch : Arrays.copyOf(mBatch, mDaysLeft);
+            for (ContentValues values : batch) {
+                mStream.next();
+                mStream.putInto(values);
+            }
+            mDaysLeft -= batch.length;
+            return batch;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Generates the daily forecast as the daily endpoint returns it, with the same days as
+     * {@link #dailyForecast(long, int)}.
+     *
+     * @param startDate The normalized UTC date of the first day
+     * @param days      How many days, which can be years' worth
+     * @return The JSON response
+     */
+    public String dailyJson(long startDate, int days) {
+        StringBuilder json = new StringBuilder(200 + days * 260);
+        appendHeader(json, days);
+
+        DayStream stream = new DayStream(startDate);
+        for (int i = 0; i < days; i++) {
+            stream.next();
+            if (i > 0) json.append(',');
+            json.append("{\"dt\":").append(stream.date / 1000 + 12 * 3600)
+                    .append(",\"temp\":{\"day\":").append(round((stream.low + stream.high) / 2))
+                    .append(",\"min\":").append(stream.low)
+                    .append(",\"max\":").append(stream.high)
+                    .append(",\"night\":").append(stream.low)
+                    .append(",\"eve\":").append(stream.high)
+                    .append(",\"morn\":").append(stream.low)
+                    .append("},\"pressure\":").append(stream.pressure)
+                    .append(",\"humidity\":").append(stream.humidity)
+                    .append(",\"weather\":[");
+            appendWeather(json, stream);
+            json.append("],\"speed\":").append(stream.windSpeed)
+                    .append(",\"deg\":").append(stream.windDirection)
+                    .append(",\"clouds\":").append(stream.cloudiness)
+                    .append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Generates the forecast in 3 hour steps as the hourly endpoint returns it. Each step's
+     * temperature is on the way between the low and the high of the UTC day it falls on, coldest
+     * at 3 and warmest at 15, so each day's steps reach that day's low and high.
+     *
+     * @param startDate The normalized UTC date of the first step
+     * @param steps     How many 3 hour steps
+     * @return The JSON response
+     */
+    public String hourlyJson(long startDate, int steps) {
+        StringBuilder json = new StringBuilder(200 + steps * 220);
+        appendHeader(json, steps);
+
+        DayStream stream = new DayStream(startDate);
+        long time = startDate;
+        for (int i = 0; i < steps; i++) {
+            if (stream.date <= time - SunshineDateUtils.DAY_IN_MILLIS || i == 0) {
+                stream.next();
+            }
+            double hour = (time - stream.date) / (double) HOUR_IN_MILLIS;
+            /* Coldest at 3 in the morning, warmest at 3 in the afternoon */
+            double warmth = (1 - StrictMath.cos(2 * Math.PI * (hour - 3) / 24)) / 2;
+            double temperature = round(stream.low + (stream.high - stream.low) * warmth);
+
+            if (i > 0) json.append(',');
+            json.append("{\"dt\":").append(time / 1000)
+                    .append(",\"main\":{\"temp\":").append(temperature)
+                    .append(",\"temp_min\":").append(temperature)
+                    .append(",\"temp_max\":").append(temperature)
+                    .append(",\"pressure\":").append(stream.pressure)
+                    .append(",\"humidity\":").append(stream.humidity)
+                    .append("},\"weather\":[");
+            appendWeather(json, stream);
+            json.append("],\"clouds\":{\"all\":").append(stream.cloudiness)
+                    .append("},\"wind\":{\"speed\":").append(stream.windSpeed)
+                    .append(",\"deg\":").append(stream.windDirection)
+                    .append("}}");
+
+            time += HOURLY_STEP_HOURS * HOUR_IN_MILLIS;
+        }
+        return json.append("]}").toString();
+    }
+
+    private void appendHeader(StringBuilder json, int count) {
+        json.append("{\"city\":{\"id\":").append(Math.abs(mSeed % 10000000))
+                .append(",\"name\":\"Fake ").append(Math.abs(mSeed % 10000000))
+                .append("\",\"coord\":{\"lon\":").append(round(mLongitude))
+                .append(",\"lat\":").append(round(mLatitude))
+                .append("},\"country\":\"XX\"},\"cod\":\"200\",\"message\":0,\"cnt\":")
+                .append(count)
+                .append(",\"list\":[");
+    }
+
+    private static void appendWeather(StringBuilder json, DayStream stream) {
+        String group = GROUP_NAMES[stream.mGroup];
+        json.append("{\"id\":").append(stream.weatherId)
+                .append(",\"main\":\"").append(group)
+                .append("\",\"description\":\"").append(group.toLowerCase(Locale.US))
+                .append("\",\"icon\":\"01d\"}");
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    /**
+     * The weather of one day after another, from the seed. The fields hold the day {@link #next}
+     * last moved to.
+     */
+    private final class DayStream {
+
+        private final Random mRandom = new Random(mSeed);
+
+        long date;
+        int weatherId;
+        double high;
+        double low;
+        double pressure;
+        int humidity;
+        double windSpeed;
+        double windDirection;
+        int cloudiness;
+
+        private int mGroup = GROUP_CLEAR;
+        private double mAnomaly;
+        private double mPressureAnomaly;
+
+        DayStream(long startDate) {
+            date = startDate - SunshineDateUtils.DAY_IN_MILLIS;
+        }
+
+        void next() {
+            date += SunshineDateUtils.DAY_IN_MILLIS;
+
+            /* 1 in the middle of summer, -1 in the middle of winter, on either hemisphere */
+            double dayOfYear = (date / SunshineDateUtils.DAY_IN_MILLIS) % DAYS_PER_YEAR;
+            double season =
+                    -StrictMath.cos(2 * Math.PI * (dayOfYear - COLDEST_DAY) / DAYS_PER_YEAR);
+            if (mLatitude < 0) season = -season;
+
+            mAnomaly = ANOMALY_PERSISTENCE * mAnomaly + ANOMALY_NOISE * mRandom.nextGaussian();
+            double mean = mMeanTemperature + mSeasonalSwing * season + mAnomaly;
+
+            if (mRandom.nextDouble() >= CONDITION_PERSISTENCE) {
+                mGroup = pickGroup(mean, season);
+            }
+            int[] ids = GROUP_WEATHER_IDS[mGroup];
+            weatherId = ids[mRandom.nextInt(ids.length)];
+
+            /* Clear days swing more between night and day than cloudy or wet ones */
+            double range = (mGroup == GROUP_CLEAR ? 11 : 6) + 2 * mRandom.nextGaussian();
+            range = Math.max(1, range);
+            high = round(mean + range / 2);
+            low = round(mean - range / 2);
+
+            /* Lows bring bad weather, so pressure drops on wet days */
+            boolean wet = mGroup == GROUP_RAIN || mGroup == GROUP_THUNDERSTORM
+                    || mGroup == GROUP_SNOW;
+            mPressureAnomaly = 0.6 * mPressureAnomaly + 4 * mRandom.nextGaussian();
+            pressure = round(1013 + mPressureAnomaly + (wet ? -10 : mGroup == GROUP_CLEAR ? 6 : 0));
+
+            int baseHumidity = wet || mGroup == GROUP_FOG ? 85 : mGroup == GROUP_CLOUDS ? 70 : 50;
+            humidity = baseHumidity + (int) (8 * mRandom.nextGaussian());
+            humidity = Math.max(5, Math.min(100, humidity));
+
+            /* Mostly light, now and then a storm */
+            windSpeed = round(-StrictMath.log(1 - mRandom.nextDouble()) * (wet ? 6 : 3.5));
+            windDirection = mRandom.nextInt(360);
+
+            cloudiness = mGroup == GROUP_CLEAR ? mRandom.nextInt(10)
+                    : mGroup == GROUP_CLOUDS ? 20 + mRandom.nextInt(80)
+                    : 75 + mRandom.nextInt(26);
+        }
+
+        /* Puts the day into a row, over whatever day it held before */
+        void putInto(ContentValues values) {
+            values.put(WeatherEntry.COLUMN_DATE, date);
+            values.put(WeatherEntry.COLUMN_HUMIDITY, humidity);
+            values.put(WeatherEntry.COLUMN_PRESSURE, pressure);
+            values.put(WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
+            values.put(WeatherEntry.COLUMN_DEGREES, windDirection);
+            values.put(WeatherEntry.COLUMN_MAX_TEMP, high);
+            values.put(WeatherEntry.COLUMN_MIN_TEMP, low);
+            values.put(WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        }
+
+        /* Fair weather is the most common; what falls from the sky depends on the temperature */
+        private int pickGroup(double mean, double season) {
+            double roll = mRandom.nextDouble();
+            if (roll < 0.35) return GROUP_CLEAR;
+            if (roll < 0.70) return GROUP_CLOUDS;
+            if (roll < 0.75) return GROUP_FOG;
+            if (mean < 1) return GROUP_SNOW;
+            /* Thunderstorms are a summer thing */
+            if (roll < 0.75 + 0.08 * Math.max(0, season)) return GROUP_THUNDERSTORM;
+            return GROUP_RAIN;
+        }
+    }
+}
@@ -17,16 +17,19 @@ package com.example.android.diegobaldi.sunshine.utilities;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.example.android.diegobaldi.sunshine.data.SunshinePreferences;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.Scanner;
 
 /**
  * These utilities will be used to communicate with the weather servers.
@@ -56,6 +59,13 @@ public final class NetworkUtils {
 
     private static final String FORECAST_BASE_URL = STATIC_WEATHER_URL;
 
+    /*
+     * The forecast in 3 hour steps, in the format of OpenWeatherMap's /forecast endpoint. The
+     * server doesn't always have it for every location; the daily forecast is synced either way.
+     */
+    private static final String HOURLY_FORECAST_BASE_URL =
+            "https://andfun-weather.udacity.com/forecast";
+
     /*
      * NOTE: These values only effect responses from OpenWeatherMap, NOT from the fake weather
      * server. They are simply here to allow us to teach you how to build a URL if you were to use
@@ -69,6 +79,8 @@ public final class NetworkUtils {
     private static final String units = "metric";
     /* The number of days we want our API to return */
     private static final int numDays = 14;
+    /* The number of 3 hour steps we want, which is 5 days */
+    private static final int numHourlySteps = 40;
 
     /* The query parameter allows us to provide a location string to the API */
     private static final String QUERY_PARAM = "q";
@@ -85,7 +97,7 @@ public final class NetworkUtils {
 
     /**
      * Retrieves the proper URL to query for the weather data. The reason for both this method as
-     * well as {@link #buildUrlWithLocationQuery(String)} is two fold.
+     * well as {@link #buildUrlWithLocationQuery(String, int, String)} is two fold.
      * <p>
      * 1) You should be able to just use one method when you need to create the URL within the
      * app instead of calling both methods.
@@ -98,14 +110,39 @@ public final class NetworkUtils {
      * @return URL to query weather service
      */
     public static URL getUrl(Context context) {
+        return getUrl(context, FORECAST_BASE_URL, numDays);
+    }
+
+    /**
+     * Retrieves the URL to query for only the first days of the weather data.
+     *
+     * @param context used to access other Utility methods
+     * @param days    How many days to ask for, today included
+     * @return URL to query weather service
+     */
+    public static URL getUrl(Context context, int days) {
+        return getUrl(context, FORECAST_BASE_URL, days);
+    }
+
+    /**
+     * Retrieves the URL to query for the forecast in 3 hour steps of the preferred location.
+     *
+     * @param context used to access other Utility methods
+     * @return URL to query the hourly forecast
+     */
+    public static URL getHourlyUrl(Context context) {
+        return getUrl(context, HOURLY_FORECAST_BASE_URL, numHourlySteps);
+    }
+
+    private static URL getUrl(Context context, String baseUrl, int count) {
         if (SunshinePreferences.isLocationLatLonAvailable(context)) {
             double[] preferredCoordinates = SunshinePreferences.getLocationCoordinates(context);
             double latitude = preferredCoordinates[0];
             double longitude = preferredCoordinates[1];
-            return buildUrlWithLatitudeLongitude(latitude, longitude);
+            return buildUrlWithLatitudeLongitude(baseUrl, count, latitude, longitude);
         } else {
             String locationQuery = SunshinePreferences.getPreferredWeatherLocation(context);
-            return buildUrlWithLocationQuery(locationQuery);
+            return buildUrlWithLocationQuery(baseUrl, count, locationQuery);
         }
     }
 
@@ -113,17 +150,20 @@ public final class NetworkUtils {
      * Builds the URL used to talk to the weather server using latitude and longitude of a
      * location.
      *
+     * @param baseUrl   The endpoint to query
+     * @param count     The number of forecast entries to ask for
      * @param latitude  The latitude of the location
      * @param longitude The longitude of the location
      * @return The Url to use to query the weather server.
      */
-    private static URL buildUrlWithLatitudeLongitude(Double latitude, Double longitude) {
-        Uri weatherQueryUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
+    private static URL buildUrlWithLatitudeLongitude(String baseUrl, int count,
+                                                     Double latitude, Double longitude) {
+        Uri weatherQueryUri = Uri.parse(baseUrl).buildUpon()
                 .appendQueryParameter(LAT_PARAM, String.valueOf(latitude))
                 .appendQueryParameter(LON_PARAM, String.valueOf(longitude))
                 .appendQueryParameter(FORMAT_PARAM, format)
                 .appendQueryParameter(UNITS_PARAM, units)
-                .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(count))
                 .build();
 
         try {
@@ -140,15 +180,17 @@ public final class NetworkUtils {
      * Builds the URL used to talk to the weather server using a location. This location is based
      * on the query capabilities of the weather provider that we are using.
      *
+     * @param baseUrl       The endpoint to query
+     * @param count         The number of forecast entries to ask for
      * @param locationQuery The location that will be queried for.
      * @return The URL to use to query the weather server.
      */
-    private static URL buildUrlWithLocationQuery(String locationQuery) {
-        Uri weatherQueryUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
+    private static URL buildUrlWithLocationQuery(String baseUrl, int count, String locationQuery) {
+        Uri weatherQueryUri = Uri.parse(baseUrl).buildUpon()
                 .appendQueryParameter(QUERY_PARAM, locationQuery)
                 .appendQueryParameter(FORMAT_PARAM, format)
                 .appendQueryParameter(UNITS_PARAM, units)
-                .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(count))
                 .build();
 
         try {
@@ -161,6 +203,21 @@ public final class NetworkUtils {
         }
     }
 
+    /**
+     * Thrown when a response doesn't arrive before its deadline. Whatever was read by then is
+     * kept, so the caller can still use the part of it that is complete.
+     */
+    public static final class DeadlineExceededException extends InterruptedIOException {
+
+        /* The start of the response, possibly empty */
+        public final String partialResponse;
+
+        DeadlineExceededException(String partialResponse) {
+            super("Response not complete before its deadline");
+            this.partialResponse = partialResponse;
+        }
+    }
+
     /**
      * This method returns the entire result from the HTTP response.
      *
@@ -169,20 +226,64 @@ public final class NetworkUtils {
      * @throws IOException Related to network and stream reading
      */
     public static String getResponseFromHttpUrl(URL url) throws IOException {
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-        try {
-            InputStream in = urlConnection.getInputStream();
+        return getResponseFromHttpUrl(url, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns the entire result from the HTTP response, if it arrives in time. Connecting and
+     * every read time out at the deadline, and so does a response trickling in too slowly.
+     *
+     * @param url      The URL to fetch the HTTP response from.
+     * @param deadline SystemClock.elapsedRealtime by which the response must be read, or
+     *                 Long.MAX_VALUE to wait as long as it takes
+     * @return The contents of the HTTP response, null if no response
+     * @throws DeadlineExceededException If the response wasn't read by the deadline
+     * @throws IOException               Related to network and stream reading
+     */
+    public static String getResponseFromHttpUrl(URL url, long deadline) throws IOException {
+        return getResponse((HttpURLConnection) url.openConnection(), deadline);
+    }
 
-            Scanner scanner = new Scanner(in);
-            scanner.useDelimiter("\\A");
+    /**
+     * Same as {@link #getResponseFromHttpUrl(URL, long)}, on a connection the caller opened.
+     * Reading a socket doesn't stop for an interrupt, so a caller that has to abort the read
+     * from another thread keeps the connection and disconnects it, which fails the read with
+     * an IOException.
+     *
+     * @param urlConnection The connection, opened but not connected; it is disconnected once
+     *                      the response is read
+     * @param deadline      SystemClock.elapsedRealtime by which the response must be read, or
+     *                      Long.MAX_VALUE to wait as long as it takes
+     * @return The contents of the HTTP response, null if no response
+     * @throws DeadlineExceededException If the response wasn't read by the deadline
+     * @throws IOException               Related to network and stream reading
+     */
+    public static String getResponse(HttpURLConnection urlConnection, long deadline)
+            throws IOException {
+        StringBuilder response = new StringBuilder();
+        try {
+            if (deadline != Long.MAX_VALUE) {
+                int timeout = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                        deadline - SystemClock.elapsedRealtime()));
+                urlConnection.setConnectTimeout(timeout);
+                urlConnection.setReadTimeout(timeout);
+            }
 
-            boolean hasInput = scanner.hasNext();
-            String response = null;
-            if (hasInput) {
-                response = scanner.next();
+            Reader in = new InputStreamReader(urlConnection.getInputStream(), "UTF-8");
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                response.append(buffer, 0, read);
+                if (SystemClock.elapsedRealtime() >= deadline) {
+                    throw new DeadlineExceededException(response.toString());
+                }
             }
-            scanner.close();
-            return response;
+            in.close();
+
+            return response.length() == 0 ? null : response.toString();
+        } catch (SocketTimeoutException e) {
+            if (SystemClock.elapsedRealtime() < deadline) throw e;
+            throw new DeadlineExceededException(response.toString());
         } finally {
             urlConnection.disconnect();
         }
@@ -5,7 +5,6 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
@@ -16,29 +15,11 @@ import android.support.v4.content.ContextCompat;
 import com.example.android.diegobaldi.R;
 import com.example.android.diegobaldi.sunshine.DetailActivity;
 import com.example.android.diegobaldi.sunshine.data.SunshinePreferences;
+import com.example.android.diegobaldi.sunshine.data.TodaySummary;
 import com.example.android.diegobaldi.sunshine.data.WeatherContract;
 
 public class NotificationUtils {
 
-    /*
-     * The columns of data that we are interested in displaying within our notification to let
-     * the user know there is new weather data available.
-     */
-    public static final String[] WEATHER_NOTIFICATION_PROJECTION = {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-    };
-
-    /*
-     * We store the indices of the values in the array of Strings above to more quickly be able
-     * to access the data from our query. If the order of the Strings above changes, these
-     * indices must be adjusted to match the order of the Strings.
-     */
-    public static final int INDEX_WEATHER_ID = 0;
-    public static final int INDEX_MAX_TEMP = 1;
-    public static final int INDEX_MIN_TEMP = 2;
-
     /*
      * This notification ID can be used to access our notification after we've displayed it. This
      * can be handy when we need to cancel the notification, or perhaps update it. This number is
@@ -49,35 +30,36 @@ public class NotificationUtils {
     /**
      * Constructs and displays a notification for the newly updated weather for today.
      *
-     * @param context Context used to query our ContentProvider and use various Utility methods
+     * @param context Context used to read today's summary and use various Utility methods
      */
     public static void notifyUserOfNewWeather(Context context) {
 
-        /* Build the URI for today's weather in order to show up to date data in notification */
-        Uri todaysWeatherUri = WeatherContract.WeatherEntry
-                .buildWeatherUriWithDate(SunshineDateUtils.normalizeDate(System.currentTimeMillis()));
-
         /*
-         * The MAIN_FORECAST_PROJECTION array passed in as the second parameter is defined in our WeatherContract
-         * class and is used to limit the columns returned in our cursor.
+         * Today's condition, high and low are kept in memory by TodaySummary, which the sync has
+         * just refreshed. If there is no weather for today, there is nothing to notify about.
          */
-        Cursor todayWeatherCursor = context.getContentResolver().query(
-                todaysWeatherUri,
-                WEATHER_NOTIFICATION_PROJECTION,
-                null,
-                null,
-                null);
+        notifyUserOfNewWeather(context, TodaySummary.getForToday(context));
+    }
 
-        /*
-         * If todayWeatherCursor is empty, moveToFirst will return false. If our cursor is not
-         * empty, we want to show the notification.
-         */
-        if (todayWeatherCursor.moveToFirst()) {
+    /**
+     * Constructs and displays a notification for today's weather as the caller already has it,
+     * so nothing is read back.
+     *
+     * @param context Context used to use various Utility methods
+     * @param today   Today's weather, or null if there is none
+     */
+    public static void notifyUserOfNewWeather(Context context, TodaySummary today) {
+
+        if (today != null) {
+
+            /* Build the URI for today's weather in order to show up to date data in notification */
+            Uri todaysWeatherUri = WeatherContract.LocationEntry
+                    .buildWeatherUriWithDate(today.locationId, today.date);
 
             /* Weather ID as returned by API, used to identify the icon to be used */
-            int weatherId = todayWeatherCursor.getInt(INDEX_WEATHER_ID);
-            double high = todayWeatherCursor.getDouble(INDEX_MAX_TEMP);
-            double low = todayWeatherCursor.getDouble(INDEX_MIN_TEMP);
+            int weatherId = today.weatherId;
+            double high = today.high;
+            double low = today.low;
 
             Resources resources = context.getResources();
             int largeArtResourceId = SunshineWeatherUtils
@@ -136,9 +118,6 @@ public class NotificationUtils {
              */
             SunshinePreferences.saveLastNotificationTime(context, System.currentTimeMillis());
         }
-
-        /* Always close your cursor when you're done with it to avoid wasting resources. */
-        todayWeatherCursor.close();
     }
 
     /**
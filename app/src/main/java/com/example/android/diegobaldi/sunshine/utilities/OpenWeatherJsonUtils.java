@@ -26,6 +26,8 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.TimeZone;
 
 /**
  * Utility functions to handle OpenWeatherMap JSON data.
@@ -60,6 +62,22 @@ public final class OpenWeatherJsonUtils {
 
     private static final String OWM_MESSAGE_CODE = "cod";
 
+    /* Hourly forecasts keep their time, and their values in "main" and "wind" objects */
+    private static final String OWM_DATE_TIME = "dt";
+    private static final String OWM_MAIN = "main";
+    private static final String OWM_WIND = "wind";
+    private static final String OWM_HOURLY_TEMPERATURE = "temp";
+    private static final String OWM_HOURLY_MIN = "temp_min";
+    private static final String OWM_HOURLY_MAX = "temp_max";
+
+    /* The number of 3 hour steps in a day; a day with fewer is only partly forecast */
+    private static final int HOURLY_STEPS_PER_DAY = 8;
+
+    /* Indices into the arrays of getHourlyContentValuesFromJson's dailyExtremes */
+    private static final int EXTREME_MIN = 0;
+    private static final int EXTREME_MAX = 1;
+    private static final int EXTREME_STEPS = 2;
+
     /**
      * This method parses JSON from a web response and returns an array of Strings
      * describing the weather over various days from the forecast.
@@ -181,4 +199,162 @@ public final class OpenWeatherJsonUtils {
 
         return weatherContentValues;
     }
-}
\ No newline at end of file
+
+    /**
+     * Parses the forecast in 3 hour steps into rows for the hourly table. While walking the
+     * entries, the lowest and highest temperature of each local day are collected as well, so
+     * the daily forecast can be refined without a second pass over the JSON or the table.
+     * <p>
+     * android.util.JsonReader would let us skip building the JSONObject tree, but it needs
+     * API 11. The response is a few dozen entries, so we parse it with org.json like the daily
+     * forecast and make sure we only ever look at each entry once.
+     *
+     * @param forecastJsonStr JSON response from the hourly endpoint
+     * @param dailyExtremes   Filled with {min, max, number of steps} per normalized local date
+     *
+     * @return The rows for the hourly table, without their location, or null if the server
+     * returned an error
+     *
+     * @throws JSONException If JSON data cannot be properly parsed
+     */
+    public static ContentValues[] getHourlyContentValuesFromJson(String forecastJsonStr,
+                                                                 Map<Long, double[]> dailyExtremes)
+            throws JSONException {
+
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+
+        /* The hourly endpoint sends "cod" as a string, optInt copes with both */
+        if (forecastJson.has(OWM_MESSAGE_CODE)
+                && forecastJson.optInt(OWM_MESSAGE_CODE) != HttpURLConnection.HTTP_OK) {
+            return null;
+        }
+
+        JSONArray jsonHourlyArray = forecastJson.getJSONArray(OWM_LIST);
+        ContentValues[] hourlyContentValues = new ContentValues[jsonHourlyArray.length()];
+        TimeZone timeZone = TimeZone.getDefault();
+
+        for (int i = 0; i < jsonHourlyArray.length(); i++) {
+            JSONObject step = jsonHourlyArray.getJSONObject(i);
+            JSONObject main = step.getJSONObject(OWM_MAIN);
+            JSONObject wind = step.getJSONObject(OWM_WIND);
+
+            long timeMillis = step.getLong(OWM_DATE_TIME) * 1000;
+            int weatherId = step.getJSONArray(OWM_WEATHER).getJSONObject(0).getInt(OWM_WEATHER_ID);
+
+            ContentValues hourlyValues = new ContentValues();
+            hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_TIME, timeMillis);
+            hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID, weatherId);
+            hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_TEMP,
+                    WeatherContract.HourlyEntry.toTenths(main.getDouble(OWM_HOURLY_TEMPERATURE)));
+            hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_HUMIDITY,
+                    main.getInt(OWM_HUMIDITY));
+            hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_PRESSURE,
+                    (int) Math.round(main.getDouble(OWM_PRESSURE)));
+            hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED,
+                    WeatherContract.HourlyEntry.toTenths(wind.getDouble(OWM_WINDSPEED)));
+            hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_DEGREES,
+                    (int) Math.round(wind.optDouble(OWM_WIND_DIRECTION, 0)));
+            hourlyContentValues[i] = hourlyValues;
+
+            /* The same local day the daily forecast would file this time under */
+            long date = SunshineDateUtils.normalizeDate(timeMillis + timeZone.getOffset(timeMillis));
+            double low = main.optDouble(OWM_HOURLY_MIN, main.getDouble(OWM_HOURLY_TEMPERATURE));
+            double high = main.optDouble(OWM_HOURLY_MAX, main.getDouble(OWM_HOURLY_TEMPERATURE));
+
+            double[] extremes = dailyExtremes.get(date);
+            if (extremes == null) {
+                dailyExtremes.put(date, new double[]{low, high, 1});
+            } else {
+                extremes[EXTREME_MIN] = Math.min(extremes[EXTREME_MIN], low);
+                extremes[EXTREME_MAX] = Math.max(extremes[EXTREME_MAX], high);
+                extremes[EXTREME_STEPS]++;
+            }
+        }
+
+        return hourlyContentValues;
+    }
+
+    /**
+     * Turns the start of a daily forecast response, cut off before its end, into a complete
+     * response holding the days that arrived whole. The server sends the city before the list
+     * of days, so the location is always there when at least one day is.
+     *
+     * @param partialJson The start of a response from the daily forecast
+     * @return A response {@link #getWeatherContentValuesFromJson} can parse, or null if not a
+     * single day arrived whole
+     */
+    public static String completeDaysOf(String partialJson) {
+        if (partialJson == null) return null;
+
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        int stringStart = -1;
+        String lastTopLevelString = null;
+
+        /* Depth of the objects of the days once we are in the list, and where the last one ended */
+        int dayDepth = -1;
+        int lastDayEnd = -1;
+
+        for (int i = 0; i < partialJson.length(); i++) {
+            char c = partialJson.charAt(i);
+
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"') {
+                    inString = false;
+                    if (depth == 1) lastTopLevelString = partialJson.substring(stringStart, i);
+                }
+                continue;
+            }
+
+            switch (c) {
+                case '"':
+                    inString = true;
+                    stringStart = i + 1;
+                    break;
+                case '[':
+                    depth++;
+                    if (depth == 2 && OWM_LIST.equals(lastTopLevelString)) dayDepth = 3;
+                    break;
+                case '{':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    if (dayDepth == -1) break;
+                    if (c == '}' && depth == dayDepth - 1) lastDayEnd = i + 1;
+                    /* The whole list arrived, only what follows it is missing */
+                    if (c == ']' && depth == 1) return partialJson.substring(0, i + 1) + "}";
+                    break;
+            }
+        }
+
+        if (lastDayEnd == -1) return null;
+        return partialJson.substring(0, lastDayEnd) + "]}";
+    }
+
+    /**
+     * Replaces the low and high of the daily rows with the ones collected from the hourly
+     * forecast. Only days the hourly forecast covers completely are touched: for today and the
+     * last day it only has some of the hours, which would give a narrower range than the truth.
+     *
+     * @param weatherValues The rows parsed by {@link #getWeatherContentValuesFromJson}
+     * @param dailyExtremes The extremes collected by {@link #getHourlyContentValuesFromJson}
+     */
+    public static void applyDailyExtremes(ContentValues[] weatherValues,
+                                          Map<Long, double[]> dailyExtremes) {
+        for (ContentValues weatherValue : weatherValues) {
+            double[] extremes = dailyExtremes.get(
+                    weatherValue.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+            if (extremes == null || extremes[EXTREME_STEPS] < HOURLY_STEPS_PER_DAY) continue;
+
+            weatherValue.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, extremes[EXTREME_MIN]);
+            weatherValue.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, extremes[EXTREME_MAX]);
+        }
+    }
+}
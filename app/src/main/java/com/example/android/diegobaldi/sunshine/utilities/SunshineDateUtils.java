@@ -97,6 +97,21 @@ public final class SunshineDateUtils {
         return normalizedUtcMidnightMillis;
     }
 
+    /**
+     * Returns the normalized date of the local day a moment falls on, the same way
+     * {@link #getNormalizedUtcDateForToday()} does for the current moment. This is the date the
+     * rows of that day are stored under, which is not the UTC day of the moment whenever the
+     * local day starts earlier or later than the UTC day does.
+     *
+     * @param utcMillis The moment, as a UNIX time
+     * @param timeZone  The time zone the day is local to
+     * @return The normalized UTC date of the local day of the moment
+     */
+    public static long getNormalizedUtcDateForDay(long utcMillis, TimeZone timeZone) {
+        long localMillis = utcMillis + timeZone.getOffset(utcMillis);
+        return TimeUnit.DAYS.toMillis(TimeUnit.MILLISECONDS.toDays(localMillis));
+    }
+
     /**
      * This method returns the number of days since the epoch (January 01, 1970, 12:00 Midnight UTC)
      * in UTC time from the current date.
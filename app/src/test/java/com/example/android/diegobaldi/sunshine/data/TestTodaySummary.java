@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+
+import com.example.android.diegobaldi.BuildConfig;
+import com.example.android.diegobaldi.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+/**
+ * Tests which day {@link TodaySummary} serves as today. Robolectric provides the files directory
+ * the snapshot is persisted to.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, packageName = "com.example.android.diegobaldi")
+public class TestTodaySummary {
+
+    /* Ten hours ahead of UTC, so the local day starts while the UTC day is still the last one */
+    private static final TimeZone TIME_ZONE = TimeZone.getTimeZone("GMT+10:00");
+
+    /* Normalized date of some day, and local midnight of that day as a UNIX time */
+    private static final long DAY = TimeUnit.DAYS.toMillis(17000);
+    private static final long MIDNIGHT = DAY - TimeUnit.HOURS.toMillis(10);
+
+    private static ContentValues row(long locationId, long date, int weatherId) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID, locationId);
+        values.put(WeatherContract.WeatherEntry.COLUMN_DATE, date);
+        values.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        values.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 20.0);
+        values.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, 10.0);
+        return values;
+    }
+
+    /**
+     * Half an hour after local midnight the UTC day hasn't changed yet, but today is the new
+     * local day: the summary written the evening before must serve tomorrow's row, not
+     * yesterday's.
+     */
+    @Test
+    public void testTodayCrossesLocalMidnight() {
+        Context context = RuntimeEnvironment.application;
+        long locationId = 1;
+        long tomorrow = DAY + SunshineDateUtils.DAY_IN_MILLIS;
+
+        long evening = MIDNIGHT + TimeUnit.HOURS.toMillis(23) + TimeUnit.MINUTES.toMillis(30);
+        long night = MIDNIGHT + TimeUnit.HOURS.toMillis(24) + TimeUnit.MINUTES.toMillis(30);
+        assertEquals(DAY, SunshineDateUtils.getNormalizedUtcDateForDay(evening, TIME_ZONE));
+        assertEquals(tomorrow, SunshineDateUtils.getNormalizedUtcDateForDay(night, TIME_ZONE));
+        assertEquals(DAY, SunshineDateUtils.normalizeDate(night));
+
+        TodaySummary.onWeatherWritten(context, new ContentValues[]{
+                row(locationId, DAY, 800), row(locationId, tomorrow, 500)},
+                SunshineDateUtils.getNormalizedUtcDateForDay(evening, TIME_ZONE));
+
+        assertEquals(800, TodaySummary.peek(context, locationId,
+                SunshineDateUtils.getNormalizedUtcDateForDay(evening, TIME_ZONE)).weatherId);
+        assertEquals(500, TodaySummary.peek(context, locationId,
+                SunshineDateUtils.getNormalizedUtcDateForDay(night, TIME_ZONE)).weatherId);
+    }
+
+    /**
+     * Only today and tomorrow are kept, and yesterday is dropped by the next write.
+     */
+    @Test
+    public void testOnlyTodayAndTomorrowAreKept() {
+        Context context = RuntimeEnvironment.application;
+        long locationId = 2;
+
+        ContentValues[] week = new ContentValues[7];
+        for (int i = 0; i < week.length; i++) {
+            week[i] = row(locationId, DAY + i * SunshineDateUtils.DAY_IN_MILLIS, 800 + i);
+        }
+        TodaySummary.onWeatherWritten(context, week, DAY);
+
+        assertEquals(800, TodaySummary.peek(context, locationId, DAY).weatherId);
+        assertEquals(801, TodaySummary.peek(context, locationId,
+                DAY + SunshineDateUtils.DAY_IN_MILLIS).weatherId);
+        assertNull(TodaySummary.peek(context, locationId,
+                DAY + 2 * SunshineDateUtils.DAY_IN_MILLIS));
+
+        long nextDay = DAY + SunshineDateUtils.DAY_IN_MILLIS;
+        TodaySummary.onWeatherWritten(context, new ContentValues[0], nextDay);
+        assertNull(TodaySummary.peek(context, locationId, DAY));
+        assertEquals(801, TodaySummary.peek(context, locationId, nextDay).weatherId);
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.diegobaldi.BuildConfig;
+import com.example.android.diegobaldi.sunshine.utilities.FakeForecastGenerator;
+import com.example.android.diegobaldi.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Times the storage paths of {@link WeatherProvider} on the JVM, against the real SQLite that
+ * Robolectric bundles, so they can be compared from one change to the next without a device.
+ * We time the following at 14 rows (a normal sync) and 1k rows, or at the sizes asked for:
+ * <p>
+ * 1) bulkInsert of a fresh forecast, and of the same forecast again (nothing changes)
+ * 2) A two week date range query on a location's forecast
+ * 3) The today lookup, both cold and served from TodaySummary
+ * 4) Deleting a location's forecast
+ * 5) Migrating a version 3 database to the current schema
+ * <p>
+ * Every measurement is printed as one line of JSON prefixed with "BENCHMARK ", and all of them
+ * are written as a JSON array to build/reports/benchmarks/WeatherProviderBenchmark.json, or to
+ * the file named by -Dbenchmark.output. The suite is skipped by a plain ./gradlew test, run it
+ * with -Dbenchmark.run=true, or with -Dbenchmark.sizes=14,1000,100000 to pick the sizes.
+ * Absolute numbers on the JVM don't match a phone; compare runs on the same machine.
+ */
+@RunWith(RobolectricTestRunner.class)
+/* The manifest package, where R is generated, differs from the applicationId */
+@Config(constants = BuildConfig.class, sdk = 23, packageName = "com.example.android.diegobaldi")
+public class WeatherProviderBenchmark {
+
+    private static final String DEFAULT_SIZES = "14,1000";
+    private static final String DEFAULT_OUTPUT =
+            "build/reports/benchmarks/WeatherProviderBenchmark.json";
+
+    /* Small operations are repeated so their median means something, 100k rows run once */
+    private static final int MAX_ITERATIONS = 20;
+    private static final int ITERATION_ROW_BUDGET = 100000;
+
+    /* The range query asks for this many days out of the middle of the forecast */
+    private static final int RANGE_DAYS = 14;
+
+    private static final long LOCATION_ID = 1;
+
+    private static final long SEED = 2016;
+
+    private static final List<String> sResults = new ArrayList<>();
+
+    private ContentResolver mResolver;
+    private Uri mWeatherUri;
+
+    @Before
+    public void setUp() {
+        /* Timing hundreds of thousands of rows has no place in every test run */
+        assumeTrue(Boolean.getBoolean("benchmark.run")
+                || System.getProperty("benchmark.sizes") != null);
+
+        Robolectric.setupContentProvider(WeatherProvider.class, WeatherContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mWeatherUri = WeatherContract.LocationEntry.buildWeatherUri(LOCATION_ID);
+    }
+
+    @Test
+    public void benchmarkBulkInsert() {
+        for (int rows : sizes()) {
+            ContentValues[] forecast = createForecast(rows);
+            long[] fresh = new long[iterationsFor(rows)];
+            long[] unchanged = new long[fresh.length];
+
+            for (int i = 0; i < fresh.length; i++) {
+                mResolver.delete(mWeatherUri, null, null);
+
+                long start = System.nanoTime();
+                int inserted = mResolver.bulkInsert(mWeatherUri, forecast);
+                fresh[i] = System.nanoTime() - start;
+                assertEquals(rows, inserted);
+
+                start = System.nanoTime();
+                mResolver.bulkInsert(mWeatherUri, forecast);
+                unchanged[i] = System.nanoTime() - start;
+            }
+
+            record("bulkInsert", rows, fresh);
+            record("bulkInsertUnchanged", rows, unchanged);
+        }
+    }
+
+    @Test
+    public void benchmarkRangeQuery() {
+        for (int rows : sizes()) {
+            replaceForecast(rows);
+
+            long from = today() + (rows / 2) * SunshineDateUtils.DAY_IN_MILLIS;
+            long to = from + RANGE_DAYS * SunshineDateUtils.DAY_IN_MILLIS;
+            String selection = WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? AND "
+                    + WeatherContract.WeatherEntry.COLUMN_DATE + " < ? ";
+            String[] selectionArgs = {Long.toString(from), Long.toString(to)};
+
+            long[] samples = new long[MAX_ITERATIONS];
+            for (int i = 0; i < samples.length; i++) {
+                long start = System.nanoTime();
+                Cursor cursor = mResolver.query(mWeatherUri, null, selection, selectionArgs,
+                        WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+                int count = drain(cursor);
+                samples[i] = System.nanoTime() - start;
+                assertEquals(Math.min(RANGE_DAYS, rows - rows / 2), count);
+            }
+
+            record("rangeQuery", rows, samples);
+        }
+    }
+
+    @Test
+    public void benchmarkTodayLookup() {
+        Uri todayUri = WeatherContract.LocationEntry.buildTodayUri(LOCATION_ID);
+
+        for (int rows : sizes()) {
+            replaceForecast(rows);
+
+            long[] cold = new long[MAX_ITERATIONS];
+            long[] warm = new long[MAX_ITERATIONS];
+            for (int i = 0; i < MAX_ITERATIONS; i++) {
+                /* Forgetting the summary makes the provider go back to the table */
+                TodaySummary.invalidate(RuntimeEnvironment.application, LOCATION_ID);
+
+                long start = System.nanoTime();
+                assertEquals(1, drain(mResolver.query(todayUri, null, null, null, null)));
+                cold[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                assertEquals(1, drain(mResolver.query(todayUri, null, null, null, null)));
+                warm[i] = System.nanoTime() - start;
+            }
+
+            record("todayLookupCold", rows, cold);
+            record("todayLookupWarm", rows, warm);
+        }
+    }
+
+    @Test
+    public void benchmarkDelete() {
+        for (int rows : sizes()) {
+            long[] samples = new long[iterationsFor(rows)];
+            for (int i = 0; i < samples.length; i++) {
+                replaceForecast(rows);
+
+                long start = System.nanoTime();
+                int deleted = mResolver.delete(mWeatherUri, null, null);
+                samples[i] = System.nanoTime() - start;
+                assertEquals(rows, deleted);
+            }
+
+            record("delete", rows, samples);
+        }
+    }
+
+    @Test
+    public void benchmarkMigration() {
+        WeatherDbMigration[] migrations = WeatherDbMigrations.all(RuntimeEnvironment.application);
+
+        for (int rows : sizes()) {
+            long[] samples = new long[iterationsFor(rows)];
+            for (int i = 0; i < samples.length; i++) {
+                SQLiteDatabase database = SQLiteDatabase.create(null);
+                try {
+                    createVersion3(database, rows);
+
+                    long start = System.nanoTime();
+                    WeatherDbMigrator.migrate(database, migrations, 3, 6);
+                    samples[i] = System.nanoTime() - start;
+                } finally {
+                    database.close();
+                }
+            }
+
+            record("migration", rows, samples);
+        }
+    }
+
+    /* Writes every measurement of the run, once all benchmarks are done */
+    @AfterClass
+    public static void writeResults() throws IOException {
+        if (sResults.isEmpty()) return;
+
+        File output = new File(System.getProperty("benchmark.output", DEFAULT_OUTPUT));
+        File directory = output.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        Writer writer = new FileWriter(output);
+        try {
+            writer.write("[\n");
+            for (int i = 0; i < sResults.size(); i++) {
+                writer.write("  " + sResults.get(i) + (i < sResults.size() - 1 ? ",\n" : "\n"));
+            }
+            writer.write("]\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /* Remembers and prints one measurement as a JSON object */
+    private static void record(String benchmark, int rows, long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+
+        long total = 0;
+        for (long sample : sorted) {
+            total += sample;
+        }
+
+        String result = "{\"benchmark\":\"" + benchmark + "\""
+                + ",\"rows\":" + rows
+                + ",\"iterations\":" + sorted.length
+                + ",\"min_ns\":" + sorted[0]
+                + ",\"median_ns\":" + sorted[sorted.length / 2]
+                + ",\"mean_ns\":" + total / sorted.length
+                + ",\"max_ns\":" + sorted[sorted.length - 1]
+                + "}";
+        sResults.add(result);
+        System.out.println("BENCHMARK " + result);
+    }
+
+    private static int[] sizes() {
+        String[] parts = System.getProperty("benchmark.sizes", DEFAULT_SIZES).split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i].trim());
+        }
+        return sizes;
+    }
+
+    private static int iterationsFor(int rows) {
+        return Math.max(1, Math.min(MAX_ITERATIONS, ITERATION_ROW_BUDGET / rows));
+    }
+
+    private static long today() {
+        return SunshineDateUtils.getNormalizedUtcDateForToday();
+    }
+
+    /* A forecast starting today, one row a day, with values that differ from day to day */
+    /* Seeded, so every run stores the same rows and the timings can be compared */
+    private static ContentValues[] createForecast(int rows) {
+        return new FakeForecastGenerator(SEED, 45, 9).dailyForecast(today(), rows);
+    }
+
+    private void replaceForecast(int rows) {
+        mResolver.delete(mWeatherUri, null, null);
+        mResolver.bulkInsert(mWeatherUri, createForecast(rows));
+    }
+
+    /* Reads every row, as a screen would, so lazy cursor work is part of the measurement */
+    private static int drain(Cursor cursor) {
+        int count = 0;
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return count;
+    }
+
+    /* The schema WeatherDbMigrations starts from, filled with a forecast in one transaction */
+    private static void createVersion3(SQLiteDatabase database, int rows) {
+        database.execSQL("CREATE TABLE weather ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "date INTEGER NOT NULL, "
+                + "weather_id INTEGER NOT NULL,"
+                + "min REAL NOT NULL, "
+                + "max REAL NOT NULL, "
+                + "humidity REAL NOT NULL, "
+                + "pressure REAL NOT NULL, "
+                + "wind REAL NOT NULL, "
+                + "degrees REAL NOT NULL, "
+                + " UNIQUE (date) ON CONFLICT REPLACE);");
+
+        database.beginTransaction();
+        try {
+            for (ContentValues values : createForecast(rows)) {
+                database.insertOrThrow("weather", null, values);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+}
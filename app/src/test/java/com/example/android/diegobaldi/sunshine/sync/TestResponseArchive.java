@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import com.example.android.diegobaldi.BuildConfig;
+import com.example.android.diegobaldi.sunshine.data.WeatherRepository;
+import com.example.android.diegobaldi.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests which responses {@link ResponseArchive} evicts, and how it moves the days of an old
+ * response when it rebuilds the forecast from it. Robolectric provides the files directory and
+ * the database; the archive is given the time each response is received instead of waiting.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, packageName = "com.example.android.diegobaldi")
+public class TestResponseArchive {
+
+    private static final String LOCATION = "Mountain View, CA";
+
+    /* When the first response of each test is received */
+    private static final long RECEIVED = 1000000000000L;
+
+    /* A week of weather, with weather ids 800 to 806 so each day can be told apart */
+    private static final int DAYS = 7;
+
+    private ResponseArchive mArchive;
+
+    @Before
+    public void setUp() {
+        File directory = new File(RuntimeEnvironment.application.getFilesDir(), "response_archive");
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        mArchive = new ResponseArchive(RuntimeEnvironment.application);
+    }
+
+    private void add(String location, String json, long received) {
+        SyncRun run = new SyncRun(RuntimeEnvironment.application, SyncRun.TRIGGER_JOB);
+        run.location = location;
+        run.dailyJson = json;
+        mArchive.add(run, received);
+    }
+
+    /* When the archived responses were received, newest first, as the dump lists them */
+    private List<Long> archived() {
+        StringWriter dump = new StringWriter();
+        mArchive.dump(new PrintWriter(dump));
+
+        List<Long> received = new ArrayList<>();
+        for (String line : dump.toString().split("\n")) {
+            if (line.startsWith("  ") && line.contains("\t")) {
+                received.add(Long.parseLong(line.substring(2, line.indexOf('\t'))));
+            }
+        }
+        return received;
+    }
+
+    /* A response that doesn't compress, about half as many bytes gzipped as it has chars */
+    private static String incompressible(int chars, long seed) {
+        Random random = new Random(seed);
+        StringBuilder json = new StringBuilder(chars);
+        for (int i = 0; i < chars; i++) {
+            json.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        return json.toString();
+    }
+
+    private static String forecastJson() {
+        StringBuilder json = new StringBuilder("{\"city\":{\"name\":\"Mountain View\","
+                + "\"coord\":{\"lat\":37.4,\"lon\":-122.1}},\"cod\":\"200\",\"list\":[");
+        for (int i = 0; i < DAYS; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"pressure\":1013,\"humidity\":60,\"speed\":2.5,\"deg\":180,")
+                    .append("\"temp\":{\"min\":10,\"max\":20},")
+                    .append("\"weather\":[{\"id\":").append(800 + i).append("}]}");
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Past ten responses, the least recently used go first.
+     */
+    @Test
+    public void testCountEvictsLeastRecentlyUsed() {
+        for (int i = 0; i < 12; i++) {
+            add(LOCATION, "{}", RECEIVED + i);
+        }
+
+        List<Long> expected = new ArrayList<>();
+        for (int i = 11; i >= 2; i--) {
+            expected.add(RECEIVED + i);
+        }
+        assertEquals(expected, archived());
+    }
+
+    /**
+     * Past 256 KB, the least recently used responses are deleted until the rest fits, and no
+     * further. The response used last is kept even when it alone doesn't fit.
+     */
+    @Test
+    public void testSizeEvictsLeastRecentlyUsed() {
+        add(LOCATION, incompressible(300 * 1024, 1), RECEIVED);
+        add(LOCATION, "{}", RECEIVED + 1);
+        add(LOCATION, "{}", RECEIVED + 2);
+        assertEquals(Arrays.asList(RECEIVED + 2, RECEIVED + 1, RECEIVED), archived());
+
+        add(LOCATION, incompressible(300 * 1024, 2), RECEIVED + 3);
+        assertEquals(Arrays.asList(RECEIVED + 3, RECEIVED + 2, RECEIVED + 1), archived());
+
+        add(LOCATION, incompressible(600 * 1024, 3), RECEIVED + 4);
+        assertEquals(Arrays.asList(RECEIVED + 4), archived());
+    }
+
+    /**
+     * A response received two days ago is rebuilt with its days moved back two days, so the
+     * two that have passed are dropped and today is its third day. Being rebuilt counts as a
+     * use: the response outlives those archived after it, but not used since.
+     */
+    @Test
+    public void testRebuildMovesDaysBackAndCountsAsUse() {
+        long twoDaysAgo = System.currentTimeMillis() - 2 * SunshineDateUtils.DAY_IN_MILLIS;
+        add(LOCATION, forecastJson(), twoDaysAgo);
+        /* Of no use to the rebuild, which leaves them untouched */
+        for (int i = 1; i < 10; i++) {
+            add("Unparseable", "{}", twoDaysAgo + i);
+        }
+
+        assertEquals(DAYS - 2, mArchive.rebuild());
+
+        WeatherRepository repository =
+                WeatherRepository.getInstance(RuntimeEnvironment.application);
+        long locationId = repository.saveLocation(LOCATION);
+        assertEquals(802, repository.getToday(locationId).weatherId);
+
+        add("Unparseable", "{}", twoDaysAgo + 10);
+        List<Long> archived = archived();
+        assertEquals(10, archived.size());
+        assertTrue("The rebuilt response was evicted", archived.contains(twoDaysAgo));
+        assertFalse(archived.contains(twoDaysAgo + 1));
+    }
+}
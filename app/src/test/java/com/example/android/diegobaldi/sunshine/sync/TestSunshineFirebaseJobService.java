@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import android.content.ContentValues;
+
+import com.example.android.diegobaldi.BuildConfig;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher;
+import com.firebase.jobdispatcher.GooglePlayDriver;
+import com.firebase.jobdispatcher.JobParameters;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that every job {@link SunshineFirebaseJobService} starts ends exactly once, whether its
+ * sync finishes first or the dispatcher stops it first. The syncs run on an engine of the
+ * test's own, whose single stage stands in for the whole sync.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, packageName = "com.example.android.diegobaldi")
+public class TestSunshineFirebaseJobService {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    /* The service, with its engine replaced and its calls to jobFinished counted */
+    public static class CountingJobService extends SunshineFirebaseJobService {
+
+        SyncEngine mEngine;
+        final AtomicInteger mFinished = new AtomicInteger();
+
+        @Override
+        SyncEngine getEngine() {
+            return mEngine;
+        }
+
+        @Override
+        void finishJob(JobParameters jobParameters) {
+            mFinished.incrementAndGet();
+        }
+    }
+
+    /* Counted down when the sync starts, then holds it until opened or interrupted */
+    private final CountDownLatch mStarted = new CountDownLatch(1);
+    private final CountDownLatch mGate = new CountDownLatch(1);
+
+    private CountingJobService mService;
+    private JobParameters mJob;
+
+    @Before
+    public void setUp() {
+        SyncStage sync = new SyncStage("sync", 100, false) {
+            @Override
+            void run(SyncRun run) {
+                mStarted.countDown();
+                try {
+                    mGate.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                run.weatherValues = new ContentValues[0];
+                run.snapshot = ForecastSnapshot.of(1, run.weatherValues, 0);
+                run.commit();
+            }
+        };
+
+        mService = Robolectric.buildService(CountingJobService.class).create().get();
+        mService.mEngine = new SyncEngine(RuntimeEnvironment.application, new SyncStage[]{sync});
+        mJob = new FirebaseJobDispatcher(new GooglePlayDriver(RuntimeEnvironment.application))
+                .newJobBuilder()
+                .setService(SunshineFirebaseJobService.class)
+                .setTag("sunshine-sync")
+                .build();
+    }
+
+    /* Returns once every sync submitted so far is over, listeners included */
+    private void awaitEngine() throws InterruptedException {
+        final CountDownLatch idle = new CountDownLatch(1);
+        mService.mEngine.post(new Runnable() {
+            @Override
+            public void run() {
+                idle.countDown();
+            }
+        });
+        assertTrue("The engine never got idle", idle.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A job whose sync finishes is finished once, and stopping it afterwards neither finishes
+     * it again nor asks for a retry.
+     */
+    @Test
+    public void testFinishedJobEndsOnce() throws Exception {
+        assertTrue(mService.onStartJob(mJob));
+        mGate.countDown();
+        awaitEngine();
+        assertEquals(1, mService.mFinished.get());
+
+        assertFalse("A finished job asked for a retry", mService.onStopJob(mJob));
+        assertEquals(1, mService.mFinished.get());
+    }
+
+    /**
+     * A job the dispatcher stops has its sync cancelled, and the end of that sync doesn't
+     * finish the job a second time. With no forecast stored yet, the job asks for a retry.
+     */
+    @Test
+    public void testStoppedJobEndsOnce() throws Exception {
+        assertTrue(mService.onStartJob(mJob));
+        assertTrue("The sync never started", mStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        assertTrue("A job without a forecast should be retried", mService.onStopJob(mJob));
+        awaitEngine();
+        assertEquals(0, mService.mFinished.get());
+
+        assertFalse("A stopped job was stopped again", mService.onStopJob(mJob));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import android.content.Intent;
+
+import com.example.android.diegobaldi.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLooper;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+
+/**
+ * Tests the debounce of {@link SunshineSyncUtils#requestLocationResync}. Robolectric's main
+ * looper only runs delayed work when the test moves its clock, so the 1.5 seconds are exact.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, packageName = "com.example.android.diegobaldi")
+public class TestSunshineSyncUtils {
+
+    private static final long DELAY_MILLIS = 1500;
+
+    /**
+     * Changing the location again and again, each time sooner than the delay, syncs once, a
+     * full delay after the last change, for the settings.
+     */
+    @Test
+    public void testLocationResyncIsDebounced() {
+        ShadowApplication application = ShadowApplication.getInstance();
+
+        for (int i = 0; i < 3; i++) {
+            SunshineSyncUtils.requestLocationResync(RuntimeEnvironment.application);
+            ShadowLooper.idleMainLooper(DELAY_MILLIS - 500);
+            assertNull("Synced before the location stopped changing",
+                    application.getNextStartedService());
+        }
+
+        ShadowLooper.idleMainLooper(499);
+        assertNull("Synced before the delay was up", application.getNextStartedService());
+
+        ShadowLooper.idleMainLooper(1);
+        Intent sync = application.getNextStartedService();
+        assertNotNull("The location was never synced", sync);
+        assertEquals(SyncRun.TRIGGER_SETTINGS,
+                sync.getIntExtra(SunshineSyncIntentService.EXTRA_TRIGGER, -1));
+
+        ShadowLooper.idleMainLooper(DELAY_MILLIS);
+        assertNull("The location was synced twice", application.getNextStartedService());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import com.example.android.diegobaldi.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests when {@link SyncCheckpoint} gives a sync the forecast an earlier one downloaded, moving
+ * the clock instead of waiting. Robolectric provides the cache directory it is kept in.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, packageName = "com.example.android.diegobaldi")
+public class TestSyncCheckpoint {
+
+    private static final String LOCATION = "Mountain View, CA";
+    private static final String JSON = "{\"list\":[]}";
+
+    /* When the checkpoint is saved */
+    private static final long SAVED = 1000000000000L;
+
+    private SyncCheckpoint mCheckpoint;
+
+    private static SyncRun run(String location) {
+        SyncRun run = new SyncRun(RuntimeEnvironment.application, SyncRun.TRIGGER_JOB);
+        run.location = location;
+        return run;
+    }
+
+    @Before
+    public void setUp() {
+        mCheckpoint = SyncCheckpoint.getInstance(RuntimeEnvironment.application);
+        mCheckpoint.clear();
+
+        SyncRun downloaded = run(LOCATION);
+        downloaded.payload = SyncPolicy.PAYLOAD_MINIMAL;
+        downloaded.dailyPartial = true;
+        downloaded.dailyJson = JSON;
+        mCheckpoint.save(downloaded, SAVED);
+    }
+
+    /**
+     * Up to and including its maximum age, the checkpoint gives the next sync of the same
+     * location what was downloaded, as it was downloaded.
+     */
+    @Test
+    public void testRestoredUpToTheMaximumAge() {
+        SyncRun run = run(LOCATION);
+        assertTrue(mCheckpoint.restore(run, SAVED + SyncCheckpoint.MAX_AGE_MILLIS));
+
+        assertEquals(JSON, run.dailyJson);
+        assertEquals(SyncPolicy.PAYLOAD_MINIMAL, run.payload);
+        assertTrue(run.dailyPartial);
+    }
+
+    /**
+     * Past its maximum age the checkpoint is expired: it isn't used, and it is deleted, so it
+     * isn't used either once the clock is back in range.
+     */
+    @Test
+    public void testExpiredCheckpointIsDeleted() {
+        SyncRun run = run(LOCATION);
+        assertFalse(mCheckpoint.restore(run, SAVED + SyncCheckpoint.MAX_AGE_MILLIS + 1));
+        assertNull(run.dailyJson);
+
+        assertFalse("An expired checkpoint was kept", mCheckpoint.restore(run(LOCATION), SAVED));
+    }
+
+    /**
+     * A checkpoint from the future, because the clock was set back, can't be trusted.
+     */
+    @Test
+    public void testClockSetBackExpiresTheCheckpoint() {
+        assertFalse(mCheckpoint.restore(run(LOCATION), SAVED - 1));
+    }
+
+    /**
+     * The forecast of another location is of no use, however fresh.
+     */
+    @Test
+    public void testOtherLocationIsNotRestored() {
+        assertFalse(mCheckpoint.restore(run("Cupertino, CA"), SAVED));
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import android.content.ContentValues;
+
+import com.example.android.diegobaldi.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests how {@link SyncEngine} orders, cancels and journals runs, with stages of our own in
+ * place of the network and the database. Robolectric provides the preferences and the files
+ * directory the engine records each run in.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, packageName = "com.example.android.diegobaldi")
+public class TestSyncEngine {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    /* The triggers of the runs, in the order their first stage started */
+    private final List<Integer> mStarted = Collections.synchronizedList(new ArrayList<Integer>());
+    private final List<String> mStages = Collections.synchronizedList(new ArrayList<String>());
+
+    /* Counted down when the first run reaches the gate, which holds it until opened */
+    private final CountDownLatch mAtGate = new CountDownLatch(1);
+    private final CountDownLatch mGate = new CountDownLatch(1);
+
+    /* Records which run started, and holds the first one at the gate */
+    private final SyncStage mStart = new SyncStage("start", 40, false) {
+        @Override
+        void run(SyncRun run) {
+            mStarted.add(run.trigger);
+            waitAtGate();
+        }
+    };
+
+    /* Stands in for storing the forecast, with what SyncScheduler reads afterwards */
+    private final SyncStage mStore = new SyncStage("store", 40, false) {
+        @Override
+        void run(SyncRun run) {
+            run.weatherValues = new ContentValues[0];
+            run.snapshot = ForecastSnapshot.of(1, run.weatherValues, 0);
+            run.commit();
+            mStages.add(name);
+        }
+    };
+
+    private final SyncStage mAfterStore = new SyncStage("after", 20, false) {
+        @Override
+        void run(SyncRun run) {
+            mStages.add(name);
+        }
+    };
+
+    /* Holds the run until the gate opens, or until it is interrupted by a cancel */
+    private void waitAtGate() {
+        if (mAtGate.getCount() == 0) return;
+        mAtGate.countDown();
+        try {
+            mGate.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private SyncEngine engine(SyncStage... stages) {
+        return new SyncEngine(RuntimeEnvironment.application, stages);
+    }
+
+    private void awaitGate() throws InterruptedException {
+        assertTrue("The first run never started",
+                mAtGate.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * While one run holds the engine, the waiting ones run the user's first, then those of the
+     * app and the watch face, then the scheduled ones, each group in the order submitted.
+     */
+    @Test
+    public void testQueueOrder() throws Exception {
+        SyncEngine engine = engine(mStart, mStore);
+
+        SyncEngine.Handle first = engine.submit(SyncRun.TRIGGER_INTENT, null);
+        awaitGate();
+        SyncEngine.Handle job = engine.submit(SyncRun.TRIGGER_JOB, null);
+        SyncEngine.Handle prefetch = engine.submit(SyncRun.TRIGGER_PREFETCH, null);
+        SyncEngine.Handle wear = engine.submit(SyncRun.TRIGGER_WEAR, null);
+        SyncEngine.Handle startup = engine.submit(SyncRun.TRIGGER_STARTUP, null);
+        SyncEngine.Handle user = engine.submit(SyncRun.TRIGGER_USER, null);
+        mGate.countDown();
+
+        for (SyncEngine.Handle handle : Arrays.asList(first, job, prefetch, wear, startup, user)) {
+            assertEquals(SyncRun.OUTCOME_SUCCESS, handle.await().getOutcome());
+        }
+        assertEquals(Arrays.asList(SyncRun.TRIGGER_INTENT, SyncRun.TRIGGER_USER,
+                SyncRun.TRIGGER_WEAR, SyncRun.TRIGGER_STARTUP, SyncRun.TRIGGER_JOB,
+                SyncRun.TRIGGER_PREFETCH), mStarted);
+    }
+
+    /**
+     * A sync the user asked for cancels a scheduled one that is running, and overtakes the
+     * scheduled ones still waiting.
+     */
+    @Test
+    public void testUserRunCancelsAndOvertakesBackgroundRuns() throws Exception {
+        SyncEngine engine = engine(mStart, mStore);
+
+        SyncEngine.Handle job = engine.submit(SyncRun.TRIGGER_JOB, null);
+        awaitGate();
+        SyncEngine.Handle prefetch = engine.submit(SyncRun.TRIGGER_PREFETCH, null);
+        SyncEngine.Handle user = engine.submit(SyncRun.TRIGGER_USER, null);
+
+        assertEquals(SyncRun.OUTCOME_CANCELLED, job.await().getOutcome());
+        assertEquals(SyncRun.OUTCOME_SUCCESS, user.await().getOutcome());
+        assertEquals(SyncRun.OUTCOME_SUCCESS, prefetch.await().getOutcome());
+        assertEquals(Arrays.asList(SyncRun.TRIGGER_JOB, SyncRun.TRIGGER_USER,
+                SyncRun.TRIGGER_PREFETCH), mStarted);
+    }
+
+    /**
+     * Work posted to the engine waits for the running sync, but not for a scheduled one that
+     * was queued before it.
+     */
+    @Test
+    public void testPostRunsAheadOfWaitingBackgroundRuns() throws Exception {
+        SyncEngine engine = engine(mStart, mStore);
+
+        SyncEngine.Handle first = engine.submit(SyncRun.TRIGGER_INTENT, null);
+        awaitGate();
+        SyncEngine.Handle job = engine.submit(SyncRun.TRIGGER_JOB, null);
+        engine.post(new Runnable() {
+            @Override
+            public void run() {
+                mStages.add("post");
+            }
+        });
+        mGate.countDown();
+
+        first.await();
+        job.await();
+        assertEquals(Arrays.asList("store", "post", "store"), mStages);
+    }
+
+    /**
+     * A run cancelled before it stores the forecast ends as cancelled without storing it.
+     */
+    @Test
+    public void testCancelBeforeCommit() throws Exception {
+        SyncEngine engine = engine(mStart, mStore, mAfterStore);
+
+        SyncEngine.Handle handle = engine.submit(SyncRun.TRIGGER_INTENT, null);
+        awaitGate();
+        handle.cancel();
+
+        assertEquals(SyncRun.OUTCOME_CANCELLED, handle.await().getOutcome());
+        assertTrue("A cancelled run stored its forecast", mStages.isEmpty());
+    }
+
+    /**
+     * Once the forecast is stored, a cancel is too late: the run goes on to the end and is the
+     * success it is.
+     */
+    @Test
+    public void testCancelAfterCommit() throws Exception {
+        SyncStage heldAfterStore = new SyncStage("held", 20, false) {
+            @Override
+            void run(SyncRun run) {
+                waitAtGate();
+                assertFalse("A stored run was cancelled", run.isCancelled());
+            }
+        };
+        SyncEngine engine = engine(mStore, heldAfterStore, mAfterStore);
+
+        SyncEngine.Handle handle = engine.submit(SyncRun.TRIGGER_INTENT, null);
+        awaitGate();
+        handle.cancel();
+        mGate.countDown();
+
+        assertEquals(SyncRun.OUTCOME_SUCCESS, handle.await().getOutcome());
+        assertEquals(Arrays.asList("store", "after"), mStages);
+    }
+
+    /**
+     * A stage that crashes fails its run, which is still journaled, and leaves the engine able
+     * to run the next sync.
+     */
+    @Test
+    public void testCrashingRunIsJournaled() throws Exception {
+        SyncStage crash = new SyncStage("crash", 40, false) {
+            @Override
+            void run(SyncRun run) {
+                if (run.trigger == SyncRun.TRIGGER_JOB) {
+                    throw new IllegalStateException("Simulated bug");
+                }
+            }
+        };
+        SyncEngine engine = engine(crash, mStore);
+
+        SyncRun crashed = engine.submit(SyncRun.TRIGGER_JOB, null).await();
+        assertEquals(SyncRun.OUTCOME_FAILED, crashed.getOutcome());
+        assertTrue(crashed.getFailure() instanceof IllegalStateException);
+
+        String line = SyncJournal.getInstance(RuntimeEnvironment.application).read(1).get(0);
+        assertTrue("The crash wasn't journaled: " + line,
+                line.contains("\tfailed\t") && line.contains("error=IllegalStateException"));
+
+        assertEquals(SyncRun.OUTCOME_SUCCESS,
+                engine.submit(SyncRun.TRIGGER_INTENT, null).await().getOutcome());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+
+import com.example.android.diegobaldi.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that {@link SyncFanOut} runs its sinks in parallel and holds each to its own timeout.
+ * Robolectric stands in for the Android calls the stage makes; the waits themselves are real.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, packageName = "com.example.android.diegobaldi")
+public class TestSyncFanOut {
+
+    private static final long SHORT_TIMEOUT_MILLIS = 200;
+    private static final long LONG_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static SyncRun storedRun() {
+        SyncRun run = new SyncRun(RuntimeEnvironment.application, SyncRun.TRIGGER_JOB);
+        run.weatherValues = new ContentValues[0];
+        run.locationId = 1;
+        return run;
+    }
+
+    /**
+     * A sink that is late is interrupted once its own timeout is up, and one that throws is
+     * logged, while the others are delivered and timed, and the stage doesn't wait for the
+     * late one.
+     */
+    @Test
+    public void testLateAndFailingSinksDontHoldUpTheOthers() throws Exception {
+        final CountDownLatch lateInterrupted = new CountDownLatch(1);
+        final CountDownLatch onTimeDelivered = new CountDownLatch(1);
+
+        SyncFanOut fanOut = new SyncFanOut(
+                new SyncSink("late", SHORT_TIMEOUT_MILLIS) {
+                    @Override
+                    void deliver(Context context, ForecastSnapshot snapshot) {
+                        try {
+                            Thread.sleep(LONG_TIMEOUT_MILLIS);
+                        } catch (InterruptedException e) {
+                            lateInterrupted.countDown();
+                        }
+                    }
+                },
+                new SyncSink("failing", LONG_TIMEOUT_MILLIS) {
+                    @Override
+                    void deliver(Context context, ForecastSnapshot snapshot) {
+                        throw new IllegalStateException("Simulated failure");
+                    }
+                },
+                new SyncSink("onTime", LONG_TIMEOUT_MILLIS) {
+                    @Override
+                    void deliver(Context context, ForecastSnapshot snapshot) {
+                        onTimeDelivered.countDown();
+                    }
+                });
+
+        SyncRun run = storedRun();
+        long start = System.nanoTime();
+        fanOut.run(run);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("The stage waited " + elapsedMillis + " ms for the late sink",
+                elapsedMillis < LONG_TIMEOUT_MILLIS / 2);
+        assertTrue("The late sink wasn't interrupted",
+                lateInterrupted.await(LONG_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(0, onTimeDelivered.getCount());
+
+        assertTrue(run.getStageMillis().containsKey("fanout/onTime"));
+        assertFalse(run.getStageMillis().containsKey("fanout/late"));
+        assertFalse(run.getStageMillis().containsKey("fanout/failing"));
+        assertNotNull("The snapshot wasn't kept for the run", run.snapshot);
+    }
+
+    /**
+     * Sinks are delivered at the same time: each of these two only finishes once the other
+     * has started.
+     */
+    @Test
+    public void testSinksRunInParallel() {
+        final CountDownLatch first = new CountDownLatch(1);
+        final CountDownLatch second = new CountDownLatch(1);
+
+        SyncFanOut fanOut = new SyncFanOut(
+                new SyncSink("first", LONG_TIMEOUT_MILLIS) {
+                    @Override
+                    void deliver(Context context, ForecastSnapshot snapshot) throws Exception {
+                        first.countDown();
+                        assertTrue(second.await(LONG_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+                    }
+                },
+                new SyncSink("second", LONG_TIMEOUT_MILLIS) {
+                    @Override
+                    void deliver(Context context, ForecastSnapshot snapshot) throws Exception {
+                        second.countDown();
+                        assertTrue(first.await(LONG_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+                    }
+                });
+
+        SyncRun run = storedRun();
+        fanOut.run(run);
+
+        assertTrue(run.getStageMillis().containsKey("fanout/first"));
+        assertTrue(run.getStageMillis().containsKey("fanout/second"));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Tests {@link SyncScheduler#nextIntervalMillis}, which is plain arithmetic and runs on the JVM
+ * without Robolectric.
+ */
+public class TestSyncScheduler {
+
+    private static final long FRESH = 0;
+    private static final long NEVER_SEEN = TimeUnit.DAYS.toMillis(2);
+    private static final long JUST_SEEN = 0;
+    private static final int NO_FAILURES = 0;
+
+    /**
+     * Weather that doesn't change, on a device nobody looks at and that is expensive to sync,
+     * would wait over 11 hours; it must wait no longer than 8.
+     */
+    @Test
+    public void testIntervalIsClampedToTheMaximum() {
+        assertEquals(TimeUnit.HOURS.toMillis(8),
+                SyncScheduler.nextIntervalMillis(FRESH, 0f, NEVER_SEEN, false, NO_FAILURES));
+    }
+
+    /**
+     * Changing weather, looked at right now on a cheap network, would sync every half hour; it
+     * must wait at least an hour.
+     */
+    @Test
+    public void testIntervalIsClampedToTheMinimum() {
+        assertEquals(TimeUnit.HOURS.toMillis(1),
+                SyncScheduler.nextIntervalMillis(FRESH, 1f, JUST_SEEN, true, NO_FAILURES));
+    }
+
+    /**
+     * Data that turns 10 hours old before the interval is up must be synced when it does.
+     */
+    @Test
+    public void testIntervalStopsAtTheStalenessCap() {
+        assertEquals(TimeUnit.HOURS.toMillis(1), SyncScheduler.nextIntervalMillis(
+                TimeUnit.HOURS.toMillis(9), 0f, NEVER_SEEN, false, NO_FAILURES));
+    }
+
+    /**
+     * Data that is stale, or almost, or that was never synced, is retried after 15 minutes
+     * rather than right away.
+     */
+    @Test
+    public void testStaleDataIsRetriedAfterTheMinimumRetry() {
+        long minRetry = TimeUnit.MINUTES.toMillis(15);
+
+        assertEquals(minRetry, SyncScheduler.nextIntervalMillis(
+                TimeUnit.HOURS.toMillis(10) - TimeUnit.MINUTES.toMillis(5), 0f, NEVER_SEEN,
+                false, NO_FAILURES));
+        assertEquals(minRetry, SyncScheduler.nextIntervalMillis(
+                TimeUnit.HOURS.toMillis(30), 0f, NEVER_SEEN, false, NO_FAILURES));
+        assertEquals(minRetry, SyncScheduler.nextIntervalMillis(
+                Long.MAX_VALUE, 0f, JUST_SEEN, true, NO_FAILURES));
+    }
+
+    /**
+     * Syncs that keep failing leave the data stale; each failure in a row must double the retry
+     * instead of trying every 15 minutes forever, up to the 8 hour maximum.
+     */
+    @Test
+    public void testRepeatedFailuresBackOff() {
+        long stale = TimeUnit.HOURS.toMillis(30);
+        long[] expectedMinutes = {15, 30, 60, 120, 240, 480, 480, 480};
+
+        for (int failures = 0; failures < expectedMinutes.length; failures++) {
+            assertEquals("After " + failures + " failures",
+                    TimeUnit.MINUTES.toMillis(expectedMinutes[failures]),
+                    SyncScheduler.nextIntervalMillis(stale, 1f, JUST_SEEN, true, failures));
+        }
+        assertEquals(TimeUnit.HOURS.toMillis(8), SyncScheduler.nextIntervalMillis(
+                stale, 1f, JUST_SEEN, true, Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.sync;
+
+import org.junit.Test;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Tests {@link UsagePredictor#nextPrefetchMillis(float[], long, TimeZone, boolean)}, which is
+ * plain arithmetic and runs on the JVM without Robolectric.
+ */
+public class TestUsagePredictor {
+
+    /* Two hours ahead of UTC, so local days don't start when UTC days do */
+    private static final TimeZone TIME_ZONE = TimeZone.getTimeZone("GMT+02:00");
+
+    /* Local midnight of some day, as a UNIX time */
+    private static final long MIDNIGHT =
+            TimeUnit.DAYS.toMillis(17000) - TimeUnit.HOURS.toMillis(2);
+
+    private static long at(int days, int hours, int minutes) {
+        return MIDNIGHT + TimeUnit.DAYS.toMillis(days) + TimeUnit.HOURS.toMillis(hours)
+                + TimeUnit.MINUTES.toMillis(minutes);
+    }
+
+    private static float[] habit(int... hours) {
+        float[] weights = new float[24];
+        for (int hour : hours) {
+            weights[hour] = UsagePredictor.MIN_WEIGHT;
+        }
+        return weights;
+    }
+
+    /**
+     * Without an hour used often enough, nothing is prefetched.
+     */
+    @Test
+    public void testNoHabitNoPrefetch() {
+        float[] weights = habit();
+        weights[10] = UsagePredictor.MIN_WEIGHT - 0.1f;
+
+        assertEquals(-1, UsagePredictor.nextPrefetchMillis(weights, at(0, 6, 0), TIME_ZONE, true));
+    }
+
+    /**
+     * The prefetch runs 20 minutes before the habitual local hour starts.
+     */
+    @Test
+    public void testPrefetchLeadsTheHabitualHour() {
+        assertEquals(at(0, 9, 40), UsagePredictor.nextPrefetchMillis(
+                habit(10), at(0, 6, 0), TIME_ZONE, true));
+    }
+
+    /**
+     * Once the lead time has started, today's slot is gone and the next is tomorrow's.
+     */
+    @Test
+    public void testPrefetchRollsOverToTomorrow() {
+        assertEquals(at(1, 9, 40), UsagePredictor.nextPrefetchMillis(
+                habit(10), at(0, 9, 45), TIME_ZONE, true));
+        assertEquals(at(1, 0, 40), UsagePredictor.nextPrefetchMillis(
+                habit(1), at(0, 22, 0), TIME_ZONE, false));
+    }
+
+    /**
+     * With today's budget spent, slots later today are skipped for tomorrow's, and nothing is
+     * prefetched when the only habit is too far off.
+     */
+    @Test
+    public void testSpentBudgetSkipsToday() {
+        assertEquals(at(1, 1, 40), UsagePredictor.nextPrefetchMillis(
+                habit(2, 10), at(0, 6, 0), TIME_ZONE, false));
+        assertEquals(-1, UsagePredictor.nextPrefetchMillis(
+                habit(10), at(0, 6, 0), TIME_ZONE, false));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.utilities;
+
+import android.content.ContentValues;
+
+import com.example.android.diegobaldi.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+
+/**
+ * Tests that {@link FakeForecastGenerator} gives the same days in batches as all at once.
+ * Robolectric provides ContentValues.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, packageName = "com.example.android.diegobaldi")
+public class TestFakeForecastGenerator {
+
+    private static final long START = TimeUnit.DAYS.toMillis(17000);
+
+    /**
+     * Batches of 7 days over 30 days are four full ones and a last one of 2, which together
+     * hold exactly the rows of the whole forecast, in order.
+     */
+    @Test
+    public void testBatchesMatchTheWholeForecast() {
+        FakeForecastGenerator generator = FakeForecastGenerator.forLocation(42, 3);
+        ContentValues[] whole = generator.dailyForecast(START, 30);
+
+        FakeForecastGenerator.DailyBatches batches = generator.dailyBatches(START, 30, 7);
+        int day = 0;
+        while (batches.hasNext()) {
+            ContentValues[] batch = batches.next();
+            assertEquals(day < 28 ? 7 : 2, batch.length);
+            for (ContentValues values : batch) {
+                assertEquals("Day " + day, whole[day], values);
+                day++;
+            }
+        }
+        assertEquals(whole.length, day);
+    }
+
+    @Test
+    public void testNoDaysNoBatches() {
+        assertFalse(FakeForecastGenerator.forLocation(42, 0).dailyBatches(START, 0, 7).hasNext());
+    }
+}
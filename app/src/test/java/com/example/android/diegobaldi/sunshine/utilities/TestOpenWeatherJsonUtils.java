@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.diegobaldi.sunshine.utilities;
+
+import com.example.android.diegobaldi.BuildConfig;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+/**
+ * Tests {@link OpenWeatherJsonUtils#completeDaysOf}, which trims a response cut off by the sync
+ * deadline. Robolectric provides the real org.json to check what it returns.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, packageName = "com.example.android.diegobaldi")
+public class TestOpenWeatherJsonUtils {
+
+    private static final String CITY_NAME = "Mountain View, \"CA\"";
+
+    private static final String START = "{\"city\":{\"name\":\"Mountain View, \\\"CA\\\"\","
+            + "\"coord\":{\"lat\":37.4,\"lon\":-122.1}},\"cod\":\"200\",\"list\":[";
+
+    /* Brackets and escaped quotes inside strings must not be taken for structure */
+    private static final String[] DAYS = {
+            "{\"dt\":1,\"temp\":{\"min\":1.5,\"max\":9},"
+                    + "\"weather\":[{\"id\":500,\"description\":\"light rain }]\"}]}",
+            "{\"dt\":2,\"temp\":{\"min\":-2,\"max\":3},"
+                    + "\"weather\":[{\"id\":800,\"description\":\"clear \\\\\\\" {[\"}]}",
+            "{\"dt\":3,\"temp\":{\"min\":0,\"max\":5},"
+                    + "\"weather\":[{\"id\":801,\"description\":\"clouds\"}]}"
+    };
+
+    private static final String[] DESCRIPTIONS = {"light rain }]", "clear \\\" {[", "clouds"};
+
+    private static final String END = "],\"message\":0.1}";
+
+    /**
+     * Cut the response after every single character: the result must hold exactly the days
+     * that arrived whole, unchanged, or be null when none did.
+     */
+    @Test
+    public void testCompleteDaysAtEveryCut() throws Exception {
+        StringBuilder response = new StringBuilder(START);
+        int[] dayEnds = new int[DAYS.length];
+        for (int i = 0; i < DAYS.length; i++) {
+            if (i > 0) response.append(',');
+            response.append(DAYS[i]);
+            dayEnds[i] = response.length();
+        }
+        response.append(END);
+
+        for (int cut = 0; cut <= response.length(); cut++) {
+            int expectedDays = 0;
+            while (expectedDays < DAYS.length && dayEnds[expectedDays] <= cut) {
+                expectedDays++;
+            }
+
+            String completed = OpenWeatherJsonUtils.completeDaysOf(response.substring(0, cut));
+            if (expectedDays == 0) {
+                assertNull("No day arrived whole when cut at " + cut, completed);
+                continue;
+            }
+
+            JSONObject json = new JSONObject(completed);
+            assertEquals(CITY_NAME, json.getJSONObject("city").getString("name"));
+
+            JSONArray list = json.getJSONArray("list");
+            assertEquals("Days when cut at " + cut, expectedDays, list.length());
+            for (int i = 0; i < expectedDays; i++) {
+                JSONObject day = list.getJSONObject(i);
+                assertEquals(i + 1, day.getInt("dt"));
+                assertEquals(DESCRIPTIONS[i], day.getJSONArray("weather")
+                        .getJSONObject(0).getString("description"));
+            }
+        }
+    }
+
+    @Test
+    public void testNullResponse() {
+        assertNull(OpenWeatherJsonUtils.completeDaysOf(null));
+    }
+}